@@ -0,0 +1,102 @@
+package com.mgatelabs.piper.runners;
+
+import com.mgatelabs.piper.shared.details.ActionDefinition;
+import com.mgatelabs.piper.shared.details.ActionType;
+import com.mgatelabs.piper.shared.details.ComponentDefinition;
+import com.mgatelabs.piper.shared.details.ExecutableLink;
+import com.mgatelabs.piper.shared.details.StateCallType;
+import com.mgatelabs.piper.shared.util.Expression;
+
+/**
+ * An action with everything that cannot change while the script runs worked out ahead of time.  Values holding a
+ * variable are left to the runner.
+ */
+public class CompiledAction {
+
+    private final ActionDefinition definition;
+    private final ActionType type;
+    // By StateCallType ordinal
+    private final boolean[] allowed;
+    private final CompiledCondition condition;
+    private final ComponentDefinition component;
+    private final ExecutableLink call;
+    // The repeat count, when it is a plain number
+    private final boolean fixedCount;
+    private final int count;
+    // A MATH expression, unless the value is a variable holding the expression
+    private final Expression expression;
+    // Where a GOTO continues inside its statement, -1 when the label is missing
+    private int target;
+
+    CompiledAction(ActionDefinition definition, CompiledCondition condition, ComponentDefinition component, ExecutableLink call, boolean fixedCount, int count, Expression expression) {
+        this.definition = definition;
+        this.type = definition.getType();
+        this.allowed = new boolean[StateCallType.values().length];
+        allowed[StateCallType.STATE.ordinal()] = type.isAllowedForState();
+        allowed[StateCallType.CALL.ordinal()] = type.isAllowedForCall();
+        allowed[StateCallType.CONDITION.ordinal()] = type.isAllowedForCondition();
+        this.condition = condition;
+        this.component = component;
+        this.call = call;
+        this.fixedCount = fixedCount;
+        this.count = count;
+        this.expression = expression;
+        this.target = -1;
+    }
+
+    public ActionDefinition getDefinition() {
+        return definition;
+    }
+
+    public ActionType getType() {
+        return type;
+    }
+
+    public boolean isAllowed(StateCallType callType) {
+        return allowed[callType.ordinal()];
+    }
+
+    /**
+     * @return null when the action has no condition
+     */
+    public CompiledCondition getCondition() {
+        return condition;
+    }
+
+    /**
+     * @return null when the component is chosen by a variable or unknown
+     */
+    public ComponentDefinition getComponent() {
+        return component;
+    }
+
+    /**
+     * @return null when the function was not found while compiling
+     */
+    public ExecutableLink getCall() {
+        return call;
+    }
+
+    public boolean isFixedCount() {
+        return fixedCount;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @return null when the expression is only known while running
+     */
+    public Expression getExpression() {
+        return expression;
+    }
+
+    public int getTarget() {
+        return target;
+    }
+
+    void setTarget(int target) {
+        this.target = target;
+    }
+}
@@ -0,0 +1,78 @@
+package com.mgatelabs.piper.runners;
+
+import com.mgatelabs.piper.shared.details.ConditionDefinition;
+import com.mgatelabs.piper.shared.details.ConditionType;
+import com.mgatelabs.piper.shared.details.ExecutableLink;
+import com.mgatelabs.piper.shared.details.ScreenDefinition;
+
+import java.util.List;
+
+/**
+ * A condition with its screens and called function looked up ahead of time.  Screen values holding a variable are
+ * kept as text and looked up when the condition is checked.
+ */
+public class CompiledCondition {
+
+    private final ConditionDefinition definition;
+    private final ConditionType type;
+    private final boolean reversed;
+    // One entry per screen value, the screen is null when it is unknown or looked up late
+    private final ScreenDefinition[] screens;
+    // The values to look up late, null for the ones resolved here
+    private final String[] dynamicScreens;
+    private final ExecutableLink call;
+    private final List<CompiledCondition> and;
+    private final List<CompiledCondition> andOr;
+    private final List<CompiledCondition> or;
+
+    CompiledCondition(ConditionDefinition definition, ScreenDefinition[] screens, String[] dynamicScreens, ExecutableLink call, List<CompiledCondition> and, List<CompiledCondition> andOr, List<CompiledCondition> or) {
+        this.definition = definition;
+        this.type = definition.getUsedCondition();
+        this.reversed = definition.isReversed();
+        this.screens = screens;
+        this.dynamicScreens = dynamicScreens;
+        this.call = call;
+        this.and = and;
+        this.andOr = andOr;
+        this.or = or;
+    }
+
+    public ConditionDefinition getDefinition() {
+        return definition;
+    }
+
+    public ConditionType getType() {
+        return type;
+    }
+
+    public boolean isReversed() {
+        return reversed;
+    }
+
+    public ScreenDefinition[] getScreens() {
+        return screens;
+    }
+
+    public String[] getDynamicScreens() {
+        return dynamicScreens;
+    }
+
+    /**
+     * @return null when the function was not found while compiling
+     */
+    public ExecutableLink getCall() {
+        return call;
+    }
+
+    public List<CompiledCondition> getAnd() {
+        return and;
+    }
+
+    public List<CompiledCondition> getAndOr() {
+        return andOr;
+    }
+
+    public List<CompiledCondition> getOr() {
+        return or;
+    }
+}
@@ -0,0 +1,53 @@
+package com.mgatelabs.piper.runners;
+
+import com.mgatelabs.piper.shared.details.StateLink;
+import com.mgatelabs.piper.shared.details.StatementDefinition;
+
+/**
+ * The statements of one linked state, ready for the runner
+ */
+public class CompiledState {
+
+    private final StateLink link;
+    private final Statement[] statements;
+
+    CompiledState(StateLink link, Statement[] statements) {
+        this.link = link;
+        this.statements = statements;
+    }
+
+    public StateLink getLink() {
+        return link;
+    }
+
+    public Statement[] getStatements() {
+        return statements;
+    }
+
+    public static class Statement {
+        private final StatementDefinition definition;
+        private final CompiledCondition condition;
+        private final CompiledAction[] actions;
+
+        Statement(StatementDefinition definition, CompiledCondition condition, CompiledAction[] actions) {
+            this.definition = definition;
+            this.condition = condition;
+            this.actions = actions;
+        }
+
+        public StatementDefinition getDefinition() {
+            return definition;
+        }
+
+        /**
+         * @return null when the statement always runs
+         */
+        public CompiledCondition getCondition() {
+            return condition;
+        }
+
+        public CompiledAction[] getActions() {
+            return actions;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.mgatelabs.piper.runners;
+
+import com.google.common.collect.Lists;
+import com.mgatelabs.piper.shared.details.ActionDefinition;
+import com.mgatelabs.piper.shared.details.ConditionDefinition;
+import com.mgatelabs.piper.shared.details.StateLink;
+import com.mgatelabs.piper.shared.details.StatementDefinition;
+
+import java.util.List;
+
+/**
+ * What the runner checked and did, kept in a fixed ring of records.  Recording stores a few numbers and references in
+ * arrays made up front, nothing is turned into text until {@link #snapshot()} is asked for, and a disabled trace
+ * returns right away.
+ * <p>
+ * Only the runner thread records, readers copy the ring and drop whatever was overwritten while they copied.
+ */
+public class ExecutionTrace {
+
+    public enum Event {
+        CHECK,
+        ACTION_SKIPPED,
+        ACTION_ALLOWED,
+        ACTION
+    }
+
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private final int mask;
+    private final StateLink[] states;
+    private final int[] statements;
+    private final int[] actions;
+    private final Event[] events;
+    private final boolean[] results;
+    private final long[] times;
+
+    private volatile boolean enabled;
+    // Records written so far, the newest is at (count - 1) & mask
+    private volatile long count;
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    public ExecutionTrace(int capacity) {
+        int size = Integer.highestOneBit(Math.max(16, capacity) - 1) << 1;
+        mask = size - 1;
+        states = new StateLink[size];
+        statements = new int[size];
+        actions = new int[size];
+        events = new Event[size];
+        results = new boolean[size];
+        times = new long[size];
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    /**
+     * @param action the action index in the statement, -1 for the statement's own condition
+     */
+    public void record(final StateLink state, final int statement, final int action, final Event event, final boolean result) {
+        if (!enabled) {
+            return;
+        }
+        final long index = count;
+        final int slot = (int) index & mask;
+        states[slot] = state;
+        statements[slot] = statement;
+        actions[slot] = action;
+        events[slot] = event;
+        results[slot] = result;
+        times[slot] = System.nanoTime();
+        // Publishes the record to readers
+        count = index + 1;
+    }
+
+    /**
+     * The records still in the ring, oldest first, turned into entries
+     */
+    public List<Entry> snapshot() {
+        final long end = count;
+        final long start = Math.max(0, end - getCapacity());
+        final int size = (int) (end - start);
+        final StateLink[] copyStates = new StateLink[size];
+        final int[] copyStatements = new int[size];
+        final int[] copyActions = new int[size];
+        final Event[] copyEvents = new Event[size];
+        final boolean[] copyResults = new boolean[size];
+        final long[] copyTimes = new long[size];
+        for (int i = 0; i < size; i++) {
+            final int slot = (int) (start + i) & mask;
+            copyStates[i] = states[slot];
+            copyStatements[i] = statements[slot];
+            copyActions[i] = actions[slot];
+            copyEvents[i] = events[slot];
+            copyResults[i] = results[slot];
+            copyTimes[i] = times[slot];
+        }
+        // Anything the runner wrapped over while copying, or is writing now, is no longer what it was
+        final int first = (int) Math.min(size, Math.max(0, count + 1 - getCapacity() - start));
+        final List<Entry> entries = Lists.newArrayListWithCapacity(size - first);
+        for (int i = first; i < size; i++) {
+            entries.add(new Entry(start + i, copyStates[i], copyStatements[i], copyActions[i], copyEvents[i], copyResults[i], copyTimes[i]));
+        }
+        return entries;
+    }
+
+    /**
+     * One record as text, for the web page
+     */
+    public static class Entry {
+        private final long sequence;
+        private final long time;
+        private final String script;
+        private final String state;
+        private final int statement;
+        private final int action;
+        private final String event;
+        private final boolean result;
+        private final String detail;
+
+        Entry(long sequence, StateLink link, int statement, int action, Event event, boolean result, long time) {
+            this.sequence = sequence;
+            this.time = time;
+            this.script = link.getScriptId();
+            this.state = link.getState().getId();
+            this.statement = statement;
+            this.action = action;
+            this.event = event.name();
+            this.result = result;
+            this.detail = detail(link, statement, action, event);
+        }
+
+        private static String detail(StateLink link, int statement, int action, Event event) {
+            final List<StatementDefinition> statementDefinitions = link.getState().getStatements();
+            if (statement < 0 || statement >= statementDefinitions.size()) {
+                return "";
+            }
+            final StatementDefinition statementDefinition = statementDefinitions.get(statement);
+            if (event == Event.CHECK) {
+                return ConditionDefinition.getConditionString(statementDefinition.getCondition());
+            }
+            if (action < 0 || action >= statementDefinition.getActions().size()) {
+                return "";
+            }
+            final ActionDefinition actionDefinition = statementDefinition.getActions().get(action);
+            if (event == Event.ACTION) {
+                return actionDefinition.toString();
+            }
+            return ConditionDefinition.getConditionString(actionDefinition.getCondition());
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * System.nanoTime when it was recorded
+         */
+        public long getTime() {
+            return time;
+        }
+
+        public String getScript() {
+            return script;
+        }
+
+        public String getState() {
+            return state;
+        }
+
+        public int getStatement() {
+            return statement;
+        }
+
+        public int getAction() {
+            return action;
+        }
+
+        public String getEvent() {
+            return event;
+        }
+
+        public boolean isResult() {
+            return result;
+        }
+
+        public String getDetail() {
+            return detail;
+        }
+    }
+}
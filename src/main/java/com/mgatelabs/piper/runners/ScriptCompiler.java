@@ -0,0 +1,229 @@
+package com.mgatelabs.piper.runners;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.mgatelabs.piper.shared.details.ActionDefinition;
+import com.mgatelabs.piper.shared.details.ActionType;
+import com.mgatelabs.piper.shared.details.ComponentDefinition;
+import com.mgatelabs.piper.shared.details.ConditionDefinition;
+import com.mgatelabs.piper.shared.details.ConditionType;
+import com.mgatelabs.piper.shared.details.ExecutableLink;
+import com.mgatelabs.piper.shared.details.ScreenDefinition;
+import com.mgatelabs.piper.shared.details.ScriptEnvironment;
+import com.mgatelabs.piper.shared.details.StateLink;
+import com.mgatelabs.piper.shared.details.StateType;
+import com.mgatelabs.piper.shared.details.StatementDefinition;
+import com.mgatelabs.piper.shared.util.Expression;
+import com.mgatelabs.piper.shared.util.TokenTemplate;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Turns the linked states of a script into the form the runner executes.  Components, screens, called functions, GOTO
+ * targets and plain repeat counts are resolved once here, instead of by name on every pass.  Anything holding a
+ * variable stays as text and is resolved when it runs, a reference that cannot be resolved is left for the runner to
+ * report when it is reached, the same as before.
+ */
+public class ScriptCompiler {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final ScriptEnvironment scriptEnvironment;
+    private final Map<String, ScreenDefinition> screens;
+    private final Map<String, ComponentDefinition> components;
+    // StateLinks do not override equals, so identity is what they already mean
+    private final Map<StateLink, CompiledState> compiled;
+
+    public ScriptCompiler(ScriptEnvironment scriptEnvironment, Map<String, ScreenDefinition> screens, Map<String, ComponentDefinition> components) {
+        this.scriptEnvironment = scriptEnvironment;
+        this.screens = screens;
+        this.components = components;
+        this.compiled = new IdentityHashMap<>();
+    }
+
+    /**
+     * Compile every state and function up front, with all the states they link to
+     */
+    public void compileAll() {
+        for (ExecutableLink executableLink : scriptEnvironment.getExecutableStates(ImmutableSet.of(StateType.STATE, StateType.FUNCTION)).values()) {
+            compile(executableLink.getLink());
+        }
+        logger.debug("Compiled " + compiled.size() + " linked states");
+    }
+
+    public CompiledState compile(final StateLink link) {
+        CompiledState state = compiled.get(link);
+        if (state != null) {
+            return state;
+        }
+
+        final List<StatementDefinition> statementDefinitions = link.getState().getStatements();
+        final CompiledState.Statement[] statements = new CompiledState.Statement[statementDefinitions.size()];
+        state = new CompiledState(link, statements);
+        // In before the children, so links that come back around find it
+        compiled.put(link, state);
+
+        for (int i = 0; i < statements.length; i++) {
+            final StatementDefinition statementDefinition = statementDefinitions.get(i);
+            final List<ActionDefinition> actionDefinitions = statementDefinition.getActions();
+            final CompiledAction[] actions = new CompiledAction[actionDefinitions.size()];
+            for (int j = 0; j < actions.length; j++) {
+                actions[j] = compile(actionDefinitions.get(j));
+            }
+            resolveTargets(actions);
+            statements[i] = new CompiledState.Statement(statementDefinition, compile(statementDefinition.getCondition()), actions);
+        }
+
+        for (StateLink include : link.getIncludes()) {
+            compile(include);
+        }
+        return state;
+    }
+
+    private CompiledAction compile(final ActionDefinition actionDefinition) {
+        ComponentDefinition component = null;
+        ExecutableLink call = null;
+        Expression expression = null;
+        switch (actionDefinition.getType()) {
+            case TAP:
+            case SWIPE_UP:
+            case SLOW_UP:
+            case SWIPE_RIGHT:
+            case SWIPE_DOWN:
+            case SLOW_DOWN:
+            case SLOW_RIGHT:
+            case SLOW_LEFT:
+            case SWIPE_LEFT:
+            case COMPONENT:
+                if (isFixed(actionDefinition.getValue())) {
+                    component = components.get(actionDefinition.getValue());
+                }
+                break;
+            case CALL:
+                call = function(actionDefinition.getValue());
+                break;
+            case LINK:
+                for (StateLink link : actionDefinition.getLinks()) {
+                    compile(link);
+                }
+                break;
+            case MATH:
+                expression = expression(actionDefinition.getValue());
+                break;
+        }
+
+        boolean fixedCount = true;
+        int count = 1;
+        final String countValue = actionDefinition.getCount();
+        if (!StringUtils.isEmpty(countValue)) {
+            fixedCount = countValue.indexOf('$') < 0;
+            if (fixedCount) {
+                try {
+                    count = Integer.parseInt(countValue);
+                } catch (NumberFormatException e) {
+                    // Let it fail where it always did
+                    fixedCount = false;
+                }
+            }
+        }
+
+        return new CompiledAction(actionDefinition, compile(actionDefinition.getCondition()), component, call, fixedCount, count, expression);
+    }
+
+    /**
+     * Point every GOTO at the first LABEL with the same value in its statement
+     */
+    private static void resolveTargets(final CompiledAction[] actions) {
+        for (CompiledAction action : actions) {
+            if (action.getType() != ActionType.GOTO) continue;
+            for (int i = 0; i < actions.length; i++) {
+                final ActionDefinition inspect = actions[i].getDefinition();
+                if (inspect.getType() == ActionType.LABEL && inspect.getValue().equals(action.getDefinition().getValue())) {
+                    action.setTarget(i);
+                    break;
+                }
+            }
+        }
+    }
+
+    private CompiledCondition compile(final ConditionDefinition conditionDefinition) {
+        if (conditionDefinition == null) {
+            return null;
+        }
+
+        ScreenDefinition[] resolved = null;
+        String[] dynamic = null;
+        ExecutableLink call = null;
+        final ConditionType type = conditionDefinition.getUsedCondition();
+        if (type == ConditionType.SCREEN) {
+            final List<String> values = Lists.newArrayList(conditionDefinition.getValues());
+            resolved = new ScreenDefinition[values.size()];
+            dynamic = new String[values.size()];
+            for (int i = 0; i < resolved.length; i++) {
+                final String value = values.get(i);
+                if (isFixed(value)) {
+                    resolved[i] = screens.get(value);
+                } else {
+                    dynamic[i] = value;
+                }
+            }
+        } else if (type == ConditionType.CALL) {
+            call = function(conditionDefinition.getValue());
+        }
+
+        return new CompiledCondition(conditionDefinition, resolved, dynamic, call, compile(conditionDefinition.getAnd()), compile(conditionDefinition.getAndOr()), compile(conditionDefinition.getOr()));
+    }
+
+    private List<CompiledCondition> compile(final List<ConditionDefinition> conditionDefinitions) {
+        if (conditionDefinitions == null || conditionDefinitions.isEmpty()) {
+            return ImmutableList.of();
+        }
+        final List<CompiledCondition> conditions = Lists.newArrayListWithCapacity(conditionDefinitions.size());
+        for (ConditionDefinition conditionDefinition : conditionDefinitions) {
+            conditions.add(compile(conditionDefinition));
+        }
+        return conditions;
+    }
+
+    /**
+     * Functions are never named by a variable, but a missing @ is reported by the runner
+     */
+    private ExecutableLink function(final String name) {
+        if (name == null || !name.startsWith("@")) {
+            return null;
+        }
+        final ExecutableLink executableLink = scriptEnvironment.getExecutableState(name);
+        if (executableLink != null) {
+            compile(executableLink.getLink());
+        }
+        return executableLink;
+    }
+
+    /**
+     * A value that is a single variable holds the expression itself, so it can only be compiled when it runs
+     */
+    private Expression expression(final String value) {
+        if (value == null || TokenTemplate.parse(value).getVariable() != null) {
+            return null;
+        }
+        try {
+            return Expression.compile(value);
+        } catch (RuntimeException e) {
+            // Reported by the runner when it is reached
+            return null;
+        }
+    }
+
+    /**
+     * Values with a $ are variables, old style or ${...}
+     */
+    private static boolean isFixed(final String value) {
+        return value != null && value.indexOf('$') < 0;
+    }
+}
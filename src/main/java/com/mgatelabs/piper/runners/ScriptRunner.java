@@ -20,35 +20,40 @@ import com.mgatelabs.piper.shared.details.StateCallType;
 import com.mgatelabs.piper.shared.details.StateLink;
 import com.mgatelabs.piper.shared.details.StateResult;
 import com.mgatelabs.piper.shared.details.StateType;
-import com.mgatelabs.piper.shared.details.StatementDefinition;
 import com.mgatelabs.piper.shared.details.VarDefinition;
 import com.mgatelabs.piper.shared.details.VarDisplay;
 import com.mgatelabs.piper.shared.details.VarModify;
 import com.mgatelabs.piper.shared.details.VarTabDefinition;
 import com.mgatelabs.piper.shared.details.VarTierDefinition;
+import com.mgatelabs.piper.shared.details.VarType;
 import com.mgatelabs.piper.shared.details.ViewDefinition;
 import com.mgatelabs.piper.shared.helper.DeviceHelper;
 import com.mgatelabs.piper.shared.helper.InfoTransfer;
 import com.mgatelabs.piper.shared.helper.MapTransfer;
 import com.mgatelabs.piper.shared.helper.PointTransfer;
+import com.mgatelabs.piper.shared.helper.ScreenTree;
 import com.mgatelabs.piper.shared.image.ImageWrapper;
+import com.mgatelabs.piper.shared.image.PngImageWrapper;
 import com.mgatelabs.piper.shared.image.RawImageWrapper;
+import com.mgatelabs.piper.shared.image.RegionTable;
 import com.mgatelabs.piper.shared.image.SamplePoint;
 import com.mgatelabs.piper.shared.image.Sampler;
+import com.mgatelabs.piper.shared.image.ScreenMatcher;
 import com.mgatelabs.piper.shared.image.StateTransfer;
+import com.mgatelabs.piper.shared.image.TemplateMatcher;
 import com.mgatelabs.piper.shared.util.AdbUtils;
 import com.mgatelabs.piper.shared.util.AdbWrapper;
+import com.mgatelabs.piper.shared.util.Expression;
 import com.mgatelabs.piper.shared.util.IntVar;
 import com.mgatelabs.piper.shared.util.Mather;
 import com.mgatelabs.piper.shared.util.StringVar;
+import com.mgatelabs.piper.shared.util.TokenTemplate;
 import com.mgatelabs.piper.shared.util.Var;
-import com.mgatelabs.piper.shared.util.VarInstance;
 import com.mgatelabs.piper.shared.util.VarManager;
 import com.mgatelabs.piper.shared.util.VarTimer;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.slf4j.MDC;
 
 import java.security.SecureRandom;
 import java.text.DecimalFormat;
@@ -85,17 +90,40 @@ public class ScriptRunner {
 
     private final SecureRandom SECURE_RANDOM = new SecureRandom();
 
-    private static final Pattern SINGLE_VARIABLE = Pattern.compile("^\\$\\{[a-zA-Z0-9_-]+\\}$");
+    // Script values are a fixed set, this only guards against values built at runtime
+    private static final int MAX_TOKEN_TEMPLATES = 4096;
 
     public static final NumberFormat THREE_DECIMAL = new DecimalFormat("#.###");
 
+    // Allowed difference per channel between a REGION's mean color and the rgb argument
+    private static final int REGION_TOLERANCE = 16;
+
     private ConnectionDefinition connectionDefinition;
     private ScriptEnvironment scriptEnvironment;
     private DeviceDefinition deviceDefinition;
     private ViewDefinition viewDefinition;
 
     private Map<String, ScreenDefinition> screens;
+    // Compiled on first use, only needed when there is no helper
+    private Map<String, ScreenMatcher> screenMatchers;
     private Map<String, ComponentDefinition> components;
+    // Component previews for FIND, loaded on first use
+    private Map<String, TemplateMatcher> templates;
+
+    // The frame FIND and REGION read, taken from the helper once per refresh
+    private ImageWrapper currentFrame;
+    // Summed-area tables of the current frame, by component id
+    private Map<String, RegionTable> regionTables;
+
+    // Script values split into text and ${name} tokens, by value
+    private Map<String, TokenTemplate> tokenTemplates;
+    private final StringBuilder tokenBuilder = new StringBuilder();
+
+    // What was checked and run, off unless turned on from the web page
+    private final ExecutionTrace trace = new ExecutionTrace(ExecutionTrace.DEFAULT_CAPACITY);
+
+    // The states as the runner executes them, resolved once at load
+    private ScriptCompiler compiler;
 
     private Map<String, StateTransfer> transferStateMap;
     private MapTransfer transferMap;
@@ -108,6 +136,11 @@ public class ScriptRunner {
 
     private Set<String> validScreenIds;
 
+    // Lets refreshViews skip the check when the frame did not change
+    private long lastFingerprint = DeviceHelper.NO_FINGERPRINT;
+    private String lastFingerprintSceneId;
+    private volatile int unchangedFrames;
+
     private AdbWrapper shell;
 
     private VarManager vars;
@@ -131,6 +164,7 @@ public class ScriptRunner {
         stack = new Stack<>();
 
         shell = adbWrapper;
+        shell.setAsyncInput(connectionDefinition.isAsyncInput());
 
         logger.debug("Extracting Variables");
 
@@ -156,6 +190,7 @@ public class ScriptRunner {
         logger.debug("Extracting Screens");
 
         screens = Maps.newHashMap();
+        screenMatchers = Maps.newHashMap();
         for (ScreenDefinition screenDefinition : viewDefinition.getScreens()) {
             screens.put(screenDefinition.getScreenId(), screenDefinition);
         }
@@ -163,10 +198,18 @@ public class ScriptRunner {
         logger.debug("Extracting Components");
 
         components = Maps.newHashMap();
+        templates = Maps.newHashMap();
+        regionTables = Maps.newHashMap();
+        tokenTemplates = Maps.newHashMap();
         for (ComponentDefinition componentDefinition : viewDefinition.getComponents()) {
             components.put(componentDefinition.getComponentId(), componentDefinition);
         }
 
+        logger.debug("Compiling States");
+
+        compiler = new ScriptCompiler(scriptEnvironment, screens, components);
+        compiler.compileAll();
+
         logger.debug("Generating State Info");
 
         transferStateMap = Maps.newHashMap();
@@ -218,6 +261,10 @@ public class ScriptRunner {
         return lastImageDuration;
     }
 
+    public int getUnchangedFrames() {
+        return unchangedFrames;
+    }
+
     public boolean initHelper() {
         if (deviceHelper == null) {
             logger.error("Phone Helper connection is down, please restart app");
@@ -228,6 +275,7 @@ public class ScriptRunner {
             InfoTransfer infoTransfer = new InfoTransfer();
             infoTransfer.setStates(transferStateMap);
             infoTransfer.setMap(transferMap);
+            infoTransfer.setFormat(pixelFormat());
             if (deviceHelper.setup(infoTransfer)) {
                 logger.error("Phone Helper is configured");
                 return true;
@@ -271,10 +319,16 @@ public class ScriptRunner {
         }
     };
 
+    private RawImageWrapper.ImageFormats pixelFormat() {
+        return deviceDefinition.getPixelFormat() != null ? deviceDefinition.getPixelFormat() : RawImageWrapper.ImageFormats.RGBA;
+    }
+
     private Map<String, StateTransfer> generateStateInfo() {
 
         Map<String, StateTransfer> results = Maps.newHashMap();
 
+        final RawImageWrapper.ImageFormats pixelFormat = pixelFormat();
+
         final ImmutableMap<String, ExecutableLink> executables = scriptEnvironment.getExecutableStates(ImmutableSet.of(StateType.STATE, StateType.FUNCTION));
 
         for (Map.Entry<String, ExecutableLink> executionEntry : scriptEnvironment.getExecutableStates(ImmutableSet.of(StateType.STATE)).entrySet()) {
@@ -334,12 +388,19 @@ public class ScriptRunner {
                 ScreenDefinition screenDefinition = screens.get(stateTransfer.getScreenIds().get(i));
                 if (!screenDefinition.isEnabled()) continue;
                 for (SamplePoint point : screenDefinition.getPoints()) {
-                    points.add(new PointTransfer(RawImageWrapper.getOffsetFor(deviceDefinition.getViewWidth(), 12, point.getX(), point.getY(), RawImageWrapper.ImageFormats.RGBA), (byte) i, (byte) point.getR(), (byte) point.getG(), (byte) point.getB()));
+                    // The color as the frame holds it, so BGRA points carry blue first
+                    final int sample = pixelFormat.toSample(point.getR(), point.getG(), point.getB());
+                    points.add(new PointTransfer(RawImageWrapper.getOffsetFor(deviceDefinition.getViewWidth(), 12, point.getX(), point.getY(), pixelFormat), (byte) i, (byte) (sample >> 16), (byte) (sample >> 8), (byte) sample));
                 }
             }
             Collections.sort(points, pointTransferComparator);
             // Sort them
             stateTransfer.setPoints(points);
+            final int[] offsets = new int[points.size()];
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = points.get(i).getOffset();
+            }
+            stateTransfer.setOffsets(offsets);
             int jumpOffset = 0;
             int readOffset = 0;
             for (PointTransfer transfer : points) {
@@ -349,9 +410,10 @@ public class ScriptRunner {
                 } else {
                     jumpOffset = requestedOffset;
                     transfer.setOffset(jumpOffset - readOffset);
-                    readOffset = jumpOffset + 3; // Read ahead for 3 bytes
+                    readOffset = jumpOffset + pixelFormat.getSampleBytes(); // Read ahead for one sample
                 }
             }
+            stateTransfer.setTree(ScreenTree.build(stateTransfer));
 
             results.put(stateTransfer.getStateId(), stateTransfer);
         }
@@ -421,6 +483,9 @@ public class ScriptRunner {
                     }
                 }
 
+                // Queued input has to land before the screen is worth looking at
+                shell.awaitInput();
+                frameChanged();
                 deviceHelper.refresh(shell);
                 imageWrapper = null;
 
@@ -433,6 +498,7 @@ public class ScriptRunner {
 
                     switch (result.getType()) {
                         case STOP: {
+                            shell.awaitInput();
                             this.status = Status.STOPPED;
                             return;
                         }
@@ -469,6 +535,7 @@ public class ScriptRunner {
             logger.error(ex.getMessage());
             ex.printStackTrace();
         } finally {
+            frameChanged();
             setStatus(Status.STOPPED);
             logger.info("Script Stopped");
         }
@@ -494,15 +561,29 @@ public class ScriptRunner {
         if (deviceHelper != null) {
 
             if (captureAgain) {
+                shell.awaitInput();
+                frameChanged();
                 if (!deviceHelper.refresh(shell)) {
                     return;
                 }
             }
 
+            final String sceneId = vars.getCurrentSceneId();
+            final long fingerprint = deviceHelper.fingerprint(sceneId);
+            if (fingerprint != DeviceHelper.NO_FINGERPRINT && fingerprint == lastFingerprint && sceneId.equals(lastFingerprintSceneId) && validScreenIds != null) {
+                // Same pixels as last time, so the same screens are still valid
+                unchangedFrames++;
+                logger.debug("Screen State unchanged");
+                return;
+            }
+
             long startTime = System.nanoTime();
-            validScreenIds = deviceHelper.check(vars.getCurrentSceneId());
+            validScreenIds = deviceHelper.check(sceneId);
             long endTime = System.nanoTime();
 
+            lastFingerprint = fingerprint;
+            lastFingerprintSceneId = sceneId;
+
             long dif = endTime - startTime;
 
             lastImageDate = new Date();
@@ -527,15 +608,13 @@ public class ScriptRunner {
 
     private Var valueHandler(String value) {
         if (value == null) return new StringVar("");
-        if (SINGLE_VARIABLE.matcher(value).matches()) {
-            // This is a single variable lookup, extract the name and look it up
-            return getVar(value.substring(2, value.length() - 1));
-        } else if (value.startsWith("$") && value.indexOf("{") == -1) {
-            // Old Style Value's
-            return getVar(value.substring(1));
+        final TokenTemplate template = tokenTemplate(value);
+        if (template.getVariable() != null) {
+            // This is a single variable lookup, ${name} or the old style $name
+            return getVar(template.getVariable());
         }
         // Replace any token with a value and continue
-        return new StringVar(replaceTokens(value));
+        return new StringVar(template.render(vars, tokenBuilder));
     }
 
     private boolean stillRunning() {
@@ -600,61 +679,57 @@ public class ScriptRunner {
 
     private StateResult executableStateProcessor(Stack<ProcessingStateInfo> stateStack, StateLink executableState, final ImageWrapper imageWrapper, StateCallType callType, boolean inBatch) {
         boolean batchCmds = false;
-        StateResult priorResult;
-        StateResult stateResult = null;
         final ProcessingStateInfo stateTracker = stateStack.peek();
+        final CompiledState compiledState = compiler.compile(executableState);
         int statementIndex = 0;
-        for (StatementDefinition statementDefinition : executableState.getState().getStatements()) {
+        for (CompiledState.Statement statement : compiledState.getStatements()) {
             stateTracker.setStateIndex(statementIndex++);
             stateTracker.setActionIndex(-1);
-            boolean checkStatus = check(stateStack, statementDefinition.getCondition(), imageWrapper);
-            logStackTraceInfo(stateStack, "CHECK: " + ConditionDefinition.getConditionString(statementDefinition.getCondition()) + " - " + checkStatus);
+            boolean checkStatus = check(stateStack, statement.getCondition(), imageWrapper);
+            trace.record(executableState, stateTracker.getStateIndex(), -1, ExecutionTrace.Event.CHECK, checkStatus);
+            if (logger.isTraceEnabled()) {
+                logStackTraceInfo(stateStack, "CHECK: " + ConditionDefinition.getConditionString(statement.getDefinition().getCondition()) + " - " + checkStatus);
+            }
 
             if (checkStatus) {
-                int actionIndex = 0;
+                final CompiledAction[] actions = statement.getActions();
                 int programIndex = 0;
-                while (programIndex < statementDefinition.getActions().size()) {
-                    ActionDefinition actionDefinition = statementDefinition.getActions().get(programIndex++);
-                    stateTracker.setActionIndex(actionIndex++);
+                while (programIndex < actions.length) {
+                    final CompiledAction action = actions[programIndex++];
+                    final ActionDefinition actionDefinition = action.getDefinition();
+                    // The position of the action running now, a GOTO moves it
+                    stateTracker.setActionIndex(programIndex - 1);
                     // Skip actions not allowed for the current state mode
-                    if (callType == StateCallType.CALL && !actionDefinition.getType().isAllowedForCall()) {
-                        logger.trace("Action " + actionDefinition.getType() + " has been skipped");
-                        continue;
-                    } else if (callType == StateCallType.STATE && !actionDefinition.getType().isAllowedForState()) {
-                        logger.trace("Action " + actionDefinition.getType() + " has been skipped");
-                        continue;
-                    } else if (callType == StateCallType.CONDITION && !actionDefinition.getType().isAllowedForCondition()) {
-                        logger.trace("Action " + actionDefinition.getType() + " has been skipped");
+                    if (!action.isAllowed(callType)) {
+                        logger.trace("Action {} has been skipped", actionDefinition.getType());
                         continue;
                     }
 
                     // Actions can have conditions
-                    if (actionDefinition.getCondition() != null && !check(stateStack, actionDefinition.getCondition(), imageWrapper)) {
-                        logStackTraceInfo(stateStack, "Action Skipped: " + ConditionDefinition.getConditionString(actionDefinition.getCondition()));
+                    if (action.getCondition() != null && !check(stateStack, action.getCondition(), imageWrapper)) {
+                        trace.record(executableState, stateTracker.getStateIndex(), stateTracker.getActionIndex(), ExecutionTrace.Event.ACTION_SKIPPED, false);
+                        if (logger.isTraceEnabled()) {
+                            logStackTraceInfo(stateStack, "Action Skipped: " + ConditionDefinition.getConditionString(actionDefinition.getCondition()));
+                        }
                         continue;
-                    } else if (actionDefinition.getCondition() != null) {
-                        logStackTraceInfo(stateStack, "Action Allowed: " + ConditionDefinition.getConditionString(actionDefinition.getCondition()));
+                    } else if (action.getCondition() != null) {
+                        trace.record(executableState, stateTracker.getStateIndex(), stateTracker.getActionIndex(), ExecutionTrace.Event.ACTION_ALLOWED, true);
+                        if (logger.isTraceEnabled()) {
+                            logStackTraceInfo(stateStack, "Action Allowed: " + ConditionDefinition.getConditionString(actionDefinition.getCondition()));
+                        }
                     }
 
-                    if (actionDefinition.getType() == ActionType.CONTINUE) {
+                    if (action.getType() == ActionType.CONTINUE) {
                         // Get out of the current statement block
                         break;
                     }
 
-                    priorResult = stateResult;
-                    stateResult = new StateResult(actionDefinition.getType(), actionDefinition, priorResult, stateStack);
-
-                    final int loopMax;
-                    if (!StringUtils.isEmpty(actionDefinition.getCount())) {
-                        Var v = valueHandler(actionDefinition.getCount());
-                        loopMax = v.toInt();
-                    } else {
-                        loopMax = 1;
-                    }
+                    final int loopMax = action.isFixedCount() ? action.getCount() : valueHandler(actionDefinition.getCount()).toInt();
+                    trace.record(executableState, stateTracker.getStateIndex(), stateTracker.getActionIndex(), ExecutionTrace.Event.ACTION, true);
 
                     for (int loopIndex = 0; loopIndex < loopMax; loopIndex++) {
                         if (!stillRunning()) {
-                            return new StateResult(ActionType.STOP, actionDefinition, priorResult, stateStack);
+                            return new StateResult(ActionType.STOP, actionDefinition, null, stateStack);
                         }
 
                         switch (actionDefinition.getType()) {
@@ -669,13 +744,17 @@ public class ScriptRunner {
                             }
                             break;
                             case FINEST: {
-                                String msg = replaceTokens(actionDefinition.getValue());
-                                logStackTraceInfo(stateStack, "FINEST: " + msg);
+                                if (logger.isTraceEnabled()) {
+                                    String msg = replaceTokens(actionDefinition.getValue());
+                                    logStackTraceInfo(stateStack, "FINEST: " + msg);
+                                }
                             }
                             break;
                             case BATCH: {
                                 if (inBatch) {
-                                    logStackTraceInfo(stateStack, "Skipping batch request, already in batch");
+                                    if (logger.isTraceEnabled()) {
+                                        logStackTraceInfo(stateStack, "Skipping batch request, already in batch");
+                                    }
                                 } else if ("START".equalsIgnoreCase(actionDefinition.getValue())) {
                                     batchCmds = true;
                                 } else if (batchCmds) {
@@ -721,11 +800,7 @@ public class ScriptRunner {
                             }
                             break;
                             case COMPONENT: {
-                                ComponentDefinition componentDefinition = components.get(replaceTokens(actionDefinition.getValue()));
-                                if (componentDefinition == null) {
-                                    logger.error("Cannot find component with id: " + actionDefinition.getValue());
-                                    throw new RuntimeException("Cannot find component with id: " + actionDefinition.getValue());
-                                }
+                                final ComponentDefinition componentDefinition = component(action);
                                 if (actionDefinition.getArguments().containsKey("w")) {
                                     putVar(actionDefinition.getArguments().get("w"), new IntVar(componentDefinition.getW()));
                                 }
@@ -754,7 +829,7 @@ public class ScriptRunner {
                                 }
                                 final Sampler sample = new Sampler();
                                 if (deviceHelper != null) {
-                                    int[] pixels = deviceHelper.pixel(RawImageWrapper.getOffsetFor(deviceDefinition.getViewWidth(), 12, x.toInt(), y.toInt(), RawImageWrapper.ImageFormats.RGBA));
+                                    int[] pixels = deviceHelper.pixel(RawImageWrapper.getOffsetFor(deviceDefinition.getViewWidth(), 12, x.toInt(), y.toInt(), pixelFormat()));
                                     if (pixels != null) {
                                         sample.setR(pixels[0]);
                                         sample.setG(pixels[1]);
@@ -774,6 +849,36 @@ public class ScriptRunner {
                                 }
                             }
                             break;
+                            case FIND: {
+                                final TemplateMatcher.Match match = find(replaceTokens(actionDefinition.getValue()), actionDefinition.getArguments(), imageWrapper);
+                                if (logger.isTraceEnabled()) {
+                                    logStackTraceInfo(stateStack, "FIND: " + actionDefinition.getValue() + " - " + (match != null ? match.getX() + "," + match.getY() : "missing"));
+                                }
+                            }
+                            break;
+                            case REGION: {
+                                final String componentId = replaceTokens(actionDefinition.getValue());
+                                final RegionTable table = regionTable(componentId);
+                                final int[] part = regionPart(table, actionDefinition.getArguments());
+                                final Sampler mean = table.mean(part[0], part[1], part[2], part[3]);
+                                if (actionDefinition.getArguments().containsKey("r")) {
+                                    putVar(actionDefinition.getArguments().get("r"), new IntVar(mean.getR()));
+                                }
+                                if (actionDefinition.getArguments().containsKey("g")) {
+                                    putVar(actionDefinition.getArguments().get("g"), new IntVar(mean.getG()));
+                                }
+                                if (actionDefinition.getArguments().containsKey("b")) {
+                                    putVar(actionDefinition.getArguments().get("b"), new IntVar(mean.getB()));
+                                }
+                                // Any color name as an argument gets its share of the pixels
+                                for (RegionTable.Bin bin : RegionTable.Bin.values()) {
+                                    final String varName = actionDefinition.getArguments().get(bin.name().toLowerCase());
+                                    if (varName != null) {
+                                        putVar(varName, new IntVar(table.percent(bin, part[0], part[1], part[2], part[3])));
+                                    }
+                                }
+                            }
+                            break;
                             case SET: {
                                 String varName = actionDefinition.getVar();
                                 Var value = valueHandler(actionDefinition.getValue());
@@ -789,17 +894,31 @@ public class ScriptRunner {
                             case ADD: {
                                 String varName = actionDefinition.getVar();
                                 Var value = valueHandler(actionDefinition.getValue());
-                                Var orig = vars.get(varName);
-                                putVar(varName, orig.add(value));
+                                if (!vars.add(varName, value)) {
+                                    throw new RuntimeException("Cannot find variable: " + varName);
+                                }
+                                if (timers.containsKey(varName) && vars.get(varName).toInt() == 0) {
+                                    timers.get(varName).reset();
+                                }
                             }
                             break;
                             case MATH: {
                                 String varName = actionDefinition.getVar();
-                                VarInstance varInstance = vars.getVarInstance(varName);
-                                Var expr = valueHandler(actionDefinition.getValue());
-                                String expression = expr.toString();
-                                Var result = Mather.evaluate(expression, varInstance.getType());
-                                logStackTraceInfo(stateStack, " MATH: " + expression + " = " + result.toString());
+                                VarType varType = vars.getType(varName);
+                                final Expression expression = action.getExpression();
+                                final String text;
+                                final Var result;
+                                if (expression != null) {
+                                    text = expression.toString();
+                                    result = expression.evaluate(varType, vars);
+                                } else {
+                                    // A single variable holds the whole expression, Mather keeps the trees of the texts it has seen
+                                    text = valueHandler(actionDefinition.getValue()).toString();
+                                    result = Mather.evaluate(text, varType);
+                                }
+                                if (logger.isTraceEnabled()) {
+                                    logStackTraceInfo(stateStack, " MATH: " + text + " = " + result.toString());
+                                }
                                 putVar(varName, result);
                             }
                             break;
@@ -810,13 +929,9 @@ public class ScriptRunner {
                             break;
                             case GOTO: {
                                 logger.trace("Going to Label: " + actionDefinition.getValue());
-                                for (int i = 0; i < statementDefinition.getActions().size(); i++) {
-                                    ActionDefinition inspectAction = statementDefinition.getActions().get(i);
-                                    if (inspectAction.getType() == ActionType.LABEL && inspectAction.getValue().equals(actionDefinition.getValue())) {
-                                        // Set the program counter to this label's index, so it will be proceed next
-                                        programIndex = i;
-                                        break;
-                                    }
+                                if (action.getTarget() >= 0) {
+                                    // Set the program counter to this label's index, so it will be proceed next
+                                    programIndex = action.getTarget();
                                 }
                             }
                             break;
@@ -841,7 +956,9 @@ public class ScriptRunner {
                                 }
                                 int bound = max.toInt() - min.toInt();
                                 int newValue = SECURE_RANDOM.nextInt(bound);
-                                logStackTraceInfo(stateStack, "RANDOM(" + min.toString() + ", " + max.toString() + ") = " + (min.toInt() + newValue));
+                                if (logger.isTraceEnabled()) {
+                                    logStackTraceInfo(stateStack, "RANDOM(" + min.toString() + ", " + max.toString() + ") = " + (min.toInt() + newValue));
+                                }
                                 putVar(varName, new IntVar(min.toInt() + newValue));
                             }
                             break;
@@ -854,11 +971,7 @@ public class ScriptRunner {
                             case SLOW_UP:
                             case SWIPE_LEFT:
                             case SWIPE_RIGHT: {
-                                ComponentDefinition componentDefinition = components.get(replaceTokens(actionDefinition.getValue()));
-                                if (componentDefinition == null) {
-                                    logger.error("Cannot find component with id: " + actionDefinition.getValue());
-                                    throw new RuntimeException("Cannot find component with id: " + actionDefinition.getValue());
-                                }
+                                final ComponentDefinition componentDefinition = component(action);
                                 logger.trace("Performing Action " + actionDefinition.getType() + " For Component: " + componentDefinition.getComponentId());
                                 AdbUtils.component(deviceDefinition, componentDefinition, actionDefinition.getType(), shell, batchCmds || inBatch);
                             }
@@ -882,6 +995,8 @@ public class ScriptRunner {
                             case WAIT: {
                                 int time = valueHandler(actionDefinition.getValue()).toInt();
                                 if (time > 0) {
+                                    // Waits are timed from when the input finished, like they were before input was queued
+                                    shell.awaitInput();
                                     waitFor(time);
                                 } else if (time < 0) {
                                     logger.error("Invalid wait time: " + actionDefinition.getValue() + " = " + time);
@@ -895,7 +1010,7 @@ public class ScriptRunner {
                                 if (!callName.startsWith("@")) {
                                     throw new RuntimeException("All calls must start with a @: " + actionDefinition.getValue());
                                 }
-                                final ExecutableLink callDefinition = scriptEnvironment.getExecutableState(callName);
+                                final ExecutableLink callDefinition = action.getCall() != null ? action.getCall() : scriptEnvironment.getExecutableState(callName);
                                 final Map<String, String> callArguments = Maps.newHashMap();
                                 for (Map.Entry<String, String> entry : actionDefinition.getArguments().entrySet()) {
                                     callArguments.put(entry.getKey(), replaceTokens(entry.getValue()));
@@ -903,7 +1018,9 @@ public class ScriptRunner {
                                 stateStack.push(new ProcessingStateInfo(callDefinition.getLink()));
                                 final StateResult callResult = executeState(stateStack, callDefinition, imageWrapper, StateCallType.CALL, callArguments, batchCmds);
 
-                                logStackTraceInfo(callResult.getStack(), " " + callResult.toString());
+                                if (logger.isTraceEnabled()) {
+                                    logStackTraceInfo(callResult.getStack(), " " + callResult.toString());
+                                }
 
                                 stateStack.pop();
                                 vars.pop();
@@ -925,14 +1042,17 @@ public class ScriptRunner {
                             }
                             break;
                             case RETURN: {
+                                final StateResult stateResult = new StateResult(actionDefinition.getType(), actionDefinition, null, stateStack);
                                 if (!StringUtils.isEmpty(actionDefinition.getValue())) {
                                     stateResult.setResult(valueHandler(actionDefinition.getValue()));
                                 }
-                            } // Let it fall through
+                                return stateResult;
+                            }
                             case MOVE:
                             case REPEAT:
                             case STOP:
-                                return stateResult;
+                                // Only the actions that end the state need a result, it copies the whole stack
+                                return new StateResult(actionDefinition.getType(), actionDefinition, null, stateStack);
                         }
                     }
                 }
@@ -960,25 +1080,21 @@ public class ScriptRunner {
      * Look at the given text and replace any token with variables
      */
     private String replaceTokens(String text) {
-        if (text != null) {
-            int startIndex;
-            while ((startIndex = text.indexOf("${")) >= 0) {
-                int endIndex = text.indexOf('}', startIndex);
-                if (endIndex > startIndex + 2) {
-                    String varName = text.substring(startIndex + 2, endIndex).trim();
-                    if (varName.length() > 0) {
-                        if (vars.getVarInstance(varName) != null) {
-                            text = text.substring(0, startIndex) + vars.get(varName) + text.substring(endIndex + 1);
-                        } else {
-                            break;
-                        }
-                    }
-                } else {
-                    break;
-                }
+        if (text == null || text.indexOf('$') < 0) {
+            return text;
+        }
+        return tokenTemplate(text).render(vars, tokenBuilder);
+    }
+
+    private TokenTemplate tokenTemplate(final String value) {
+        TokenTemplate template = tokenTemplates.get(value);
+        if (template == null) {
+            template = TokenTemplate.parse(value);
+            if (tokenTemplates.size() < MAX_TOKEN_TEMPLATES) {
+                tokenTemplates.put(value, template);
             }
         }
-        return text;
+        return template;
     }
 
     /**
@@ -1019,17 +1135,15 @@ public class ScriptRunner {
     /**
      * Perform a condition check
      */
-    private boolean check(Stack<ProcessingStateInfo> stateStack, final ConditionDefinition conditionDefinition, ImageWrapper imageWrapper) {
-        if (conditionDefinition == null) return true;
+    private boolean check(Stack<ProcessingStateInfo> stateStack, final CompiledCondition condition, ImageWrapper imageWrapper) {
+        if (condition == null) return true;
+        final ConditionDefinition conditionDefinition = condition.getDefinition();
         boolean result = false;
         boolean checkAnd = true;
         boolean failure = false;
 
         try {
-            MDC.put("conditionDefinition.getVar()", conditionDefinition.getVar());
-            MDC.put("conditionDefinition.getValue()", conditionDefinition.getValue());
-            MDC.put("valueHandler(conditionDefinition.getValue())", valueHandler(conditionDefinition.getValue()).toString());
-            switch (conditionDefinition.getUsedCondition()) {
+            switch (condition.getType()) {
                 case BOOLEAN: {
                     result = "true".equalsIgnoreCase(conditionDefinition.getValue());
                 }
@@ -1061,7 +1175,7 @@ public class ScriptRunner {
                     if (!callName.startsWith("@")) {
                         throw new RuntimeException("All condition calls must start with a @: " + conditionDefinition.getValue());
                     }
-                    final ExecutableLink callDefinition = scriptEnvironment.getExecutableState(callName);
+                    final ExecutableLink callDefinition = condition.getCall() != null ? condition.getCall() : scriptEnvironment.getExecutableState(callName);
                     final Map<String, String> callArguments = Maps.newHashMap();
                     for (Map.Entry<String, String> entry : conditionDefinition.getArguments().entrySet()) {
                         callArguments.put(entry.getKey(), replaceTokens(entry.getValue()));
@@ -1070,7 +1184,9 @@ public class ScriptRunner {
                     final StateResult callResult = executeState(stateStack, callDefinition, imageWrapper, StateCallType.CONDITION, callArguments, false);
                     stateStack.pop();
 
-                    logStackTraceInfo(callResult.getStack(), " " + callResult.toString());
+                    if (logger.isTraceEnabled()) {
+                        logStackTraceInfo(callResult.getStack(), " " + callResult.toString());
+                    }
 
                     vars.pop();
                     if (callResult.getResult() == null) {
@@ -1079,10 +1195,19 @@ public class ScriptRunner {
                     result = callResult.getResult().toInt() == 1;
                 }
                 break;
+                case REGION: {
+                    result = region(replaceTokens(conditionDefinition.getValue()), conditionDefinition.getArguments());
+                }
+                break;
+                case FIND: {
+                    result = find(replaceTokens(conditionDefinition.getValue()), conditionDefinition.getArguments(), imageWrapper) != null;
+                }
+                break;
                 case SCREEN: {
-                    for (String value : conditionDefinition.getValues()) {
-                        Var screenValue = valueHandler(value);
-                        ScreenDefinition screenDefinition = screens.get(screenValue.toString());
+                    final ScreenDefinition[] resolved = condition.getScreens();
+                    final String[] dynamic = condition.getDynamicScreens();
+                    for (int i = 0; i < resolved.length; i++) {
+                        final ScreenDefinition screenDefinition = dynamic[i] != null ? screens.get(valueHandler(dynamic[i]).toString()) : resolved[i];
                         if (screenDefinition == null || !screenDefinition.isEnabled() || screenDefinition.getPoints() == null || screenDefinition.getPoints().isEmpty()) {
                             failure = true;
                             break;
@@ -1094,7 +1219,12 @@ public class ScriptRunner {
                                     logger.error("Cannot find screen with id: " + conditionDefinition.getValue());
                                     throw new RuntimeException("Cannot find screen with id: " + conditionDefinition.getValue());
                                 }
-                                result = SamplePoint.validate(screenDefinition.getPoints(), imageWrapper, false);
+                                ScreenMatcher matcher = screenMatchers.get(screenDefinition.getScreenId());
+                                if (matcher == null || matcher.getWidth() != imageWrapper.getWidth()) {
+                                    matcher = ScreenMatcher.compile(screenDefinition.getPoints(), imageWrapper);
+                                    screenMatchers.put(screenDefinition.getScreenId(), matcher);
+                                }
+                                result = matcher.matches(imageWrapper);
                             }
                         }
                         // On the first success, break out of the loop
@@ -1104,13 +1234,13 @@ public class ScriptRunner {
                 break;
             }
 
-            if (conditionDefinition.isReversed()) {
+            if (condition.isReversed()) {
                 result = !result;
             }
 
             // If we have a AND handle it
-            if (!failure && result && checkAnd && !conditionDefinition.getAnd().isEmpty()) {
-                for (ConditionDefinition sub : conditionDefinition.getAnd()) {
+            if (!failure && result && checkAnd && !condition.getAnd().isEmpty()) {
+                for (CompiledCondition sub : condition.getAnd()) {
                     if (!check(stateStack, sub, imageWrapper)) {
                         result = false;
                         break;
@@ -1123,9 +1253,9 @@ public class ScriptRunner {
             }
 
             // If we succeed, but have a ANDOR, check the ORs
-            if (result && !conditionDefinition.getAndOr().isEmpty()) {
+            if (result && !condition.getAndOr().isEmpty()) {
                 result = false; // force failure
-                for (ConditionDefinition sub : conditionDefinition.getAndOr()) {
+                for (CompiledCondition sub : condition.getAndOr()) {
                     if (check(stateStack, sub, imageWrapper)) {
                         result = true;
                         break;
@@ -1134,8 +1264,8 @@ public class ScriptRunner {
             }
 
             // If we failed, but have a OR, check the OR
-            if (!result && !conditionDefinition.getOr().isEmpty()) {
-                for (ConditionDefinition sub : conditionDefinition.getOr()) {
+            if (!result && !condition.getOr().isEmpty()) {
+                for (CompiledCondition sub : condition.getOr()) {
                     if (check(stateStack, sub, imageWrapper)) {
                         result = true;
                         break;
@@ -1145,12 +1275,172 @@ public class ScriptRunner {
         } catch (Throwable t) {
             logger.error(t.getMessage(), t);
             throw t;
-        } finally {
-            MDC.clear();
         }
         return result;
     }
 
+    /**
+     * The action's component, resolved while compiling unless a variable picks it
+     */
+    private ComponentDefinition component(final CompiledAction action) {
+        if (action.getComponent() != null) {
+            return action.getComponent();
+        }
+        final ActionDefinition actionDefinition = action.getDefinition();
+        final ComponentDefinition componentDefinition = components.get(replaceTokens(actionDefinition.getValue()));
+        if (componentDefinition == null) {
+            logger.error("Cannot find component with id: " + actionDefinition.getValue());
+            throw new RuntimeException("Cannot find component with id: " + actionDefinition.getValue());
+        }
+        return componentDefinition;
+    }
+
+    /**
+     * Look for a component's preview image in the current frame.  The x and y arguments name the variables that get the
+     * top left corner, -1 when it was not found.  The search covers the region argument's component, or the whole
+     * screen, and tolerance is the allowed average difference per pixel.
+     *
+     * @return null when the component was not found
+     */
+    private TemplateMatcher.Match find(final String componentId, final Map<String, String> arguments, final ImageWrapper imageWrapper) {
+        final TemplateMatcher template = template(componentId);
+
+        int left = 0, top = 0, width = Integer.MAX_VALUE, height = Integer.MAX_VALUE;
+        if (arguments.containsKey("region")) {
+            final String regionId = replaceTokens(arguments.get("region"));
+            final ComponentDefinition region = components.get(regionId);
+            if (region == null) {
+                logger.error("Cannot find component with id: " + regionId);
+                throw new RuntimeException("Cannot find component with id: " + regionId);
+            }
+            left = region.getX();
+            top = region.getY();
+            width = region.getW();
+            height = region.getH();
+        }
+        final int tolerance = arguments.containsKey("tolerance") ? valueHandler(arguments.get("tolerance")).toInt() : TemplateMatcher.DEFAULT_TOLERANCE;
+
+        // Scripts run against the helper's frame, only tools hand in an image of their own
+        final ImageWrapper frame = imageWrapper != null ? imageWrapper : currentFrame();
+        TemplateMatcher.Match match = null;
+        if (frame != null && frame.isReady()) {
+            match = template.find(frame, left, top, width, height);
+        }
+        if (match != null && !match.within(tolerance)) {
+            logger.trace("FIND " + componentId + " closest at " + match.getX() + "," + match.getY() + " scored " + match.getScore());
+            match = null;
+        }
+
+        if (arguments.containsKey("x")) {
+            putVar(arguments.get("x"), new IntVar(match != null ? match.getX() : -1));
+        }
+        if (arguments.containsKey("y")) {
+            putVar(arguments.get("y"), new IntVar(match != null ? match.getY() : -1));
+        }
+        return match;
+    }
+
+    /**
+     * Check a component's area of the current frame.  With a color argument at least min percent (50 by default) of
+     * the pixels must be that color, with an rgb argument ("r,g,b") the mean color must be within tolerance of it.
+     */
+    private boolean region(final String componentId, final Map<String, String> arguments) {
+        final RegionTable table = regionTable(componentId);
+        final int[] part = regionPart(table, arguments);
+        if (arguments.containsKey("color")) {
+            final RegionTable.Bin bin = RegionTable.Bin.valueOf(replaceTokens(arguments.get("color")).toUpperCase());
+            final int min = arguments.containsKey("min") ? valueHandler(arguments.get("min")).toInt() : 50;
+            return table.percent(bin, part[0], part[1], part[2], part[3]) >= min;
+        } else if (arguments.containsKey("rgb")) {
+            final String[] rgb = StringUtils.split(replaceTokens(arguments.get("rgb")), ",");
+            if (rgb.length != 3) {
+                throw new RuntimeException("REGION rgb must be r,g,b: " + arguments.get("rgb"));
+            }
+            final int tolerance = arguments.containsKey("tolerance") ? valueHandler(arguments.get("tolerance")).toInt() : REGION_TOLERANCE;
+            final Sampler mean = table.mean(part[0], part[1], part[2], part[3]);
+            return Math.abs(mean.getR() - Integer.parseInt(rgb[0].trim())) <= tolerance && Math.abs(mean.getG() - Integer.parseInt(rgb[1].trim())) <= tolerance && Math.abs(mean.getB() - Integer.parseInt(rgb[2].trim())) <= tolerance;
+        }
+        throw new RuntimeException("REGION conditions need a color or rgb argument");
+    }
+
+    /**
+     * The part of a region the from and to arguments select, as percentages along its longer side, like how far a bar
+     * is filled
+     *
+     * @return left, top, width and height inside the region
+     */
+    private int[] regionPart(final RegionTable table, final Map<String, String> arguments) {
+        final int from = arguments.containsKey("from") ? valueHandler(arguments.get("from")).toInt() : 0;
+        final int to = arguments.containsKey("to") ? valueHandler(arguments.get("to")).toInt() : 100;
+        if (table.getWidth() >= table.getHeight()) {
+            final int start = table.getWidth() * from / 100;
+            return new int[]{start, 0, table.getWidth() * to / 100 - start, table.getHeight()};
+        }
+        final int start = table.getHeight() * from / 100;
+        return new int[]{0, start, table.getWidth(), table.getHeight() * to / 100 - start};
+    }
+
+    /**
+     * Built on first use after each refresh, so checking several colors or parts of one region reads the frame once
+     */
+    private RegionTable regionTable(final String componentId) {
+        RegionTable table = regionTables.get(componentId);
+        if (table == null) {
+            final ComponentDefinition componentDefinition = components.get(componentId);
+            if (componentDefinition == null) {
+                logger.error("Cannot find component with id: " + componentId);
+                throw new RuntimeException("Cannot find component with id: " + componentId);
+            }
+            final ImageWrapper frame = currentFrame();
+            if (frame == null || !frame.isReady()) {
+                throw new RuntimeException("No screen available for REGION: " + componentId);
+            }
+            table = RegionTable.build(frame, componentDefinition.getX(), componentDefinition.getY(), componentDefinition.getW(), componentDefinition.getH());
+            regionTables.put(componentId, table);
+        }
+        return table;
+    }
+
+    /**
+     * The helper's frame for this refresh, a remote helper downloads it only the first time it is asked for
+     */
+    private ImageWrapper currentFrame() {
+        if (currentFrame == null) {
+            currentFrame = deviceHelper.download();
+        }
+        return currentFrame;
+    }
+
+    /**
+     * Let go of anything read from the last frame, before the helper captures the next one
+     */
+    private void frameChanged() {
+        if (currentFrame != null) {
+            currentFrame.release();
+            currentFrame = null;
+        }
+        regionTables.clear();
+    }
+
+    private TemplateMatcher template(final String componentId) {
+        TemplateMatcher template = templates.get(componentId);
+        if (template == null) {
+            final ComponentDefinition componentDefinition = components.get(componentId);
+            if (componentDefinition == null) {
+                logger.error("Cannot find component with id: " + componentId);
+                throw new RuntimeException("Cannot find component with id: " + componentId);
+            }
+            final ImageWrapper preview = PngImageWrapper.getPngImage(ComponentDefinition.getPreviewPath(viewDefinition.getViewId(), componentId));
+            if (preview == null || !preview.isReady()) {
+                logger.error("Local preview missing for component: " + componentId);
+                throw new RuntimeException("Local preview missing for component: " + componentId);
+            }
+            template = TemplateMatcher.compile(preview, componentDefinition.getX(), componentDefinition.getY(), componentDefinition.getW(), componentDefinition.getH());
+            templates.put(componentId, template);
+        }
+        return template;
+    }
+
     public List<VarDefinition> getVariables() {
         List<VarDefinition> vars = Lists.newArrayList();
         for (VarDefinition varDefinition : scriptEnvironment.getVarDefinitions().values()) {
@@ -1175,11 +1465,15 @@ public class ScriptRunner {
         return vars;
     }
 
+    public ExecutionTrace getTrace() {
+        return trace;
+    }
+
     public Map<String, String> getStateVariables() {
         final Map<String, String> result = Maps.newHashMap();
-        final Map<String, VarInstance> stateVars = vars.GetStateVariables();
-        for (Map.Entry<String, VarInstance> entry : stateVars.entrySet()) {
-            result.put(entry.getKey(), entry.getValue().getVar().toString());
+        final Map<String, Var> stateVars = vars.GetStateVariables();
+        for (Map.Entry<String, Var> entry : stateVars.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().toString());
         }
         return result;
     }
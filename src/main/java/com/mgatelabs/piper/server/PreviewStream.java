@@ -0,0 +1,96 @@
+package com.mgatelabs.piper.server;
+
+import com.google.common.base.Charsets;
+import com.mgatelabs.piper.shared.helper.DeviceHelper;
+import com.mgatelabs.piper.shared.image.FrameEncoder;
+import com.mgatelabs.piper.shared.image.ImageWrapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A multipart MJPEG stream of the frames the running script already captured.  It only reads the helper's latest frame,
+ * so it never asks the device for a screen of its own, and each frame is encoded once however often it is sent.
+ */
+public class PreviewStream implements StreamingOutput {
+
+    public static final String BOUNDARY = "frame";
+    public static final String CONTENT_TYPE = "multipart/x-mixed-replace; boundary=" + BOUNDARY;
+
+    public static final int DEFAULT_FPS = 4;
+    public static final int MAX_FPS = 15;
+    public static final int DEFAULT_SCALE = 2;
+
+    // Send the last frame again after this long, a closed browser tab only shows up as a failed write
+    private static final long KEEP_ALIVE_MILLIS = 5000;
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final DeviceHelper deviceHelper;
+    private final FrameEncoder encoder;
+    private final long interval;
+
+    public PreviewStream(DeviceHelper deviceHelper, FrameEncoder encoder, int fps) {
+        this.deviceHelper = deviceHelper;
+        this.encoder = encoder;
+        this.interval = 1000 / Math.max(1, Math.min(MAX_FPS, fps));
+    }
+
+    @Override
+    public void write(OutputStream outputStream) throws IOException {
+        // Only compared by identity, each new frame gets a new wrapper
+        ImageWrapper lastFrame = null;
+        byte[] lastImage = null;
+        boolean fresh = false;
+        long lastSent = 0;
+
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                final long started = System.currentTimeMillis();
+
+                final ImageWrapper frame = deviceHelper.latestFrame();
+                if (frame != null) {
+                    try {
+                        if (frame != lastFrame && frame.isReady()) {
+                            final byte[] image = encoder.encode(frame);
+                            if (image != null) {
+                                lastImage = image;
+                                fresh = true;
+                            }
+                        }
+                        lastFrame = frame;
+                    } finally {
+                        frame.release();
+                    }
+                }
+
+                if (lastImage != null && (fresh || started - lastSent >= KEEP_ALIVE_MILLIS)) {
+                    writePart(outputStream, lastImage);
+                    fresh = false;
+                    lastSent = started;
+                }
+
+                final long remaining = interval - (System.currentTimeMillis() - started);
+                if (remaining > 0) {
+                    Thread.sleep(remaining);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            // The viewer went away
+            logger.debug("Preview stream closed: " + e.getMessage());
+        }
+    }
+
+    private void writePart(OutputStream outputStream, byte[] image) throws IOException {
+        final String header = "--" + BOUNDARY + "\r\nContent-Type: " + encoder.getFormat().getContentType() + "\r\nContent-Length: " + image.length + "\r\n\r\n";
+        outputStream.write(header.getBytes(Charsets.US_ASCII));
+        outputStream.write(image);
+        outputStream.write("\r\n".getBytes(Charsets.US_ASCII));
+        outputStream.flush();
+    }
+}
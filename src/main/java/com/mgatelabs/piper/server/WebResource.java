@@ -12,6 +12,7 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.io.Resources;
 import com.mgatelabs.piper.Runner;
+import com.mgatelabs.piper.runners.ExecutionTrace;
 import com.mgatelabs.piper.runners.ScriptRunner;
 import com.mgatelabs.piper.server.actions.CacheScreenAction;
 import com.mgatelabs.piper.server.actions.EditActionInterface;
@@ -36,9 +37,11 @@ import com.mgatelabs.piper.server.entities.StatusResult;
 import com.mgatelabs.piper.server.entities.ValueResult;
 import com.mgatelabs.piper.shared.ScriptThread;
 import com.mgatelabs.piper.shared.details.ActionType;
+import com.mgatelabs.piper.shared.details.CaptureMode;
 import com.mgatelabs.piper.shared.details.ComponentDefinition;
 import com.mgatelabs.piper.shared.details.ConnectionDefinition;
 import com.mgatelabs.piper.shared.details.ExecutableLink;
+import com.mgatelabs.piper.shared.details.FrameStorage;
 import com.mgatelabs.piper.shared.details.ScreenDefinition;
 import com.mgatelabs.piper.shared.details.StateDefinition;
 import com.mgatelabs.piper.shared.details.StateType;
@@ -49,6 +52,7 @@ import com.mgatelabs.piper.shared.helper.Closer;
 import com.mgatelabs.piper.shared.helper.DeviceHelper;
 import com.mgatelabs.piper.shared.helper.LocalDeviceHelper;
 import com.mgatelabs.piper.shared.helper.RemoteDeviceHelper;
+import com.mgatelabs.piper.shared.image.FrameEncoder;
 import com.mgatelabs.piper.shared.image.ImageWrapper;
 import com.mgatelabs.piper.shared.util.AdbShell;
 import com.mgatelabs.piper.shared.util.AdbWrapper;
@@ -70,6 +74,7 @@ import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import java.io.File;
@@ -99,6 +104,9 @@ public class WebResource {
 
     private static EditHolder editHolder;
 
+    // Carried over to each new runner
+    private static boolean tracing;
+
     // These don't change
     private static ConnectionDefinition connectionDefinition;
     private static FrameChoices frameChoices;
@@ -429,6 +437,12 @@ public class WebResource {
 
         if (runner != null) {
             result.getVariables().addAll(runner.getVariables());
+            result.setUnchangedFrames(runner.getUnchangedFrames());
+        }
+
+        if (deviceHelper != null) {
+            result.setMatchCacheHits(deviceHelper.getMatchCacheHits());
+            result.setMatchCacheMisses(deviceHelper.getMatchCacheMisses());
         }
 
         final ImmutableList<ILoggingEvent> records = Loggers.webHandler.getEvents();
@@ -524,6 +538,7 @@ public class WebResource {
             adbWrapper = new AdbWrapper(connectionDefinition.getIp(), connectionDefinition.getAdbPort());
 
             runner = new ScriptRunner(connectionDefinition, deviceHelper, frameChoices.getScriptEnvironment(), frameChoices.getDeviceDefinition(), frameChoices.getViewDefinition(), adbWrapper);
+            runner.getTrace().setEnabled(tracing);
 
             if (VarStateDefinition.exists(frameChoices.getStateNameOrDefault())) {
                 VarStateDefinition varStateDefinition = VarStateDefinition.read(frameChoices.getStateNameOrDefault());
@@ -572,6 +587,22 @@ public class WebResource {
                             if (StringUtils.isNotBlank(value)) {
                                 tempConnection.setHelperPort(Integer.parseInt(value));
                             }
+                        } else if (field.equalsIgnoreCase("capture")) {
+                            if (StringUtils.isNotBlank(value)) {
+                                tempConnection.setCapture(CaptureMode.valueOf(value.toUpperCase()));
+                            }
+                        } else if (field.equalsIgnoreCase("pipeline")) {
+                            tempConnection.setPipelined(Boolean.parseBoolean(value));
+                        } else if (field.equalsIgnoreCase("compress")) {
+                            tempConnection.setCompress(Boolean.parseBoolean(value));
+                        } else if (field.equalsIgnoreCase("async")) {
+                            tempConnection.setAsyncInput(Boolean.parseBoolean(value));
+                        } else if (field.equalsIgnoreCase("tree")) {
+                            tempConnection.setScreenTree(Boolean.parseBoolean(value));
+                        } else if (field.equalsIgnoreCase("frames")) {
+                            if (StringUtils.isNotBlank(value)) {
+                                tempConnection.setFrames(FrameStorage.valueOf(value.toUpperCase()));
+                            }
                         }
                     }
                 } else {
@@ -675,6 +706,9 @@ public class WebResource {
 
             adbDevices();
 
+            if (adbWrapper != null) {
+                adbWrapper.shutdown();
+            }
             adbWrapper = new AdbWrapper(connectionDefinition.getIp(), connectionDefinition.getAdbPort());
 
             editHolder = new EditHolder(frameChoices.getScriptEnvironment(), frameChoices.getMapDefinition(), frameChoices.getDeviceDefinition(), frameChoices.getViewDefinition(), connectionDefinition, adbWrapper, deviceHelper);
@@ -771,6 +805,29 @@ public class WebResource {
         return result;
     }
 
+    @POST
+    @Path("/process/trace/{enabled}")
+    @Produces("application/json")
+    public synchronized Map<String, String> setTrace(@PathParam("enabled") boolean enabled) {
+        tracing = enabled;
+        if (runner != null) {
+            runner.getTrace().setEnabled(enabled);
+        }
+        Map<String, String> result = Maps.newHashMap();
+        result.put("status", "ok");
+        return result;
+    }
+
+    @GET
+    @Path("/process/trace")
+    @Produces(MediaType.APPLICATION_JSON)
+    public synchronized List<ExecutionTrace.Entry> trace() {
+        if (runner != null) {
+            return runner.getTrace().snapshot();
+        }
+        return ImmutableList.of();
+    }
+
     @GET
     @Path("/process/info")
     @Consumes("application/json")
@@ -1030,20 +1087,29 @@ public class WebResource {
 
     @GET
     @Path("/screen")
-    public Response screen() {
+    public Response screen(@QueryParam("format") String format, @QueryParam("quality") String quality, @QueryParam("compression") String compression, @QueryParam("scale") String scale) {
         try {
             checkInitialState();
+            final FrameEncoder encoder = new FrameEncoder(
+                    StringUtils.isNotBlank(format) ? FrameEncoder.Format.valueOf(format.toUpperCase()) : FrameEncoder.Format.PNG,
+                    StringUtils.isNotBlank(quality) ? Integer.parseInt(quality) : FrameEncoder.DEFAULT_QUALITY,
+                    StringUtils.isNotBlank(compression) ? Integer.parseInt(compression) : FrameEncoder.FAST_COMPRESSION,
+                    StringUtils.isNotBlank(scale) ? Integer.parseInt(scale) : 1);
             if (frameChoices != null) {
                 // Save the Image
                 deviceHelper.refresh(adbWrapper);
                 // Get the Image
                 ImageWrapper wrapper = deviceHelper.download();
 
-                if (wrapper.isReady()) {
-                    byte[] stream = wrapper.outputPng();
-                    if (stream != null) {
-                        return Response.status(200).header("content-type", "image/png").entity(stream).build();
+                try {
+                    if (wrapper.isReady()) {
+                        byte[] stream = encoder.encode(wrapper);
+                        if (stream != null) {
+                            return Response.status(200).header("content-type", encoder.getFormat().getContentType()).entity(stream).build();
+                        }
                     }
+                } finally {
+                    wrapper.release();
                 }
             }
         } catch (Exception ex) {
@@ -1052,6 +1118,25 @@ public class WebResource {
         return Response.status(500).build();
     }
 
+    /**
+     * Live MJPEG view of the frames the script captures, it adds no captures of its own
+     */
+    @GET
+    @Path("/screen/stream")
+    public Response screenStream(@QueryParam("fps") String fps, @QueryParam("quality") String quality, @QueryParam("scale") String scale) {
+        checkInitialState();
+        if (deviceHelper == null) {
+            return Response.status(404).build();
+        }
+        final FrameEncoder encoder = new FrameEncoder(
+                FrameEncoder.Format.JPEG,
+                StringUtils.isNotBlank(quality) ? Integer.parseInt(quality) : FrameEncoder.DEFAULT_QUALITY,
+                FrameEncoder.DEFAULT_COMPRESSION,
+                StringUtils.isNotBlank(scale) ? Integer.parseInt(scale) : PreviewStream.DEFAULT_SCALE);
+        final PreviewStream stream = new PreviewStream(deviceHelper, encoder, StringUtils.isNotBlank(fps) ? Integer.parseInt(fps) : PreviewStream.DEFAULT_FPS);
+        return Response.status(200).header("content-type", PreviewStream.CONTENT_TYPE).header("cache-control", "no-cache").entity(stream).build();
+    }
+
     @GET
     @Path("/resource/{filename}")
     public Response resource(@PathParam("filename") String path) {
@@ -3,7 +3,7 @@ package com.mgatelabs.piper.server.actions;
 import com.mgatelabs.piper.server.EditHolder;
 import com.mgatelabs.piper.shared.details.ScreenDefinition;
 import com.mgatelabs.piper.shared.image.ImageWrapper;
-import com.mgatelabs.piper.shared.image.SamplePoint;
+import com.mgatelabs.piper.shared.image.ScreenMatcher;
 import com.mgatelabs.piper.shared.util.AdbUtils;
 
 /**
@@ -17,14 +17,20 @@ public class LiveVerifyScreenAction implements EditActionInterface {
         holder.getDeviceHelper().refresh(holder.getShell());
         ImageWrapper wrapper = holder.getDeviceHelper().download();
         //ImageWrapper wrapper = AdbUtils.getScreen();
-        if (wrapper != null && wrapper.isReady()) {
-            if (SamplePoint.validate(screenDefinition.getPoints(), wrapper, false)) {
-                return ("Validation: Success");
+        try {
+            if (wrapper != null && wrapper.isReady()) {
+                if (ScreenMatcher.compile(screenDefinition.getPoints(), wrapper).matches(wrapper)) {
+                    return ("Validation: Success");
+                } else {
+                    return ("Validation: Failed");
+                }
             } else {
-                return ("Validation: Failed");
+                return ("Could not obtain image from helper, is ADB connected and the helper running?");
+            }
+        } finally {
+            if (wrapper != null) {
+                wrapper.release();
             }
-        } else {
-            return ("Could not obtain image from helper, is ADB connected and the helper running?");
         }
     }
 }
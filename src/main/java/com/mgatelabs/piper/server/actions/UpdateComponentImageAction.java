@@ -22,16 +22,22 @@ public class UpdateComponentImageAction implements EditActionInterface {
         if (componentDefinition == null) return "Could not find component with id: " + id;
         holder.getDeviceHelper().refresh(holder.getShell());
         ImageWrapper wrapper = holder.getDeviceHelper().download();
-        if (wrapper != null && wrapper.isReady()) {
-            File previewPath = ComponentDefinition.getPreviewPath(holder.getViewDefinition().getViewId(), componentDefinition.getComponentId());
-            if (!wrapper.savePng(previewPath)) {
-                logger.error("Failed to update component image");
-                return ("Failed to update component image");
+        try {
+            if (wrapper != null && wrapper.isReady()) {
+                File previewPath = ComponentDefinition.getPreviewPath(holder.getViewDefinition().getViewId(), componentDefinition.getComponentId());
+                if (!wrapper.savePng(previewPath)) {
+                    logger.error("Failed to update component image");
+                    return ("Failed to update component image");
+                } else {
+                    return ("Component image updated");
+                }
             } else {
-                return ("Component image updated");
+                return ("Could not obtain image from helper, is ADB connected and the helper running?");
+            }
+        } finally {
+            if (wrapper != null) {
+                wrapper.release();
             }
-        } else {
-            return ("Could not obtain image from helper, is ADB connected and the helper running?");
         }
     }
 }
\ No newline at end of file
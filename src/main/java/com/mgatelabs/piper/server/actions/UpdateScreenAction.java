@@ -20,16 +20,22 @@ public class UpdateScreenAction implements EditActionInterface {
         if (screenDefinition == null) return "Could not find screen with id: " + id;
         holder.getDeviceHelper().refresh(holder.getShell());
         ImageWrapper wrapper = holder.getDeviceHelper().download();
-        if (wrapper != null && wrapper.isReady()) {
-            File previewPath = ScreenDefinition.getPreviewPath(holder.getViewDefinition().getViewId(), screenDefinition.getScreenId());
-            if (!wrapper.savePng(previewPath)) {
-                return ("Failed to update screen image");
+        try {
+            if (wrapper != null && wrapper.isReady()) {
+                File previewPath = ScreenDefinition.getPreviewPath(holder.getViewDefinition().getViewId(), screenDefinition.getScreenId());
+                if (!wrapper.savePng(previewPath)) {
+                    return ("Failed to update screen image");
+                } else {
+                    previousPreviewImage = previewPath;
+                    return ("Screen image updated");
+                }
             } else {
-                previousPreviewImage = previewPath;
-                return ("Screen image updated");
+                return ("Could not obtain image from helper, is ADB connected and the helper running?");
+            }
+        } finally {
+            if (wrapper != null) {
+                wrapper.release();
             }
-        } else {
-            return ("Could not obtain image from helper, is ADB connected and the helper running?");
         }
     }
 }
@@ -4,7 +4,7 @@ import com.mgatelabs.piper.server.EditHolder;
 import com.mgatelabs.piper.shared.details.ScreenDefinition;
 import com.mgatelabs.piper.shared.image.ImageWrapper;
 import com.mgatelabs.piper.shared.image.PngImageWrapper;
-import com.mgatelabs.piper.shared.image.SamplePoint;
+import com.mgatelabs.piper.shared.image.ScreenMatcher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -27,7 +27,7 @@ public class VerifyScreenAction implements EditActionInterface {
         ImageWrapper wrapper = PngImageWrapper.getPngImage(previewPath);
 
         if (wrapper != null && wrapper.isReady()) {
-            if (SamplePoint.validate(screenDefinition.getPoints(), wrapper, false)) {
+            if (ScreenMatcher.compile(screenDefinition.getPoints(), wrapper).matches(wrapper)) {
                 return ("Validation: Success");
             } else {
                 return ("Validation: Failed");
@@ -28,6 +28,10 @@ public class StatusResult {
 
     private List<VarDefinition> variables;
 
+    private int unchangedFrames;
+    private long matchCacheHits;
+    private long matchCacheMisses;
+
     public StatusResult() {
         logs = Lists.newArrayList();
         variables = Lists.newArrayList();
@@ -64,4 +68,28 @@ public class StatusResult {
     public void setVariables(List<VarDefinition> variables) {
         this.variables = variables;
     }
+
+    public int getUnchangedFrames() {
+        return unchangedFrames;
+    }
+
+    public void setUnchangedFrames(int unchangedFrames) {
+        this.unchangedFrames = unchangedFrames;
+    }
+
+    public long getMatchCacheHits() {
+        return matchCacheHits;
+    }
+
+    public void setMatchCacheHits(long matchCacheHits) {
+        this.matchCacheHits = matchCacheHits;
+    }
+
+    public long getMatchCacheMisses() {
+        return matchCacheMisses;
+    }
+
+    public void setMatchCacheMisses(long matchCacheMisses) {
+        this.matchCacheMisses = matchCacheMisses;
+    }
 }
@@ -157,6 +157,10 @@ public class ActionDefinition {
                 return "SOFT REPEAT";
             case PIXEL:
                 return "PIXEL";
+            case FIND:
+                return "Find: " + value;
+            case REGION:
+                return "Region: " + value;
             case COMPONENT:
                 return "COMPONENT";
             case RANDOM:
@@ -18,6 +18,8 @@ public enum ActionType {
     DATE(ActionValueType.NONE, false, true, true, true), // Swipe
     TIME(ActionValueType.NONE, false, true, true, true), // Swipe
     PIXEL(ActionValueType.NONE, false, true, true, true), // Swipe
+    FIND(ActionValueType.COMPONENT_ID, false, true, true, true), // Locate a component's image on screen
+    REGION(ActionValueType.COMPONENT_ID, false, true, true, true), // Mean color and color shares of a component's area
     REPEAT(ActionValueType.NONE, false, true, false, false),
     RETURN(ActionValueType.NONE, false, false, true, true),
     CONTINUE(ActionValueType.NONE, false, true, true, true),
@@ -0,0 +1,19 @@
+package com.mgatelabs.piper.shared.details;
+
+/**
+ * How the local helper pulls frames from the device.
+ */
+public enum CaptureMode {
+    /**
+     * screencap to /mnt/sdcard, then pull the file
+     */
+    PULL,
+    /**
+     * Stream the screencap output straight back over the shell
+     */
+    STREAM,
+    /**
+     * Only read the row bands the current state samples, full frames are fetched on demand
+     */
+    SPARSE
+}
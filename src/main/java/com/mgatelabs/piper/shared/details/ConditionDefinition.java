@@ -261,6 +261,14 @@ public class ConditionDefinition {
                 stringBuilder.append(definition.getNot() != null ? !booleanValue : booleanValue);
             }
             break;
+            case FIND: {
+                stringBuilder.append(definition.getNot() != null ? "!" : "").append("find('").append(definition.getValue()).append("')");
+            }
+            break;
+            case REGION: {
+                stringBuilder.append(definition.getNot() != null ? "!" : "").append("region('").append(definition.getValue()).append("')");
+            }
+            break;
         }
 
         return stringBuilder.toString();
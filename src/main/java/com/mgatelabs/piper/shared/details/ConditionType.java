@@ -9,7 +9,9 @@ public enum ConditionType {
     GREATER(false),
     LESS(false),
     EQUAL(false),
-    CALL(false);
+    CALL(false),
+    FIND(false),
+    REGION(false);
 
     private boolean splitValue;
 
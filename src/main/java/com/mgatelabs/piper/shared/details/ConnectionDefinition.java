@@ -16,6 +16,12 @@ public class ConnectionDefinition {
     private boolean wifi;
     private int throttle = 250;
     private boolean useHelper;
+    private CaptureMode capture = CaptureMode.PULL;
+    private boolean pipelined;
+    private boolean compress;
+    private boolean asyncInput;
+    private boolean screenTree;
+    private FrameStorage frames = FrameStorage.HEAP;
 
     public ConnectionDefinition() {
 
@@ -85,6 +91,54 @@ public class ConnectionDefinition {
         this.useHelper = useHelper;
     }
 
+    public CaptureMode getCapture() {
+        return capture;
+    }
+
+    public void setCapture(CaptureMode capture) {
+        this.capture = capture;
+    }
+
+    public boolean isPipelined() {
+        return pipelined;
+    }
+
+    public void setPipelined(boolean pipelined) {
+        this.pipelined = pipelined;
+    }
+
+    public boolean isCompress() {
+        return compress;
+    }
+
+    public void setCompress(boolean compress) {
+        this.compress = compress;
+    }
+
+    public boolean isAsyncInput() {
+        return asyncInput;
+    }
+
+    public void setAsyncInput(boolean asyncInput) {
+        this.asyncInput = asyncInput;
+    }
+
+    public boolean isScreenTree() {
+        return screenTree;
+    }
+
+    public void setScreenTree(boolean screenTree) {
+        this.screenTree = screenTree;
+    }
+
+    public FrameStorage getFrames() {
+        return frames;
+    }
+
+    public void setFrames(FrameStorage frames) {
+        this.frames = frames;
+    }
+
     public void push() {
         if (StringUtils.isNotBlank(adb)) {
             AdbShell.ADB_PATH = adb;
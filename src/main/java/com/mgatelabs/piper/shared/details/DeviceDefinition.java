@@ -5,6 +5,7 @@ import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.mgatelabs.piper.Runner;
+import com.mgatelabs.piper.shared.image.RawImageWrapper;
 import com.mgatelabs.piper.shared.util.JsonTool;
 
 import java.io.File;
@@ -23,6 +24,13 @@ public class DeviceDefinition {
     private int height;
     private int viewWidth;
     private int viewHeight;
+    private InputMode inputMode;
+    // The /dev/input node of the touchscreen, found with getevent when blank
+    private String touchDevice;
+    // Degrees the screen is turned from the touchscreen's natural orientation
+    private int touchRotation;
+    // Byte layout of the device's screencap frames
+    private RawImageWrapper.ImageFormats pixelFormat;
 
     public DeviceDefinition() {
     }
@@ -33,6 +41,8 @@ public class DeviceDefinition {
         width = 1024;
         height = 1024;
         viewId = "";
+        inputMode = InputMode.INPUT;
+        pixelFormat = RawImageWrapper.ImageFormats.RGBA;
     }
 
     public String getDeviceId() {
@@ -91,6 +101,38 @@ public class DeviceDefinition {
         this.viewHeight = viewHeight;
     }
 
+    public InputMode getInputMode() {
+        return inputMode;
+    }
+
+    public void setInputMode(InputMode inputMode) {
+        this.inputMode = inputMode;
+    }
+
+    public String getTouchDevice() {
+        return touchDevice;
+    }
+
+    public void setTouchDevice(String touchDevice) {
+        this.touchDevice = touchDevice;
+    }
+
+    public int getTouchRotation() {
+        return touchRotation;
+    }
+
+    public void setTouchRotation(int touchRotation) {
+        this.touchRotation = touchRotation;
+    }
+
+    public RawImageWrapper.ImageFormats getPixelFormat() {
+        return pixelFormat;
+    }
+
+    public void setPixelFormat(RawImageWrapper.ImageFormats pixelFormat) {
+        this.pixelFormat = pixelFormat;
+    }
+
     public String getAdbEndLine() {
         return adbEndLine;
     }
@@ -126,6 +168,14 @@ public class DeviceDefinition {
                     deviceDefinition.setViewHeight(deviceDefinition.height);
                 }
 
+                if (deviceDefinition.getInputMode() == null) {
+                    deviceDefinition.setInputMode(InputMode.INPUT);
+                }
+
+                if (deviceDefinition.getPixelFormat() == null) {
+                    deviceDefinition.setPixelFormat(RawImageWrapper.ImageFormats.RGBA);
+                }
+
                 return deviceDefinition;
             } catch (JsonParseException e) {
                 e.printStackTrace();
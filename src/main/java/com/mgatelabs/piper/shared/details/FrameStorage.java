@@ -0,0 +1,19 @@
+package com.mgatelabs.piper.shared.details;
+
+/**
+ * Where the local helper keeps captured frames.
+ */
+public enum FrameStorage {
+    /**
+     * Plain byte arrays on the Java heap
+     */
+    HEAP,
+    /**
+     * Direct buffers outside the heap, the garbage collector never copies or scans them
+     */
+    DIRECT,
+    /**
+     * Regions of the helper's temp file mapped into memory, the OS can page idle frames out
+     */
+    MAPPED
+}
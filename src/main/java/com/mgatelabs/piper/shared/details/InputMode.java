@@ -0,0 +1,15 @@
+package com.mgatelabs.piper.shared.details;
+
+/**
+ * How taps and swipes reach the device.
+ */
+public enum InputMode {
+    /**
+     * The stock input command, starts a VM on the device for every tap
+     */
+    INPUT,
+    /**
+     * Raw touch events written to the touchscreen with sendevent over the shell session
+     */
+    SENDEVENT
+}
@@ -0,0 +1,121 @@
+package com.mgatelabs.piper.shared.helper;
+
+import com.mgatelabs.piper.shared.util.AdbWrapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Keeps capturing frames on its own thread so the next frame is already on its way while the script works on the
+ * current one.  The newest frame sits in a single slot that the runner swaps out, older frames are dropped.
+ * The thread shuts itself down once nobody has asked for a frame in a while.
+ */
+class CapturePipeline implements Runnable {
+
+    private static final long IDLE_TIMEOUT = TimeUnit.SECONDS.toNanos(2);
+    private static final long TAKE_TIMEOUT = TimeUnit.SECONDS.toNanos(5);
+    private static final long FAILURE_BACKOFF = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final LocalDeviceHelper helper;
+    private final AdbWrapper shell;
+    // The state sparse frames are captured for, null for full frames
+    private final String stateId;
+    // Only this pipeline uses the file, a stopped one may still be finishing a capture into its own
+    private final String sparseFile;
+    private final AtomicReference<CapturedFrame> ready;
+
+    private volatile boolean running;
+    private volatile long lastTake;
+
+    CapturePipeline(LocalDeviceHelper helper, AdbWrapper shell, String stateId, String sparseFile) {
+        this.helper = helper;
+        this.shell = shell;
+        this.stateId = stateId;
+        this.sparseFile = sparseFile;
+        this.ready = new AtomicReference<>();
+    }
+
+    void start() {
+        running = true;
+        lastTake = System.nanoTime();
+        Thread thread = new Thread(this, "capture-pipeline");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void stop() {
+        running = false;
+    }
+
+    boolean isRunning() {
+        return running;
+    }
+
+    AdbWrapper getShell() {
+        return shell;
+    }
+
+    String getStateId() {
+        return stateId;
+    }
+
+    /**
+     * Wait for a frame whose capture started after notBefore, so the script never acts on a screen from before its
+     * last input.
+     *
+     * @return the frame, or null if the pipeline stopped or timed out and the caller should capture directly
+     */
+    CapturedFrame take(long notBefore) {
+        lastTake = System.nanoTime();
+        final long deadline = lastTake + TAKE_TIMEOUT;
+        while (running && System.nanoTime() < deadline) {
+            CapturedFrame frame = ready.getAndSet(null);
+            if (frame != null) {
+                if (frame.getStartTime() > notBefore) {
+                    return frame;
+                }
+                frame.release();
+            }
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        return null;
+    }
+
+    @Override
+    public void run() {
+        logger.debug("Capture pipeline started");
+        try {
+            while (running) {
+                if (System.nanoTime() - lastTake > IDLE_TIMEOUT) {
+                    break;
+                }
+                CapturedFrame frame = helper.capture(shell, stateId, sparseFile);
+                if (frame == null) {
+                    LockSupport.parkNanos(FAILURE_BACKOFF);
+                    continue;
+                }
+                CapturedFrame stale = ready.getAndSet(frame);
+                if (stale != null) {
+                    stale.release();
+                }
+            }
+        } catch (Exception ex) {
+            logger.error(ex.getMessage(), ex);
+        } finally {
+            running = false;
+            CapturedFrame left = ready.getAndSet(null);
+            if (left != null) {
+                left.release();
+            }
+            if (stateId != null) {
+                shell.exec("rm -f " + sparseFile);
+            }
+            logger.debug("Capture pipeline stopped");
+        }
+    }
+}
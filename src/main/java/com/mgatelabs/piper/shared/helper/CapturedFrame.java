@@ -0,0 +1,60 @@
+package com.mgatelabs.piper.shared.helper;
+
+import com.mgatelabs.piper.shared.image.FrameBuffer;
+import com.mgatelabs.piper.shared.image.RawImageWrapper;
+
+/**
+ * A frame that has been read from the device but not yet handed to the script
+ */
+class CapturedFrame {
+
+    private final FrameBuffer buffer;
+    private final int width;
+    private final int height;
+    private final RawImageWrapper.ImageFormats format;
+    private final String stateId;
+    private final long startTime;
+
+    CapturedFrame(FrameBuffer buffer, int width, int height, RawImageWrapper.ImageFormats format, String stateId, long startTime) {
+        this.buffer = buffer;
+        this.width = width;
+        this.height = height;
+        this.format = format;
+        this.stateId = stateId;
+        this.startTime = startTime;
+    }
+
+    FrameBuffer getBuffer() {
+        return buffer;
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    RawImageWrapper.ImageFormats getFormat() {
+        return format;
+    }
+
+    /**
+     * @return the state a sparse frame was captured for, null for a full frame
+     */
+    String getStateId() {
+        return stateId;
+    }
+
+    /**
+     * @return System.nanoTime() from just before the capture was requested
+     */
+    long getStartTime() {
+        return startTime;
+    }
+
+    void release() {
+        buffer.release();
+    }
+}
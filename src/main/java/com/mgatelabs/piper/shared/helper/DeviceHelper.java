@@ -10,6 +10,12 @@ import java.util.Set;
  * Created by @mgatelabs (Michael Fuller) on 8/21/2019 for Phone-Piper.
  */
 public interface DeviceHelper {
+
+    /**
+     * Returned by {@link #fingerprint(String)} when the helper cannot tell if the frame changed
+     */
+    long NO_FINGERPRINT = 0;
+
     boolean ready();
 
     String getIpAddress();
@@ -20,11 +26,35 @@ public interface DeviceHelper {
 
     Set<String> check(String menu);
 
+    /**
+     * A cheap hash of the last refreshed frame, as far as the given state can see it.  Two equal fingerprints for the
+     * same state mean check would return the same screens.
+     */
+    long fingerprint(String menu);
+
     int[] pixel(int offset);
 
+    /**
+     * The returned image may be backed by a pooled frame, call {@link ImageWrapper#release()} once done with it
+     */
     ImageWrapper download();
 
+    /**
+     * The last refreshed frame if the helper already holds all of it, this never goes back to the device.  Like
+     * {@link #download()} the caller must release it.
+     *
+     * @return null when no complete frame is on hand
+     */
+    ImageWrapper latestFrame();
+
     int getFailures();
 
+    /**
+     * Checks answered from the match cache since the last setup
+     */
+    long getMatchCacheHits();
+
+    long getMatchCacheMisses();
+
     boolean refresh(AdbWrapper shell);
 }
@@ -0,0 +1,149 @@
+package com.mgatelabs.piper.shared.helper;
+
+import com.google.common.collect.Lists;
+import com.mgatelabs.piper.shared.image.StateTransfer;
+
+import java.util.List;
+
+/**
+ * The rows of a framebuffer that a state actually samples, merged into a handful of bands so a sparse capture only
+ * needs to move those byte ranges off the device.
+ */
+public class FrameBands {
+
+    // Bands closer than this many rows are cheaper to read as one range
+    private static final int MERGE_GAP_ROWS = 16;
+    // Every band costs a couple of processes on the device
+    private static final int MAX_BANDS = 8;
+
+    private final int width;
+    private final int height;
+    private final int dataOffset;
+    private final int rowBytes;
+    private final int[] startRows;
+    private final int[] rowCounts;
+
+    private FrameBands(int width, int height, int dataOffset, int bpp, int[] startRows, int[] rowCounts) {
+        this.width = width;
+        this.height = height;
+        this.dataOffset = dataOffset;
+        this.rowBytes = width * bpp;
+        this.startRows = startRows;
+        this.rowCounts = rowCounts;
+    }
+
+    public static FrameBands build(StateTransfer stateTransfer, int width, int height, int dataOffset, int bpp) {
+        final int rowBytes = width * bpp;
+
+        List<int[]> bands = Lists.newArrayList();
+        int[] current = null;
+        for (int offset : offsets(stateTransfer, Math.min(bpp, 3))) {
+            final int row = (offset - dataOffset) / rowBytes;
+            if (row < 0 || row >= height) continue;
+            if (current != null && row <= current[1] + MERGE_GAP_ROWS) {
+                current[1] = Math.max(current[1], row);
+            } else {
+                current = new int[]{row, row};
+                bands.add(current);
+            }
+        }
+
+        // Too many bands, fold together the closest neighbours
+        while (bands.size() > MAX_BANDS) {
+            int closest = 0;
+            int closestGap = Integer.MAX_VALUE;
+            for (int i = 0; i < bands.size() - 1; i++) {
+                int gap = bands.get(i + 1)[0] - bands.get(i)[1];
+                if (gap < closestGap) {
+                    closestGap = gap;
+                    closest = i;
+                }
+            }
+            bands.get(closest)[1] = bands.get(closest + 1)[1];
+            bands.remove(closest + 1);
+        }
+
+        int[] startRows = new int[bands.size()];
+        int[] rowCounts = new int[bands.size()];
+        for (int i = 0; i < bands.size(); i++) {
+            startRows[i] = bands.get(i)[0];
+            rowCounts[i] = bands.get(i)[1] - bands.get(i)[0] + 1;
+        }
+
+        return new FrameBands(width, height, dataOffset, bpp, startRows, rowCounts);
+    }
+
+    /**
+     * The absolute offset of every point, from the state when it has them, else decoded from the skips
+     *
+     * @param sampleBytes how many bytes the skips assume each read takes
+     */
+    public static int[] offsets(StateTransfer stateTransfer, int sampleBytes) {
+        final List<PointTransfer> points = stateTransfer.getPoints();
+        if (stateTransfer.getOffsets() != null && stateTransfer.getOffsets().length == points.size()) {
+            return stateTransfer.getOffsets();
+        }
+        return absoluteOffsets(points, sampleBytes);
+    }
+
+    /**
+     * generateStateInfo stores the points as relative skips, this walks them back into absolute offsets
+     */
+    public static int[] absoluteOffsets(List<PointTransfer> points, int sampleBytes) {
+        int[] offsets = new int[points.size()];
+        int position = 0;
+        int last = 0;
+        for (int i = 0; i < offsets.length; i++) {
+            PointTransfer pointTransfer = points.get(i);
+            if (pointTransfer.getOffset() > 0) {
+                last = position + pointTransfer.getOffset();
+                position = last + sampleBytes;
+            }
+            offsets[i] = last;
+        }
+        return offsets;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getCount() {
+        return startRows.length;
+    }
+
+    public int getOffset(int band) {
+        return dataOffset + (startRows[band] * rowBytes);
+    }
+
+    public int getLength(int band) {
+        return rowCounts[band] * rowBytes;
+    }
+
+    public int getTotalBytes() {
+        int total = dataOffset;
+        for (int i = 0; i < startRows.length; i++) {
+            total += getLength(i);
+        }
+        return total;
+    }
+
+    /**
+     * Shell command that captures the screen to a device local file and then echos the header followed by every band
+     */
+    public String getCommand(String file) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("screencap ").append(file);
+        sb.append(" && head -c ").append(dataOffset).append(' ').append(file);
+        for (int i = 0; i < startRows.length; i++) {
+            // tail counts from 1
+            sb.append(" && tail -c +").append(getOffset(i) + 1).append(' ').append(file);
+            sb.append(" | head -c ").append(getLength(i));
+        }
+        return sb.toString();
+    }
+}
@@ -1,5 +1,6 @@
 package com.mgatelabs.piper.shared.helper;
 
+import com.mgatelabs.piper.shared.image.RawImageWrapper;
 import com.mgatelabs.piper.shared.image.StateTransfer;
 
 import java.util.Map;
@@ -12,6 +13,9 @@ public class InfoTransfer {
 
     private MapTransfer map;
 
+    // The format the offsets and colors were generated for, sent along so the phone helper can check its frames against it
+    private RawImageWrapper.ImageFormats format = RawImageWrapper.ImageFormats.RGBA;
+
     public Map<String, StateTransfer> getStates() {
         return states;
     }
@@ -27,4 +31,12 @@ public class InfoTransfer {
     public void setMap(MapTransfer map) {
         this.map = map;
     }
+
+    public RawImageWrapper.ImageFormats getFormat() {
+        return format;
+    }
+
+    public void setFormat(RawImageWrapper.ImageFormats format) {
+        this.format = format;
+    }
 }
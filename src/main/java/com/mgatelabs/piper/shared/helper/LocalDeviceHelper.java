@@ -1,13 +1,22 @@
 package com.mgatelabs.piper.shared.helper;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Sets;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
 import com.mgatelabs.piper.Runner;
 import com.mgatelabs.piper.runners.ScriptRunner;
+import com.mgatelabs.piper.shared.details.CaptureMode;
 import com.mgatelabs.piper.shared.details.ConnectionDefinition;
+import com.mgatelabs.piper.shared.details.FrameStorage;
+import com.mgatelabs.piper.shared.image.FrameBuffer;
+import com.mgatelabs.piper.shared.image.FrameBufferPool;
+import com.mgatelabs.piper.shared.image.BufferImageWrapper;
 import com.mgatelabs.piper.shared.image.ImageWrapper;
 import com.mgatelabs.piper.shared.image.RawImageWrapper;
 import com.mgatelabs.piper.shared.image.StateTransfer;
+import com.mgatelabs.piper.shared.util.AdbSession;
 import com.mgatelabs.piper.shared.util.AdbUtils;
 import com.mgatelabs.piper.shared.util.AdbWrapper;
 import org.slf4j.Logger;
@@ -16,14 +25,18 @@ import se.vidstige.jadb.JadbDevice;
 import se.vidstige.jadb.JadbException;
 import se.vidstige.jadb.RemoteFile;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
 
 /**
  * Created by @mgatelabs (Michael Fuller) on 8/21/2019 for Phone-Piper.
@@ -36,15 +49,37 @@ public class LocalDeviceHelper implements DeviceHelper {
     private InfoTransfer info;
     private int failures;
 
-    private File tempFile;
+    // Created for the configured frame storage
+    private FrameBufferPool pool;
+    // The frame the script is looking at, the helper holds one reference to it
+    private FrameBuffer frame;
+    private BufferImageWrapper frameWrapper;
+
+    // The pipeline thread builds these too
+    private final Map<String, FrameBands> bands = new ConcurrentHashMap<>();
+    private final Map<String, StateChecker> checkers = Maps.newHashMap();
+    // Sampled pixels of recent frames mapped to the screens they matched, the same screens keep coming back
+    private volatile Cache<SampleKey, Set<String>> matchCache = newMatchCache();
+    private volatile AdbWrapper lastShell;
+    private volatile String lastStateId;
+    private CapturePipeline capturePipeline;
+    // Numbers the device file of each pipeline
+    private int pipelines;
+    // When set, the current frame only holds the bands for this state
+    private String sparseStateId;
+    private volatile boolean sparseFailed;
+    private volatile boolean compressFailed;
+    private volatile boolean execFailed;
+    // Frames streamed through a pty come out the wrong size, those devices pull frames instead
+    private volatile boolean streamFailed;
+    // Bytes between the 12 byte header and the pixels, -1 until the first stream shows it
+    private volatile int streamHeaderExtra = -1;
+    // The format the script generated its points for, and the last wrong format a frame came in
+    private volatile RawImageWrapper.ImageFormats format = RawImageWrapper.ImageFormats.RGBA;
+    private RawImageWrapper.ImageFormats warnedFormat;
 
     public LocalDeviceHelper(ConnectionDefinition connectionDefinition) {
         this.connectionDefinition = connectionDefinition;
-        try {
-            this.tempFile = File.createTempFile("phonePiper", ".raw", Runner.WORKING_DIRECTORY);
-        } catch (IOException e) {
-            logger.error(e.getMessage());
-        }
     }
 
     @Override
@@ -65,126 +100,154 @@ public class LocalDeviceHelper implements DeviceHelper {
     @Override
     public boolean setup(InfoTransfer info) {
         this.info = info;
+        this.format = info.getFormat() != null ? info.getFormat() : RawImageWrapper.ImageFormats.RGBA;
+        this.bands.clear();
+        this.checkers.clear();
+        // The view may have changed, so nothing cached is trusted
+        this.matchCache = newMatchCache();
         return true;
     }
 
-    private byte[] readTemp() {
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+    @Override
+    public Set<String> check(String menu) {
 
-        FileInputStream fileInputStream = null;
+        lastStateId = menu;
 
-        try {
-            fileInputStream = new FileInputStream(tempFile);
-            byte[] temp = new byte[1024];
-            int len = 0;
-            while ((len = fileInputStream.read(temp, 0, 1024)) > 0) {
-                byteArrayOutputStream.write(temp, 0, len);
-            }
-        } catch (Exception ex) {
-            logger.error(ex.getMessage(), ex);
-            return new byte[0];
-        } finally {
-            Closer.close(byteArrayOutputStream);
-            Closer.close(fileInputStream);
+        // A sparse frame only holds the bands of the state it was captured for
+        if (sparseStateId != null && !sparseStateId.equals(menu) && lastShell != null) {
+            // The pipeline is still capturing for the old state, it is started again for this one on the next refresh
+            stopPipeline();
+            publish(sparseScreen(lastShell, menu, SPARSE_FILE));
         }
 
-        return byteArrayOutputStream.toByteArray();
-    }
+        ImageWrapper imageWrapper = acquireFrame();
 
-    @Override
-    public Set<String> check(String menu) {
-
-        ImageWrapper imageWrapper = download();
-
-        if (imageWrapper == null) {
+        // Nothing captured yet, or only the bands of another state, so there is nothing real to check
+        if (imageWrapper == EMPTY_FRAME || (sparseStateId != null && !sparseStateId.equals(menu))) {
+            imageWrapper.release();
             failures++;
             return null;
         }
 
-        int debugIndex = -1;
-        String debugName = menu;
-
         StateTransfer stateTransfer = info.getStates().get(menu);
 
         if (stateTransfer == null) {
+            imageWrapper.release();
             return ImmutableSet.of();
         }
 
-        ByteArrayInputStream fileInputStream = null;
-        boolean[] success = new boolean[stateTransfer.getScreenIds().size()];
-        for (int i = 0; i < success.length; i++) {
-            if (debugName.length() > 0 && stateTransfer.getScreenIds().get(i).equalsIgnoreCase(debugName)) {
-                debugIndex = i;
+        try {
+            final StateChecker checker = checker(menu, stateTransfer);
+            final ByteBuffer data = frameData(imageWrapper);
+            final byte[] samples = checker.sample(data);
+            if (samples == null) {
+                return checker.check(data);
             }
-            success[i] = true;
+            final SampleKey key = new SampleKey(menu, samples);
+            Set<String> result = matchCache.getIfPresent(key);
+            if (result == null) {
+                result = ImmutableSet.copyOf(checker.check(data));
+                matchCache.put(key, result);
+            }
+            return result;
+        } catch (Exception ex) {
+            logger.error(ex.getMessage(), ex);
+            failures++;
+            return ImmutableSet.of();
+        } finally {
+            imageWrapper.release();
         }
+    }
 
-        try {
-            fileInputStream = new ByteArrayInputStream(imageWrapper.getRaw());
+    private StateChecker checker(String menu, StateTransfer stateTransfer) {
+        StateChecker checker = checkers.get(menu);
+        if (checker == null) {
+            checker = StateChecker.compile(stateTransfer, format);
+            checkers.put(menu, checker);
+        }
+        return checker;
+    }
 
-            byte[] temp = new byte[3];
-            int len;
-            int remainingStates = success.length;
-            boolean sampleRead = false;
-            int extraRead = 0;
+    private static final int MATCH_CACHE_SIZE = 512;
 
-            for (PointTransfer pointTransfer : stateTransfer.getPoints()) {
+    private static Cache<SampleKey, Set<String>> newMatchCache() {
+        return CacheBuilder.newBuilder().maximumSize(MATCH_CACHE_SIZE).recordStats().build();
+    }
 
-                if (pointTransfer.getOffset() > 0) {
-                    fileInputStream.skip(pointTransfer.getOffset() + extraRead);
-                    sampleRead = false;
-                    extraRead = SAMPLE_SIZE;
+    @Override
+    public long getMatchCacheHits() {
+        return matchCache.stats().hitCount();
+    }
 
-                }
+    @Override
+    public long getMatchCacheMisses() {
+        return matchCache.stats().missCount();
+    }
 
-                if (!success[pointTransfer.getIndex()]) continue;
+    /**
+     * A state and the pixels it sampled from a frame
+     */
+    private static final class SampleKey {
+        private final String stateId;
+        private final byte[] samples;
+        private final int hash;
+
+        SampleKey(String stateId, byte[] samples) {
+            this.stateId = stateId;
+            this.samples = samples;
+            this.hash = 31 * stateId.hashCode() + Arrays.hashCode(samples);
+        }
 
-                if (!sampleRead) {
-                    len = fileInputStream.read(temp);
-                    if (len != SAMPLE_SIZE) {
-                        logger.error("Invalid byte read");
-                        break;
-                    }
-                    sampleRead = true;
-                    extraRead = 0;
-                }
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof SampleKey)) return false;
+            SampleKey other = (SampleKey) o;
+            return hash == other.hash && stateId.equals(other.stateId) && Arrays.equals(samples, other.samples);
+        }
 
-                success[pointTransfer.getIndex()] &= (within((0xff) & temp[0], (0xff) & pointTransfer.getA(), 6) && within((0xff) & temp[1], (0xff) & pointTransfer.getB(), 6) && within((0xff) & temp[2], (0xff) & pointTransfer.getC(), 6));
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
 
-                if (!success[pointTransfer.getIndex()]) {
-                    remainingStates--;
-                }
+    @Override
+    public long fingerprint(String menu) {
 
-                if (remainingStates <= 0) {
-                    break;
-                }
+        final StateTransfer stateTransfer = info != null ? info.getStates().get(menu) : null;
 
-                if (pointTransfer.getIndex() == debugIndex) {
-                    final boolean w1 = within((0xff) & temp[0], (0xff) & pointTransfer.getA(), 6);
-                    final boolean w2 = within((0xff) & temp[1], (0xff) & pointTransfer.getB(), 6);
-                    final boolean w3 = within((0xff) & temp[2], (0xff) & pointTransfer.getC(), 6);
-                }
-            }
-        } catch (Exception ex) {
-            logger.error(ex.getMessage(), ex);
-            failures++;
-            return ImmutableSet.of();
-        } finally {
-            Closer.close(fileInputStream);
+        // A sparse frame for another state would hash stale bytes
+        if (stateTransfer == null || stateTransfer.getPoints() == null || stateTransfer.getPoints().isEmpty() || (sparseStateId != null && !sparseStateId.equals(menu))) {
+            return NO_FINGERPRINT;
         }
 
-        Set<String> successSet = Sets.newHashSet();
-        for (int j = 0; j < success.length; j++) {
-            if (success[j]) {
-                successSet.add((stateTransfer.getScreenIds().get(j)));
+        final int[] offsets = checker(menu, stateTransfer).getOffsets();
+
+        ImageWrapper imageWrapper = acquireFrame();
+        try {
+            final ByteBuffer data = frameData(imageWrapper);
+            final int sampleBytes = frameFormat(imageWrapper).getSampleBytes();
+            // FNV-1a over every sampled pixel
+            long hash = 0xcbf29ce484222325L;
+            int last = -1;
+            for (int offset : offsets) {
+                if (offset == last) continue;
+                last = offset;
+                if (offset + sampleBytes > data.capacity()) {
+                    return NO_FINGERPRINT;
+                }
+                for (int i = 0; i < sampleBytes; i++) {
+                    hash ^= (0xff & data.get(offset + i));
+                    hash *= 0x100000001b3L;
+                }
             }
+            return hash == NO_FINGERPRINT ? 1 : hash;
+        } finally {
+            imageWrapper.release();
         }
-
-        return successSet;
     }
 
-    private static final int SAMPLE_SIZE = 3;
-
     public boolean within(int source, int test, int range) {
         int a = source - test;
         if (a < 0) a *= -1;
@@ -194,50 +257,102 @@ public class LocalDeviceHelper implements DeviceHelper {
     @Override
     public int[] pixel(int offset) {
 
-        ByteArrayInputStream fileInputStream = null;
+        fillSparseFrame();
 
-        try {
-            fileInputStream = new ByteArrayInputStream(lastImageDownload);
+        ImageWrapper imageWrapper = acquireFrame();
 
-            byte[] temp = new byte[3];
-            int len;
-
-            fileInputStream.skip(offset);
-            len = fileInputStream.read(temp);
-            if (len != 3) {
+        try {
+            final ByteBuffer data = frameData(imageWrapper);
+            // Decode with the format the frame came in, not the one the script expects
+            final RawImageWrapper.ImageFormats pixelFormat = frameFormat(imageWrapper);
+            if (offset < 0 || offset + pixelFormat.getBpp() > data.capacity()) {
                 throw new RuntimeException("Invalid byte read");
             }
-
-            return new int[]{(0xff & temp[0]), (0xff & temp[1]), (0xff & temp[2])};
-
+            final int color = pixelFormat.toArgb(data, offset);
+            return new int[]{(color >> 16) & 0xff, (color >> 8) & 0xff, color & 0xff};
         } catch (Exception ex) {
             logger.error(ex.getMessage(), ex);
             return new int[0];
         } finally {
-            Closer.close(fileInputStream);
+            imageWrapper.release();
         }
     }
 
+    /**
+     * The caller owns the returned image and must release it
+     */
     @Override
     public ImageWrapper download() {
+        fillSparseFrame();
+        return acquireFrame();
+    }
 
-        byte[] bytes = lastImageDownload;
+    /**
+     * Sparse frames only hold the bands of one state, so they are left out
+     */
+    @Override
+    public synchronized ImageWrapper latestFrame() {
+        if (frame == null || sparseStateId != null) {
+            return null;
+        }
+        frame.retain();
+        return frameWrapper;
+    }
 
-        if (bytes == null) {
-            bytes = new byte[0];
+    /**
+     * @return the current frame with a reference taken for the caller
+     */
+    private synchronized ImageWrapper acquireFrame() {
+        if (frame == null) {
+            return EMPTY_FRAME;
         }
+        frame.retain();
+        return frameWrapper;
+    }
 
-        int w, h;
-        if (bytes.length > 12) { // Sanity
-            ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
-            byteBuffer.order(ByteOrder.LITTLE_ENDIAN);
-            w = byteBuffer.getInt();
-            h = byteBuffer.getInt();
-        } else {
-            w = 0;
-            h = 0;
+    /**
+     * The bytes behind a frame from acquireFrame, read in place
+     */
+    private static ByteBuffer frameData(ImageWrapper imageWrapper) {
+        if (imageWrapper instanceof BufferImageWrapper) {
+            return ((BufferImageWrapper) imageWrapper).getBuffer();
+        }
+        return ByteBuffer.wrap(imageWrapper.getRaw());
+    }
+
+    private RawImageWrapper.ImageFormats frameFormat(ImageWrapper imageWrapper) {
+        if (imageWrapper instanceof BufferImageWrapper) {
+            return ((BufferImageWrapper) imageWrapper).getFormat();
+        } else if (imageWrapper instanceof RawImageWrapper) {
+            return ((RawImageWrapper) imageWrapper).getFormat();
+        }
+        return format;
+    }
+
+    private synchronized FrameBufferPool pool() {
+        final FrameStorage storage = connectionDefinition.getFrames() != null ? connectionDefinition.getFrames() : FrameStorage.HEAP;
+        if (pool == null || pool.getStorage() != storage) {
+            if (pool != null) {
+                // Frames from the old pool may still be out, it lets go of its memory when they come back
+                pool.close();
+            }
+            pool = new FrameBufferPool(storage, Runner.WORKING_DIRECTORY);
+        }
+        return pool;
+    }
+
+    /**
+     * Swap in a freshly captured frame, the previous one goes back to the pool once every reader is done with it
+     */
+    private synchronized void publish(CapturedFrame captured) {
+        if (captured == null) return;
+        final FrameBuffer previous = frame;
+        frame = captured.getBuffer();
+        frameWrapper = new BufferImageWrapper(captured.getWidth(), captured.getHeight(), captured.getFormat(), HEADER_SIZE, frame);
+        sparseStateId = captured.getStateId();
+        if (previous != null) {
+            previous.release();
         }
-        return new RawImageWrapper(w, h, RawImageWrapper.ImageFormats.RGBA, 12, bytes);
     }
 
     @Override
@@ -245,40 +360,420 @@ public class LocalDeviceHelper implements DeviceHelper {
         return failures;
     }
 
-    byte[] lastImageDownload = null;
-
     @Override
     public boolean refresh(AdbWrapper shell) {
 
         long startTime = System.nanoTime();
 
-        if (!AdbUtils.persistScreen(shell)) return false;
+        lastShell = shell;
+
+        CapturedFrame captured = null;
+        if (connectionDefinition.isPipelined()) {
+            captured = pipeline(shell).take(shell.getLastInputTime());
+        }
+        if (captured == null) {
+            captured = capture(shell, lastStateId, SPARSE_FILE);
+        }
+
+        if (captured == null) return false;
+
+        publish(captured);
+
+        long endTime = System.nanoTime();
+        long dif = endTime - startTime;
+
+        float lastImageDuration = ((float) dif / 1000000000.0f);
+        logger.debug("Helper Image Persisted in " + ScriptRunner.THREE_DECIMAL.format(lastImageDuration) + "s");
+
+        return true;
+    }
+
+    /**
+     * Grab a new frame using the configured capture mode, without making it the current frame
+     *
+     * @param stateId   the state a sparse capture is for
+     * @param sparseFile where a sparse capture keeps the frame on the device, each thread capturing needs its own
+     */
+    CapturedFrame capture(AdbWrapper shell, String stateId, String sparseFile) {
+        switch (connectionDefinition.getCapture()) {
+            case SPARSE:
+                return sparseScreen(shell, stateId, sparseFile);
+            case STREAM:
+                return streamFailed ? pullScreen(shell) : streamScreen(shell);
+            default:
+                return pullScreen(shell);
+        }
+    }
+
+    /**
+     * A sparse pipeline captures for one state, it is replaced when the script moves on to another
+     */
+    private synchronized CapturePipeline pipeline(AdbWrapper shell) {
+        final String stateId = connectionDefinition.getCapture() == CaptureMode.SPARSE ? lastStateId : null;
+        if (capturePipeline == null || !capturePipeline.isRunning() || capturePipeline.getShell() != shell || !Objects.equals(capturePipeline.getStateId(), stateId)) {
+            if (capturePipeline != null) {
+                capturePipeline.stop();
+            }
+            capturePipeline = new CapturePipeline(this, shell, stateId, PIPELINE_SPARSE_FILE + (++pipelines) + ".raw");
+            capturePipeline.start();
+        }
+        return capturePipeline;
+    }
+
+    private synchronized void stopPipeline() {
+        if (capturePipeline != null) {
+            capturePipeline.stop();
+            capturePipeline = null;
+        }
+    }
+
+    private CapturedFrame pullScreen(AdbWrapper shell) {
+
+        final long startTime = System.nanoTime();
+
+        if (!AdbUtils.persistScreen(shell)) return null;
 
         JadbDevice device = shell.connect();
 
-        if (device == null) return false;
+        if (device == null) return null;
 
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        FrameOutputStream frameOutputStream = new FrameOutputStream();
 
         try {
-            device.pull(new RemoteFile("/mnt/sdcard/framebuffer.raw"), byteArrayOutputStream);
-            lastImageDownload = byteArrayOutputStream.toByteArray();
+            device.pull(new RemoteFile("/mnt/sdcard/framebuffer.raw"), frameOutputStream);
+            if (!frameOutputStream.isComplete()) {
+                logger.error("Incomplete framebuffer download");
+                frameOutputStream.discard();
+                return null;
+            }
+            return new CapturedFrame(frameOutputStream.buffer, frameOutputStream.width, frameOutputStream.height, frameOutputStream.format, null, startTime);
         } catch (IOException e) {
             logger.error(e.getMessage());
             e.printStackTrace();
-            return false;
+            frameOutputStream.discard();
+            shell.invalidate();
+            return null;
         } catch (JadbException e) {
             logger.error(e.getMessage());
             e.printStackTrace();
-            return false;
+            frameOutputStream.discard();
+            shell.invalidate();
+            return null;
         }
+    }
 
-        long endTime = System.nanoTime();
-        long dif = endTime - startTime;
+    /**
+     * Reads the screencap output directly off the shell stream.  The header tells us the exact frame size, so the frame
+     * is read straight into a pooled buffer without touching the sdcard or growing an intermediate buffer.
+     */
+    private CapturedFrame streamScreen(AdbWrapper shell) {
 
-        float lastImageDuration = ((float) dif / 1000000000.0f);
-        logger.debug("Helper Image Persisted in " + ScriptRunner.THREE_DECIMAL.format(lastImageDuration) + "s");
+        final long startTime = System.nanoTime();
 
-        return true;
+        JadbDevice device = shell.connect();
+
+        if (device == null) return null;
+
+        InputStream inputStream = null;
+        FrameBuffer buffer = null;
+
+        try {
+            inputStream = openCapture(device, "screencap");
+
+            final byte[] header = new byte[HEADER_SIZE];
+            ByteStreams.readFully(inputStream, header);
+
+            ByteBuffer byteBuffer = ByteBuffer.wrap(header);
+            byteBuffer.order(ByteOrder.LITTLE_ENDIAN);
+            final int w = byteBuffer.getInt();
+            final int h = byteBuffer.getInt();
+            final RawImageWrapper.ImageFormats frameFormat = headerFormat(byteBuffer.getInt());
+
+            if (w <= 0 || h <= 0) {
+                logger.error("Invalid screencap header: " + w + "x" + h);
+                return null;
+            }
+
+            final int extra = streamHeaderExtra;
+            buffer = pool().acquire(w, h, frameFormat.getBpp(), HEADER_SIZE);
+            buffer.write(0, header, 0, HEADER_SIZE);
+            try {
+                if (extra > 0) {
+                    ByteStreams.skipFully(inputStream, extra);
+                }
+                buffer.readFully(inputStream, HEADER_SIZE, buffer.size() - HEADER_SIZE);
+            } catch (EOFException e) {
+                return streamMismatch(shell, e.getMessage());
+            }
+
+            final int trailing = remaining(inputStream, DATASPACE_SIZE + 1);
+            if (extra < 0 && trailing == DATASPACE_SIZE) {
+                // Android 9 and later send a dataspace word after the header, this frame read it as pixels
+                logger.debug("Screencap header has a dataspace word, skipping it from now on");
+                streamHeaderExtra = DATASPACE_SIZE;
+                Closer.close(inputStream);
+                return streamScreen(shell);
+            } else if (trailing != 0) {
+                // A pty turns every LF byte into CRLF, which shifts the frame without any error
+                return streamMismatch(shell, "more than " + (w * h * frameFormat.getBpp()) + " bytes of pixels");
+            } else if (extra < 0) {
+                streamHeaderExtra = 0;
+            }
+
+            final CapturedFrame captured = new CapturedFrame(buffer, w, h, frameFormat, null, startTime);
+            buffer = null;
+            return captured;
+        } catch (IOException e) {
+            logger.error(e.getMessage());
+            e.printStackTrace();
+            shell.invalidate();
+            return null;
+        } catch (JadbException e) {
+            logger.error(e.getMessage());
+            e.printStackTrace();
+            shell.invalidate();
+            return null;
+        } finally {
+            Closer.close(inputStream);
+            if (buffer != null) {
+                buffer.release();
+            }
+        }
+    }
+
+    /**
+     * Bytes left in the stream, counting stops at the limit
+     */
+    private static int remaining(InputStream inputStream, int limit) throws IOException {
+        final byte[] temp = new byte[limit];
+        int count = 0;
+        int len;
+        while (count < limit && (len = inputStream.read(temp, count, limit - count)) > 0) {
+            count += len;
+        }
+        return count;
+    }
+
+    private CapturedFrame streamMismatch(AdbWrapper shell, String reason) {
+        logger.warn("Streamed frame has the wrong size (" + reason + "), falling back to pulling frames");
+        streamFailed = true;
+        return pullScreen(shell);
+    }
+
+    /**
+     * Only move the row bands the state samples.  The screen size comes from the current frame, so it needs a full
+     * frame first.
+     */
+    private CapturedFrame sparseScreen(AdbWrapper shell, String stateId, String sparseFile) {
+
+        final long startTime = System.nanoTime();
+
+        final StateTransfer stateTransfer = (info == null || stateId == null || sparseFailed) ? null : info.getStates().get(stateId);
+
+        final ImageWrapper current = acquireFrame();
+        final byte[] currentHeader = new byte[HEADER_SIZE];
+        final int w = current.getWidth();
+        final int h = current.getHeight();
+        final RawImageWrapper.ImageFormats currentFormat = frameFormat(current);
+        if (current.isReady()) {
+            final ByteBuffer data = frameData(current);
+            for (int i = 0; i < HEADER_SIZE; i++) {
+                currentHeader[i] = data.get(i);
+            }
+        }
+        current.release();
+
+        if (stateTransfer == null || stateTransfer.getPoints() == null || stateTransfer.getPoints().isEmpty() || w == 0 || h == 0) {
+            return streamScreen(shell);
+        }
+
+        FrameBands frameBands = bands.get(stateId);
+        if (frameBands == null || frameBands.getWidth() != w || frameBands.getHeight() != h) {
+            frameBands = FrameBands.build(stateTransfer, w, h, HEADER_SIZE, currentFormat.getBpp());
+            bands.put(stateId, frameBands);
+            logger.debug("Sparse capture for " + stateId + ": " + frameBands.getCount() + " bands, " + frameBands.getTotalBytes() + " bytes");
+        }
+
+        JadbDevice device = shell.connect();
+
+        if (device == null) return null;
+
+        InputStream inputStream = null;
+        FrameBuffer buffer = null;
+
+        try {
+            inputStream = openCapture(device, frameBands.getCommand(sparseFile));
+
+            // Everything outside the bands is left over from an older frame
+            buffer = pool().acquire(w, h, currentFormat.getBpp(), HEADER_SIZE);
+
+            final byte[] header = new byte[HEADER_SIZE];
+            ByteStreams.readFully(inputStream, header);
+            for (int i = 0; i < HEADER_SIZE; i++) {
+                if (header[i] != currentHeader[i]) {
+                    // The screen changed size or orientation, start again from a full frame
+                    Closer.close(inputStream);
+                    inputStream = null;
+                    return streamScreen(shell);
+                }
+            }
+
+            buffer.write(0, header, 0, HEADER_SIZE);
+
+            for (int i = 0; i < frameBands.getCount(); i++) {
+                buffer.readFully(inputStream, frameBands.getOffset(i), frameBands.getLength(i));
+            }
+
+            final CapturedFrame captured = new CapturedFrame(buffer, w, h, currentFormat, stateId, startTime);
+            buffer = null;
+            return captured;
+        } catch (EOFException e) {
+            logger.warn("Sparse capture is not supported by the device, falling back to stream capture");
+            sparseFailed = true;
+            Closer.close(inputStream);
+            inputStream = null;
+            return streamScreen(shell);
+        } catch (IOException e) {
+            logger.error(e.getMessage());
+            e.printStackTrace();
+            shell.invalidate();
+            return null;
+        } catch (JadbException e) {
+            logger.error(e.getMessage());
+            e.printStackTrace();
+            shell.invalidate();
+            return null;
+        } finally {
+            Closer.close(inputStream);
+            if (buffer != null) {
+                buffer.release();
+            }
+        }
+    }
+
+    /**
+     * Start a capture command, gzipped on the device when compression is enabled.  Devices without gzip send back an
+     * error instead of a gzip header, which turns compression off for the rest of the session.
+     */
+    private InputStream openCapture(JadbDevice device, String command) throws IOException, JadbException {
+        if (connectionDefinition.isCompress() && !compressFailed) {
+            final InputStream inputStream = openBinary(device, "(" + command + ") | gzip -1");
+            try {
+                return new GZIPInputStream(inputStream, GZIP_BUFFER);
+            } catch (IOException e) {
+                Closer.close(inputStream);
+                logger.warn("Compressed capture is not supported by the device, falling back to uncompressed capture");
+                compressFailed = true;
+            }
+        }
+        return openBinary(device, command);
+    }
+
+    /**
+     * The exec: service passes binary output through untouched, shell: may put it through a pty on older devices
+     */
+    private InputStream openBinary(JadbDevice device, String command) throws IOException, JadbException {
+        if (!execFailed) {
+            try {
+                return AdbSession.execStream(device.getSerial(), command);
+            } catch (IOException e) {
+                logger.warn("The exec service is not available, capturing through the shell: " + e.getMessage());
+                execFailed = true;
+            }
+        }
+        return device.executeShell(command);
+    }
+
+    /**
+     * The format screencap says the frame is in.  A format other than the device definition's still reads as a
+     * picture, but the points were placed for the other layout, so it is worth a warning.
+     */
+    private RawImageWrapper.ImageFormats headerFormat(int headerCode) {
+        final RawImageWrapper.ImageFormats expected = format;
+        final RawImageWrapper.ImageFormats actual = RawImageWrapper.ImageFormats.forHeaderCode(headerCode);
+        if (actual == null) {
+            // Unknown to us, trust the device definition
+            return expected;
+        }
+        if (actual != expected && actual != warnedFormat) {
+            warnedFormat = actual;
+            logger.warn("The device sends " + actual + " frames but its device definition says " + expected + ", screens will not match until the pixelFormat is changed");
+        }
+        return actual;
+    }
+
+    /**
+     * PIXEL reads and downloads can look anywhere, so a sparse frame is swapped for a full one first
+     */
+    private void fillSparseFrame() {
+        if (sparseStateId != null && lastShell != null) {
+            publish(streamScreen(lastShell));
+        }
+    }
+
+    private static final int HEADER_SIZE = 12;
+    // The dataspace word screencap adds to the header since Android 9
+    private static final int DATASPACE_SIZE = 4;
+
+    private static final int GZIP_BUFFER = 64 * 1024;
+
+    private static final String SPARSE_FILE = "/data/local/tmp/framebuffer.raw";
+    // The pipeline threads capture at the same time as the script thread and each other, each gets a numbered file
+    private static final String PIPELINE_SPARSE_FILE = "/data/local/tmp/framebuffer-pipeline-";
+
+    private static final ImageWrapper EMPTY_FRAME = new RawImageWrapper(0, 0, RawImageWrapper.ImageFormats.RGBA, HEADER_SIZE, new byte[0]);
+
+    /**
+     * Collects a pulled framebuffer file, once the header has arrived the rest is written directly into a pooled buffer
+     */
+    private class FrameOutputStream extends OutputStream {
+
+        private final byte[] header = new byte[HEADER_SIZE];
+        private int position;
+        private int width;
+        private int height;
+        private RawImageWrapper.ImageFormats format;
+        private FrameBuffer buffer;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0 && position < HEADER_SIZE) {
+                header[position++] = b[off++];
+                len--;
+                if (position == HEADER_SIZE) {
+                    ByteBuffer byteBuffer = ByteBuffer.wrap(header);
+                    byteBuffer.order(ByteOrder.LITTLE_ENDIAN);
+                    width = byteBuffer.getInt();
+                    height = byteBuffer.getInt();
+                    format = headerFormat(byteBuffer.getInt());
+                    if (width <= 0 || height <= 0) {
+                        throw new IOException("Invalid framebuffer header: " + width + "x" + height);
+                    }
+                    buffer = pool().acquire(width, height, format.getBpp(), HEADER_SIZE);
+                    buffer.write(0, header, 0, HEADER_SIZE);
+                }
+            }
+            if (len > 0) {
+                final int copy = Math.min(len, buffer.size() - position);
+                buffer.write(position, b, off, copy);
+                position += copy;
+            }
+        }
+
+        boolean isComplete() {
+            return buffer != null && position == buffer.size();
+        }
+
+        void discard() {
+            if (buffer != null) {
+                buffer.release();
+                buffer = null;
+            }
+        }
     }
 }
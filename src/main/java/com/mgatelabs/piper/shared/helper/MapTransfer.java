@@ -1,7 +1,5 @@
 package com.mgatelabs.piper.shared.helper;
 
-import com.mgatelabs.piper.shared.image.RawImageWrapper;
-
 /**
  * Created by @mgatelabs (Michael Fuller) on 9/7/2017 for Phone-Piper
  */
@@ -36,7 +34,7 @@ public class MapTransfer {
 
         preSkip = 0;
         postSkip = 1;
-        startingOffset = RawImageWrapper.getOffsetFor(deviceWidth, readOffset, areaX, areaY, RawImageWrapper.ImageFormats.RGBA);
+        startingOffset = readOffset + ((areaY * deviceWidth) + areaX) * bpp;
         nextRowOffset = (deviceWidth * bpp) - (areaWidth * bpp);
     }
 
@@ -2,9 +2,11 @@ package com.mgatelabs.piper.shared.helper;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
 import com.mgatelabs.piper.runners.ScriptRunner;
 import com.mgatelabs.piper.shared.details.ConnectionDefinition;
 import com.mgatelabs.piper.shared.image.ImageWrapper;
+import com.mgatelabs.piper.shared.image.StateTransfer;
 import com.mgatelabs.piper.shared.util.AdbUtils;
 import com.mgatelabs.piper.shared.util.AdbWrapper;
 import com.mgatelabs.piper.shared.util.JsonTool;
@@ -18,6 +20,7 @@ import org.slf4j.LoggerFactory;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
@@ -34,6 +37,9 @@ public class RemoteDeviceHelper implements DeviceHelper {
 
     private int failures;
 
+    private boolean hashFrames = true;
+    private volatile long lastFingerprint = NO_FINGERPRINT;
+
     public RemoteDeviceHelper(ConnectionDefinition connectionDefinition) {
         this.connectionDefinition = connectionDefinition;
         objectMapper = JsonTool.getInstance();
@@ -61,6 +67,18 @@ public class RemoteDeviceHelper implements DeviceHelper {
 
         ByteArrayOutputStream arrayOutputStream = new ByteArrayOutputStream();
 
+        // Older helpers reject fields they do not know, so the screen trees only go out when asked for
+        if (!connectionDefinition.isScreenTree() && info.getStates() != null) {
+            final Map<String, StateTransfer> states = Maps.newHashMap();
+            for (Map.Entry<String, StateTransfer> entry : info.getStates().entrySet()) {
+                states.put(entry.getKey(), entry.getValue().withoutTree());
+            }
+            final InfoTransfer plain = new InfoTransfer();
+            plain.setStates(states);
+            plain.setMap(info.getMap());
+            info = plain;
+        }
+
         try {
             objectMapper.writeValue(arrayOutputStream, info);
         } catch (IOException e) {
@@ -115,6 +133,22 @@ public class RemoteDeviceHelper implements DeviceHelper {
         }
     }
 
+    @Override
+    public long fingerprint(String menu) {
+        return lastFingerprint;
+    }
+
+    private static long parseFingerprint(String md5) {
+        final String trimmed = md5.trim();
+        if (trimmed.length() < 16) return NO_FINGERPRINT;
+        try {
+            final long hash = Long.parseUnsignedLong(trimmed.substring(0, 16), 16);
+            return hash == NO_FINGERPRINT ? 1 : hash;
+        } catch (NumberFormatException ex) {
+            return NO_FINGERPRINT;
+        }
+    }
+
     @Override
     public int[] pixel(int offset) {
         Request request = new Request.Builder()
@@ -151,6 +185,24 @@ public class RemoteDeviceHelper implements DeviceHelper {
         }
     }
 
+    /**
+     * The frames stay on the device with the helper app
+     */
+    @Override
+    public ImageWrapper latestFrame() {
+        return null;
+    }
+
+    @Override
+    public long getMatchCacheHits() {
+        return 0;
+    }
+
+    @Override
+    public long getMatchCacheMisses() {
+        return 0;
+    }
+
     @Override
     public int getFailures() {
         return failures;
@@ -161,7 +213,20 @@ public class RemoteDeviceHelper implements DeviceHelper {
 
         long startTime = System.nanoTime();
 
-        if (!AdbUtils.persistScreen(shell)) {
+        if (hashFrames) {
+            // Hash the frame in the same round trip, so unchanged frames can skip the helper check
+            final String hash = AdbUtils.persistScreenWithHash(shell);
+            if (hash == null) {
+                logger.warn("Helper Image Failure");
+                waitFor(250);
+                return false;
+            }
+            if (hash.isEmpty()) {
+                logger.warn("md5sum is not available on the device, frame change detection disabled");
+                hashFrames = false;
+            }
+            lastFingerprint = parseFingerprint(hash);
+        } else if (!AdbUtils.persistScreen(shell)) {
             logger.warn("Helper Image Failure");
             waitFor(250);
             return false;
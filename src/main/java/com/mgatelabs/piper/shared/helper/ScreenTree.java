@@ -0,0 +1,184 @@
+package com.mgatelabs.piper.shared.helper;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Ints;
+import com.mgatelabs.piper.shared.image.RawImageWrapper;
+import com.mgatelabs.piper.shared.image.StateTransfer;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Builds a decision tree over a state's sample points, so most screens are ruled out after a few reads.
+ * <p>
+ * At each node the pixel that leaves the fewest candidates in the worst case is read first.  The colors the candidates
+ * expect there are grouped into clusters more than twice the tolerance apart, so a pixel can only ever be close to one
+ * cluster and every screen outside it is out.  Screens that do not sample the pixel go down every branch, and a leaf
+ * still checks its candidates in full, so the tree gives the same answer as checking every screen.
+ */
+public class ScreenTree {
+
+    // States with fewer screens gain nothing from a tree
+    public static final int MIN_SCREENS = 4;
+
+    private static final int MAX_DEPTH = 24;
+    private static final int MAX_NODES = 4096;
+
+    private final Map<Integer, List<int[]>> samples;
+    private int nodes;
+
+    private ScreenTree(Map<Integer, List<int[]>> samples) {
+        this.samples = samples;
+    }
+
+    /**
+     * @return the root of the tree, or null if the state has too few screens to need one
+     */
+    public static ScreenTreeNode build(StateTransfer stateTransfer) {
+        if (stateTransfer.getScreenIds() == null || stateTransfer.getScreenIds().size() < MIN_SCREENS || stateTransfer.getPoints() == null) {
+            return null;
+        }
+        final List<PointTransfer> points = stateTransfer.getPoints();
+        // Without the offsets the skips are read as the default RGBA generated them
+        final int[] offsets = FrameBands.offsets(stateTransfer, RawImageWrapper.ImageFormats.RGBA.getSampleBytes());
+
+        // offset -> {screen, color} for every screen that samples it
+        final Map<Integer, List<int[]>> samples = Maps.newTreeMap();
+        for (int i = 0; i < offsets.length; i++) {
+            final PointTransfer point = points.get(i);
+            List<int[]> list = samples.get(offsets[i]);
+            if (list == null) {
+                list = Lists.newArrayList();
+                samples.put(offsets[i], list);
+            }
+            list.add(new int[]{point.getIndex() & 0xff, StateChecker.pack(point.getA(), point.getB(), point.getC())});
+        }
+
+        final Set<Integer> candidates = Sets.newTreeSet();
+        for (int i = 0; i < stateTransfer.getScreenIds().size(); i++) {
+            candidates.add(i);
+        }
+        return new ScreenTree(samples).node(candidates, Sets.<Integer>newHashSet(), 0);
+    }
+
+    private ScreenTreeNode node(Set<Integer> candidates, Set<Integer> used, int depth) {
+        nodes++;
+        if (candidates.size() <= 1 || depth >= MAX_DEPTH || nodes >= MAX_NODES) {
+            return ScreenTreeNode.leaf(Ints.toArray(candidates));
+        }
+
+        int bestOffset = -1;
+        int bestWorst = candidates.size();
+        int bestSampled = 0;
+        List<List<int[]>> bestClusters = null;
+
+        for (Map.Entry<Integer, List<int[]>> entry : samples.entrySet()) {
+            if (used.contains(entry.getKey())) continue;
+            final List<int[]> relevant = Lists.newArrayList();
+            final Set<Integer> sampled = Sets.newHashSet();
+            for (int[] sample : entry.getValue()) {
+                if (candidates.contains(sample[0])) {
+                    relevant.add(sample);
+                    sampled.add(sample[0]);
+                }
+            }
+            if (relevant.isEmpty()) continue;
+
+            final List<List<int[]>> clusters = cluster(relevant);
+            int largest = 0;
+            for (List<int[]> cluster : clusters) {
+                largest = Math.max(largest, screensOf(cluster).size());
+            }
+            final int worst = candidates.size() - sampled.size() + largest;
+            if (worst < bestWorst || (worst == bestWorst && bestOffset >= 0 && sampled.size() > bestSampled)) {
+                bestOffset = entry.getKey();
+                bestWorst = worst;
+                bestSampled = sampled.size();
+                bestClusters = clusters;
+            }
+        }
+
+        // No pixel rules anything out
+        if (bestClusters == null) {
+            return ScreenTreeNode.leaf(Ints.toArray(candidates));
+        }
+
+        final Set<Integer> unsampled = Sets.newTreeSet(candidates);
+        for (List<int[]> cluster : bestClusters) {
+            unsampled.removeAll(screensOf(cluster));
+        }
+
+        final Set<Integer> nextUsed = Sets.newHashSet(used);
+        nextUsed.add(bestOffset);
+
+        final int[][] colors = new int[bestClusters.size()][];
+        final ScreenTreeNode[] children = new ScreenTreeNode[bestClusters.size() + 1];
+        for (int i = 0; i < bestClusters.size(); i++) {
+            final List<int[]> cluster = bestClusters.get(i);
+            colors[i] = new int[cluster.size()];
+            for (int j = 0; j < cluster.size(); j++) {
+                colors[i][j] = cluster.get(j)[1];
+            }
+            final Set<Integer> next = Sets.newTreeSet(unsampled);
+            next.addAll(screensOf(cluster));
+            children[i] = node(next, nextUsed, depth + 1);
+        }
+        children[bestClusters.size()] = node(unsampled, nextUsed, depth + 1);
+
+        return ScreenTreeNode.branch(bestOffset, colors, children);
+    }
+
+    /**
+     * Single link clustering, colors closer than twice the tolerance on every channel share a cluster
+     */
+    private static List<List<int[]>> cluster(List<int[]> samples) {
+        final List<List<int[]>> clusters = Lists.newArrayList();
+        for (int[] sample : samples) {
+            List<int[]> joined = null;
+            for (int i = 0; i < clusters.size(); i++) {
+                final List<int[]> cluster = clusters.get(i);
+                if (!near(cluster, sample[1])) continue;
+                if (joined == null) {
+                    cluster.add(sample);
+                    joined = cluster;
+                } else {
+                    joined.addAll(cluster);
+                    clusters.remove(i--);
+                }
+            }
+            if (joined == null) {
+                clusters.add(Lists.newArrayList(Collections.singletonList(sample)));
+            }
+        }
+        // Largest first, the common case is found sooner at run time
+        Collections.sort(clusters, new Comparator<List<int[]>>() {
+            @Override
+            public int compare(List<int[]> o1, List<int[]> o2) {
+                return Integer.compare(o2.size(), o1.size());
+            }
+        });
+        return clusters;
+    }
+
+    private static boolean near(List<int[]> cluster, int color) {
+        for (int[] sample : cluster) {
+            if (StateChecker.distance(sample[1], color) <= StateChecker.TOLERANCE * 2) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Set<Integer> screensOf(List<int[]> cluster) {
+        final Set<Integer> screens = Sets.newHashSet();
+        for (int[] sample : cluster) {
+            screens.add(sample[0]);
+        }
+        return screens;
+    }
+}
@@ -0,0 +1,74 @@
+package com.mgatelabs.piper.shared.helper;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+/**
+ * One step of a state's screen decision tree.  A branch reads the pixel at offset and follows the child whose cluster
+ * of expected colors it is close to, or the last child when it is close to none of them.  A leaf lists the screens that
+ * are still possible and still need a full check.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class ScreenTreeNode {
+
+    private int offset;
+    // Packed RGB colors the candidate screens expect at offset, one array per child
+    private int[][] clusters;
+    private ScreenTreeNode[] children;
+    private int[] screens;
+
+    public ScreenTreeNode() {
+    }
+
+    public static ScreenTreeNode leaf(int[] screens) {
+        ScreenTreeNode node = new ScreenTreeNode();
+        node.offset = -1;
+        node.screens = screens;
+        return node;
+    }
+
+    public static ScreenTreeNode branch(int offset, int[][] clusters, ScreenTreeNode[] children) {
+        ScreenTreeNode node = new ScreenTreeNode();
+        node.offset = offset;
+        node.clusters = clusters;
+        node.children = children;
+        return node;
+    }
+
+    @JsonIgnore
+    public boolean isLeaf() {
+        return screens != null;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public void setOffset(int offset) {
+        this.offset = offset;
+    }
+
+    public int[][] getClusters() {
+        return clusters;
+    }
+
+    public void setClusters(int[][] clusters) {
+        this.clusters = clusters;
+    }
+
+    public ScreenTreeNode[] getChildren() {
+        return children;
+    }
+
+    public void setChildren(ScreenTreeNode[] children) {
+        this.children = children;
+    }
+
+    public int[] getScreens() {
+        return screens;
+    }
+
+    public void setScreens(int[] screens) {
+        this.screens = screens;
+    }
+}
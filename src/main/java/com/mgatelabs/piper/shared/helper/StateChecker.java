@@ -0,0 +1,312 @@
+package com.mgatelabs.piper.shared.helper;
+
+import com.google.common.collect.Sets;
+import com.mgatelabs.piper.shared.image.RawImageWrapper;
+import com.mgatelabs.piper.shared.image.StateTransfer;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Checks every screen of a state against a frame that is already in memory.  The delta encoded points of a
+ * StateTransfer suit a stream, on the host each point is read straight from its absolute offset instead, in one pass
+ * over all screens that stops once every screen has failed.
+ * <p>
+ * The points hold samples as {@link RawImageWrapper.ImageFormats#sample} reads them, for the 32 bit formats those are
+ * the raw bytes and are compared without decoding.
+ */
+public class StateChecker {
+
+    // Allowed difference per color channel
+    public static final int TOLERANCE = 6;
+
+    private final RawImageWrapper.ImageFormats format;
+    // Bytes a sample reads from its offset
+    private final int sampleBytes;
+    private final List<String> screenIds;
+    private final int[] offsets;
+    private final int[] screens;
+    private final int[] colors;
+    // Each sampled offset once, in frame order
+    private final int[] uniqueOffsets;
+    // Optional decision tree, with the points of each screen for the final check at its leaves
+    private final ScreenTreeNode tree;
+    private final int[][] screenOffsets;
+    private final int[][] screenColors;
+
+    private StateChecker(RawImageWrapper.ImageFormats format, List<String> screenIds, int[] offsets, int[] screens, int[] colors, ScreenTreeNode tree) {
+        this.format = format;
+        this.sampleBytes = format.getSampleBytes();
+        this.screenIds = screenIds;
+        this.offsets = offsets;
+        this.screens = screens;
+        this.colors = colors;
+        this.tree = tree;
+        this.uniqueOffsets = unique(offsets);
+        this.screenOffsets = new int[screenIds.size()][];
+        this.screenColors = new int[screenIds.size()][];
+        if (tree != null) {
+            final int[] counts = new int[screenIds.size()];
+            for (int screen : screens) {
+                counts[screen]++;
+            }
+            for (int j = 0; j < counts.length; j++) {
+                screenOffsets[j] = new int[counts[j]];
+                screenColors[j] = new int[counts[j]];
+                counts[j] = 0;
+            }
+            for (int i = 0; i < screens.length; i++) {
+                final int screen = screens[i];
+                screenOffsets[screen][counts[screen]] = offsets[i];
+                screenColors[screen][counts[screen]++] = colors[i];
+            }
+        }
+    }
+
+    public static StateChecker compile(StateTransfer stateTransfer) {
+        return compile(stateTransfer, RawImageWrapper.ImageFormats.RGBA);
+    }
+
+    /**
+     * @param format the pixel format the points were generated for
+     */
+    public static StateChecker compile(StateTransfer stateTransfer, RawImageWrapper.ImageFormats format) {
+        final List<PointTransfer> points = stateTransfer.getPoints();
+        final int[] offsets = FrameBands.offsets(stateTransfer, format.getSampleBytes());
+        final int[] screens = new int[points.size()];
+        final int[] colors = new int[points.size()];
+        for (int i = 0; i < screens.length; i++) {
+            final PointTransfer point = points.get(i);
+            screens[i] = point.getIndex() & 0xff;
+            colors[i] = pack(point.getA(), point.getB(), point.getC());
+        }
+        return new StateChecker(format, stateTransfer.getScreenIds(), offsets.clone(), screens, colors, stateTransfer.getTree());
+    }
+
+    static int pack(byte r, byte g, byte b) {
+        return ((r & 0xff) << 16) | ((g & 0xff) << 8) | (b & 0xff);
+    }
+
+    /**
+     * The largest difference of any channel between two packed colors
+     */
+    static int distance(int a, int b) {
+        return Math.max(Math.abs(((a >> 16) & 0xff) - ((b >> 16) & 0xff)), Math.max(Math.abs(((a >> 8) & 0xff) - ((b >> 8) & 0xff)), Math.abs((a & 0xff) - (b & 0xff))));
+    }
+
+    /**
+     * Every sampled offset in frame order, points shared by several screens show up more than once
+     */
+    public int[] getOffsets() {
+        return offsets;
+    }
+
+    /**
+     * Copy out every sampled pixel, equal samples always give the same screens
+     *
+     * @return null if a point falls outside the frame
+     */
+    public byte[] sample(final byte[] data) {
+        final byte[] samples = new byte[uniqueOffsets.length * sampleBytes];
+        final int limit = data.length - sampleBytes;
+        for (int i = 0; i < uniqueOffsets.length; i++) {
+            final int offset = uniqueOffsets[i];
+            if (offset < 0 || offset > limit) {
+                return null;
+            }
+            System.arraycopy(data, offset, samples, i * sampleBytes, sampleBytes);
+        }
+        return samples;
+    }
+
+    public byte[] sample(final ByteBuffer data) {
+        if (onHeap(data)) {
+            return sample(data.array());
+        }
+        final byte[] samples = new byte[uniqueOffsets.length * sampleBytes];
+        final int limit = data.capacity() - sampleBytes;
+        for (int i = 0, j = 0; i < uniqueOffsets.length; i++) {
+            final int offset = uniqueOffsets[i];
+            if (offset < 0 || offset > limit) {
+                return null;
+            }
+            for (int k = 0; k < sampleBytes; k++) {
+                samples[j++] = data.get(offset + k);
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * Heap frames go through the array versions, which are quite a bit faster than buffer reads
+     */
+    private static boolean onHeap(final ByteBuffer data) {
+        return data.hasArray() && data.arrayOffset() == 0 && data.array().length == data.capacity();
+    }
+
+    private static int[] unique(final int[] offsets) {
+        final int[] sorted = offsets.clone();
+        Arrays.sort(sorted);
+        int count = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || sorted[i] != sorted[count - 1]) {
+                sorted[count++] = sorted[i];
+            }
+        }
+        return Arrays.copyOf(sorted, count);
+    }
+
+    /**
+     * @return the ids of the screens whose points all match, a point outside the frame fails its screen
+     */
+    public Set<String> check(final byte[] data) {
+        if (!format.isRawSample()) {
+            return bufferCheck(ByteBuffer.wrap(data));
+        }
+        if (tree != null) {
+            return checkTree(data);
+        }
+        final boolean[] failed = new boolean[screenIds.size()];
+        int remaining = failed.length;
+        final int limit = data.length - sampleBytes;
+
+        for (int i = 0; i < offsets.length && remaining > 0; i++) {
+            final int screen = screens[i];
+            if (failed[screen]) continue;
+            if (!matches(data, limit, offsets[i], colors[i])) {
+                failed[screen] = true;
+                remaining--;
+            }
+        }
+
+        final Set<String> results = Sets.newHashSet();
+        for (int j = 0; j < failed.length; j++) {
+            if (!failed[j]) {
+                results.add(screenIds.get(j));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Same as {@link #check(byte[])} for frames outside the heap, only absolute reads are used so the buffer may be shared
+     */
+    public Set<String> check(final ByteBuffer data) {
+        if (format.isRawSample() && onHeap(data)) {
+            return check(data.array());
+        }
+        return bufferCheck(data);
+    }
+
+    /**
+     * Reads every point through the format, which also covers the formats whose samples need decoding
+     */
+    private Set<String> bufferCheck(final ByteBuffer data) {
+        final int limit = data.capacity() - format.getSampleBytes();
+        if (tree != null) {
+            ScreenTreeNode node = tree;
+            while (!node.isLeaf()) {
+                final int offset = node.getOffset();
+                node = node.getChildren()[offset >= 0 && offset <= limit ? branch(node.getClusters(), format.sample(data, offset)) : node.getClusters().length];
+            }
+            final Set<String> results = Sets.newHashSet();
+            for (int screen : node.getScreens()) {
+                if (matches(data, limit, screenOffsets[screen], screenColors[screen])) {
+                    results.add(screenIds.get(screen));
+                }
+            }
+            return results;
+        }
+
+        final boolean[] failed = new boolean[screenIds.size()];
+        int remaining = failed.length;
+        for (int i = 0; i < offsets.length && remaining > 0; i++) {
+            final int screen = screens[i];
+            if (failed[screen]) continue;
+            if (!(offsets[i] >= 0 && offsets[i] <= limit && distance(format.sample(data, offsets[i]), colors[i]) <= TOLERANCE)) {
+                failed[screen] = true;
+                remaining--;
+            }
+        }
+
+        final Set<String> results = Sets.newHashSet();
+        for (int j = 0; j < failed.length; j++) {
+            if (!failed[j]) {
+                results.add(screenIds.get(j));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * @return the cluster the color is close to, or the count of clusters for none
+     */
+    private static int branch(final int[][] clusters, final int color) {
+        for (int i = 0; i < clusters.length; i++) {
+            for (int expected : clusters[i]) {
+                if (distance(color, expected) <= TOLERANCE) {
+                    return i;
+                }
+            }
+        }
+        return clusters.length;
+    }
+
+    private boolean matches(final ByteBuffer data, final int limit, final int[] offsets, final int[] colors) {
+        for (int i = 0; i < offsets.length; i++) {
+            if (offsets[i] < 0 || offsets[i] > limit || distance(format.sample(data, offsets[i]), colors[i]) > TOLERANCE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Set<String> checkTree(final byte[] data) {
+        final int limit = data.length - sampleBytes;
+        ScreenTreeNode node = tree;
+        while (!node.isLeaf()) {
+            final int offset = node.getOffset();
+            final int[][] clusters = node.getClusters();
+            int branch = clusters.length;
+            if (offset >= 0 && offset <= limit) {
+                final int color = ((data[offset] & 0xff) << 16) | ((data[offset + 1] & 0xff) << 8) | (data[offset + 2] & 0xff);
+                search:
+                for (int i = 0; i < clusters.length; i++) {
+                    for (int expected : clusters[i]) {
+                        if (distance(color, expected) <= TOLERANCE) {
+                            branch = i;
+                            break search;
+                        }
+                    }
+                }
+            }
+            node = node.getChildren()[branch];
+        }
+
+        final Set<String> results = Sets.newHashSet();
+        for (int screen : node.getScreens()) {
+            if (matches(data, limit, screenOffsets[screen], screenColors[screen])) {
+                results.add(screenIds.get(screen));
+            }
+        }
+        return results;
+    }
+
+    private static boolean matches(final byte[] data, final int limit, final int[] offsets, final int[] colors) {
+        for (int i = 0; i < offsets.length; i++) {
+            if (!matches(data, limit, offsets[i], colors[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean matches(final byte[] data, final int limit, final int offset, final int color) {
+        return offset >= 0 && offset <= limit
+                && ((TOLERANCE - Math.abs((data[offset] & 0xff) - (color >>> 16)))
+                | (TOLERANCE - Math.abs((data[offset + 1] & 0xff) - ((color >> 8) & 0xff)))
+                | (TOLERANCE - Math.abs((data[offset + 2] & 0xff) - (color & 0xff)))) >= 0;
+    }
+}
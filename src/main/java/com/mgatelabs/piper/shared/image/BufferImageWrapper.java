@@ -0,0 +1,106 @@
+package com.mgatelabs.piper.shared.image;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+/**
+ * A raw frame held in a pooled {@link FrameBuffer}, which may live on the heap, in a direct buffer or in a mapped file.
+ * Pixels are read in place, readers should use {@link #getBuffer()}.
+ */
+public class BufferImageWrapper implements ImageWrapper {
+
+    private final int dataOffset;
+    private final int width;
+    private final int height;
+    private final RawImageWrapper.ImageFormats format;
+    private final ByteBuffer data;
+    private final FrameBuffer buffer;
+
+    /**
+     * Wraps a pooled frame, the wrapper does not take a reference of its own
+     */
+    public BufferImageWrapper(int width, int height, RawImageWrapper.ImageFormats format, int dataOffset, FrameBuffer buffer) {
+        this.dataOffset = dataOffset;
+        this.width = width;
+        this.height = height;
+        this.format = format;
+        this.data = buffer.getBuffer();
+        this.buffer = buffer;
+    }
+
+    @Override
+    public boolean isReady() {
+        if (width == 0 || height == 0) return false;
+        return data.capacity() >= dataOffset + ((width * height) * format.getBpp());
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    public RawImageWrapper.ImageFormats getFormat() {
+        return format;
+    }
+
+    public int getDataOffset() {
+        return dataOffset;
+    }
+
+    /**
+     * The whole frame, header included.  Shared with every other reader, so only use absolute reads on it.
+     */
+    public ByteBuffer getBuffer() {
+        return data;
+    }
+
+    @Override
+    public int getPixel(int x, int y) {
+        final int startIndex = RawImageWrapper.getOffsetFor(width, dataOffset, x, y, format);
+        if (startIndex + format.getBpp() > data.capacity()) {
+            return 0xFF000000;
+        }
+        return format.toArgb(data, startIndex);
+    }
+
+    @Override
+    public void getPixel(int x, int y, Sampler sample) {
+        final int startIndex = RawImageWrapper.getOffsetFor(width, dataOffset, x, y, format);
+        sample.parse(format.toArgb(data, startIndex));
+    }
+
+    @Override
+    public boolean savePng(File file) {
+        return FrameEncoder.png().save(this, file);
+    }
+
+    @Override
+    public byte[] outputPng() {
+        return FrameEncoder.png().encode(this);
+    }
+
+    /**
+     * The frame as an array, heap frames hand out their own array and the others are copied, prefer {@link #getBuffer()}
+     */
+    @Override
+    public byte[] getRaw() {
+        if (data.hasArray() && data.arrayOffset() == 0 && data.array().length == data.capacity()) {
+            return data.array();
+        }
+        final byte[] copy = new byte[data.capacity()];
+        final ByteBuffer source = data.duplicate();
+        source.clear();
+        source.get(copy);
+        return copy;
+    }
+
+    @Override
+    public void release() {
+        buffer.release();
+    }
+}
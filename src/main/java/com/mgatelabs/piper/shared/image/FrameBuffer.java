@@ -0,0 +1,100 @@
+package com.mgatelabs.piper.shared.image;
+
+import com.google.common.io.ByteStreams;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference counted frame from a {@link FrameBufferPool}.  Whoever acquires or retains the buffer must release it,
+ * once the count reaches zero the memory goes back to the pool and will be overwritten by a later capture.
+ * <p>
+ * The memory is a heap array, a direct buffer or a mapped file region, depending on the pool.  It is filled in place,
+ * frames on the heap are read straight from the stream into the array and the others only pass through a small copy
+ * buffer.
+ */
+public class FrameBuffer {
+
+    private final FrameBufferPool pool;
+    private final ByteBuffer data;
+    // Where the memory starts in the pool's map file, -1 when it is not mapped
+    private final long region;
+    private final AtomicInteger references;
+
+    FrameBuffer(FrameBufferPool pool, ByteBuffer data, long region) {
+        this.pool = pool;
+        this.data = data;
+        this.region = region;
+        this.references = new AtomicInteger();
+    }
+
+    /**
+     * A view of the whole frame, only absolute reads are safe to share between threads
+     */
+    public ByteBuffer getBuffer() {
+        return data.duplicate();
+    }
+
+    public int size() {
+        return data.capacity();
+    }
+
+    long getRegion() {
+        return region;
+    }
+
+    /**
+     * Copy bytes into the frame at the given position
+     */
+    public void write(int position, byte[] source, int offset, int length) {
+        if (data.hasArray()) {
+            System.arraycopy(source, offset, data.array(), data.arrayOffset() + position, length);
+            return;
+        }
+        final ByteBuffer target = data.duplicate();
+        target.position(position);
+        target.put(source, offset, length);
+    }
+
+    /**
+     * Fill length bytes at the given position from the stream
+     */
+    public void readFully(InputStream inputStream, int position, int length) throws IOException {
+        if (data.hasArray()) {
+            ByteStreams.readFully(inputStream, data.array(), data.arrayOffset() + position, length);
+            return;
+        }
+        final ByteBuffer target = data.duplicate();
+        target.limit(position + length);
+        target.position(position);
+        final ReadableByteChannel channel = Channels.newChannel(inputStream);
+        while (target.hasRemaining()) {
+            if (channel.read(target) < 0) {
+                throw new EOFException("Frame ended after " + (target.position() - position) + " of " + length + " bytes");
+            }
+        }
+    }
+
+    public FrameBuffer retain() {
+        references.incrementAndGet();
+        return this;
+    }
+
+    public void release() {
+        final int remaining = references.decrementAndGet();
+        if (remaining == 0) {
+            pool.recycle(this);
+        } else if (remaining < 0) {
+            throw new IllegalStateException("Frame buffer released too many times");
+        }
+    }
+
+    void reset() {
+        references.set(1);
+    }
+}
@@ -0,0 +1,196 @@
+package com.mgatelabs.piper.shared.image;
+
+import com.google.common.collect.Maps;
+import com.mgatelabs.piper.shared.details.FrameStorage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+
+/**
+ * Keeps released frame buffers around, keyed by frame size (resolution * bpp + header), so steady state capture can
+ * fill the same memory over and over instead of allocating a new frame every refresh.
+ * <p>
+ * A MAPPED pool maps regions of its own temp file.  Regions of buffers it stops keeping are handed out again for the
+ * next buffer of that size, so the file only grows when more frames are alive at once.
+ */
+public class FrameBufferPool {
+
+    private static final Logger logger = LoggerFactory.getLogger(FrameBufferPool.class);
+
+    // Current frame, a pipelined back buffer and a preview in flight
+    private static final int MAX_IDLE = 4;
+
+    private final Map<Integer, Deque<FrameBuffer>> idle;
+    // Start of map file regions no buffer is using, keyed by region size
+    private final Map<Integer, Deque<Long>> freeRegions;
+    private final FrameStorage storage;
+    private final File mapDirectory;
+    private File mapFile;
+    // Drops to DIRECT if the file cannot be mapped
+    private FrameStorage active;
+    // End of the regions handed out so far
+    private long mapEnd;
+    private int allocations;
+    // Buffers handed out and not yet back
+    private int outstanding;
+    private boolean closed;
+
+    public FrameBufferPool() {
+        this(FrameStorage.HEAP, null);
+    }
+
+    /**
+     * @param mapDirectory where the temp file backing a MAPPED pool is made
+     */
+    public FrameBufferPool(FrameStorage storage, File mapDirectory) {
+        this.idle = Maps.newHashMap();
+        this.freeRegions = Maps.newHashMap();
+        this.storage = storage != null ? storage : FrameStorage.HEAP;
+        this.mapDirectory = mapDirectory;
+        this.active = this.storage;
+    }
+
+    public FrameStorage getStorage() {
+        return storage;
+    }
+
+    /**
+     * @return a buffer holding one reference for the caller, the contents are whatever the last user left behind
+     */
+    public synchronized FrameBuffer acquire(int width, int height, int bpp, int dataOffset) {
+        final int size = dataOffset + (width * height * bpp);
+        Deque<FrameBuffer> buffers = idle.get(size);
+        FrameBuffer buffer = buffers != null ? buffers.pollFirst() : null;
+        if (buffer == null) {
+            buffer = allocate(size);
+            allocations++;
+        }
+        outstanding++;
+        buffer.reset();
+        return buffer;
+    }
+
+    private FrameBuffer allocate(int size) {
+        switch (active) {
+            case MAPPED: {
+                final Deque<Long> regions = freeRegions.get(size);
+                final Long free = regions != null ? regions.pollFirst() : null;
+                final long position = free != null ? free : mapEnd;
+                try (RandomAccessFile file = new RandomAccessFile(mapFile(), "rw")) {
+                    // The mapping stays valid after the file is closed
+                    final ByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, position, size);
+                    if (free == null) {
+                        mapEnd += size;
+                    }
+                    return new FrameBuffer(this, buffer, position);
+                } catch (IOException | RuntimeException e) {
+                    logger.warn("Could not map frame memory, using direct buffers instead: " + e.getMessage());
+                    if (free != null) {
+                        regions.addFirst(free);
+                    }
+                    active = FrameStorage.DIRECT;
+                    return new FrameBuffer(this, ByteBuffer.allocateDirect(size), -1);
+                }
+            }
+            case DIRECT:
+                return new FrameBuffer(this, ByteBuffer.allocateDirect(size), -1);
+            default:
+                return new FrameBuffer(this, ByteBuffer.wrap(new byte[size]), -1);
+        }
+    }
+
+    /**
+     * Every pool gets a file of its own, so a replaced pool never maps over frames another one still has out
+     */
+    private File mapFile() throws IOException {
+        if (mapFile == null) {
+            mapFile = File.createTempFile("phonePiperFrames", ".raw", mapDirectory);
+            mapFile.deleteOnExit();
+        }
+        return mapFile;
+    }
+
+    synchronized void recycle(FrameBuffer buffer) {
+        outstanding--;
+        if (closed) {
+            drop(buffer);
+            if (outstanding == 0) {
+                deleteMapFile();
+            }
+            return;
+        }
+        Deque<FrameBuffer> buffers = idle.get(buffer.size());
+        if (buffers == null) {
+            // Only the most recent resolution is worth keeping
+            clear();
+            buffers = new ArrayDeque<>();
+            idle.put(buffer.size(), buffers);
+        }
+        if (buffers.size() < MAX_IDLE) {
+            buffers.addFirst(buffer);
+        } else {
+            drop(buffer);
+        }
+    }
+
+    /**
+     * Give the buffer's region back for a later buffer of the same size
+     */
+    private void drop(FrameBuffer buffer) {
+        if (buffer.getRegion() < 0) {
+            return;
+        }
+        Deque<Long> regions = freeRegions.get(buffer.size());
+        if (regions == null) {
+            regions = new ArrayDeque<>();
+            freeRegions.put(buffer.size(), regions);
+        }
+        regions.addFirst(buffer.getRegion());
+    }
+
+    public synchronized void clear() {
+        for (Deque<FrameBuffer> buffers : idle.values()) {
+            for (FrameBuffer buffer : buffers) {
+                drop(buffer);
+            }
+        }
+        idle.clear();
+    }
+
+    /**
+     * Stop keeping buffers, the map file is deleted once the last buffer handed out comes back
+     */
+    public synchronized void close() {
+        closed = true;
+        clear();
+        if (outstanding == 0) {
+            deleteMapFile();
+        }
+    }
+
+    private void deleteMapFile() {
+        // Windows keeps the file until the mappings are collected, deleteOnExit catches it then
+        if (mapFile != null && !mapFile.delete()) {
+            logger.debug("Could not delete frame map file yet: " + mapFile.getAbsolutePath());
+        }
+    }
+
+    public synchronized int getAllocations() {
+        return allocations;
+    }
+
+    /**
+     * Size of the map file so far, regions handed out again do not add to it
+     */
+    public synchronized long getMappedSize() {
+        return mapEnd;
+    }
+}
@@ -0,0 +1,194 @@
+package com.mgatelabs.piper.shared.image;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+/**
+ * Turns frames into PNG or JPEG images.  Raw frames are copied straight into the int raster of the image, which is
+ * far cheaper than a setRGB call per pixel, and can be shrunk by a whole factor on the way.
+ */
+public class FrameEncoder {
+
+    private static final Logger logger = LoggerFactory.getLogger(FrameEncoder.class);
+
+    public enum Format {
+        PNG("png", "image/png"),
+        JPEG("jpeg", "image/jpeg");
+
+        private final String formatName;
+        private final String contentType;
+
+        Format(String formatName, String contentType) {
+            this.formatName = formatName;
+            this.contentType = contentType;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+    }
+
+    public static final int DEFAULT_QUALITY = 85;
+    // Deflate level for the live screen, the saved previews keep the ImageIO default
+    public static final int FAST_COMPRESSION = 1;
+    public static final int DEFAULT_COMPRESSION = -1;
+
+    private final Format format;
+    private final int quality;
+    private final int compression;
+    private final int scale;
+
+    /**
+     * @param quality     JPEG quality from 1 to 100
+     * @param compression PNG deflate level from 0 to 9, or -1 for the default
+     * @param scale       keep every scale-th pixel in both directions, 1 keeps them all
+     */
+    public FrameEncoder(Format format, int quality, int compression, int scale) {
+        this.format = format;
+        this.quality = Math.max(1, Math.min(100, quality));
+        this.compression = Math.min(9, compression);
+        this.scale = Math.max(1, scale);
+    }
+
+    /**
+     * Full size PNG with the default compression
+     */
+    public static FrameEncoder png() {
+        return new FrameEncoder(Format.PNG, DEFAULT_QUALITY, DEFAULT_COMPRESSION, 1);
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    public byte[] encode(ImageWrapper imageWrapper) {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        if (write(imageWrapper, outputStream)) {
+            return outputStream.toByteArray();
+        }
+        return null;
+    }
+
+    public boolean save(ImageWrapper imageWrapper, File file) {
+        try (OutputStream outputStream = new FileOutputStream(file)) {
+            return write(imageWrapper, outputStream);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    public boolean write(ImageWrapper imageWrapper, OutputStream outputStream) {
+        return write(toImage(imageWrapper, scale), outputStream);
+    }
+
+    public boolean write(BufferedImage image, OutputStream outputStream) {
+        final Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format.formatName);
+        if (!writers.hasNext()) {
+            logger.error("No image writer for " + format.formatName);
+            return false;
+        }
+        final ImageWriter writer = writers.next();
+        try (ImageOutputStream imageOutputStream = ImageIO.createImageOutputStream(outputStream)) {
+            writer.setOutput(imageOutputStream);
+            final ImageWriteParam param = writer.getDefaultWriteParam();
+            if (format == Format.JPEG) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(quality / 100f);
+            } else if (compression >= 0 && param.canWriteCompressed()) {
+                // The PNG writer maps quality 1 to level 0 and quality 0 to level 9
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(1f - compression / 9f);
+            }
+            writer.write(null, new IIOImage(image, null, null), param);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    /**
+     * Copy a frame into an RGB image, keeping every scale-th pixel
+     */
+    public static BufferedImage toImage(ImageWrapper imageWrapper, int scale) {
+        scale = Math.max(1, scale);
+        final int width = Math.max(1, imageWrapper.getWidth() / scale);
+        final int height = Math.max(1, imageWrapper.getHeight() / scale);
+        final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        final int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+
+        if (imageWrapper instanceof RawImageWrapper) {
+            final RawImageWrapper raw = (RawImageWrapper) imageWrapper;
+            copyRows(ByteBuffer.wrap(raw.getRaw()), raw.getWidth(), raw.getDataOffset(), raw.getFormat(), scale, width, height, pixels);
+        } else if (imageWrapper instanceof BufferImageWrapper) {
+            final BufferImageWrapper raw = (BufferImageWrapper) imageWrapper;
+            copyRows(raw.getBuffer(), raw.getWidth(), raw.getDataOffset(), raw.getFormat(), scale, width, height, pixels);
+        } else {
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    pixels[y * width + x] = 0xFFFFFF & imageWrapper.getPixel(x * scale, y * scale);
+                }
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Arrays are read in place, other buffers one row at a time through a small copy
+     */
+    private static void copyRows(ByteBuffer data, int sourceWidth, int dataOffset, RawImageWrapper.ImageFormats format, int scale, int width, int height, int[] pixels) {
+        final int bpp = format.getBpp();
+        final int rowBytes = sourceWidth * bpp;
+        final int step = bpp * scale;
+        final int span = (width - 1) * step + bpp;
+        // RGB in the first 3 bytes can be copied without decoding
+        final boolean rgb = format == RawImageWrapper.ImageFormats.RGBA || format == RawImageWrapper.ImageFormats.RGBX;
+        final boolean inPlace = data.hasArray();
+        final byte[] row = inPlace ? data.array() : new byte[span];
+        final ByteBuffer source = data.duplicate();
+        for (int y = 0; y < height; y++) {
+            final int start = dataOffset + (y * scale) * rowBytes;
+            if (start + span > data.capacity()) {
+                // Short frame, the rest stays black like getPixel would give
+                break;
+            }
+            int index;
+            if (inPlace) {
+                index = data.arrayOffset() + start;
+            } else {
+                source.clear();
+                source.position(start);
+                source.get(row, 0, span);
+                index = 0;
+            }
+            int target = y * width;
+            if (rgb) {
+                for (int x = 0; x < width; x++, index += step) {
+                    pixels[target++] = ((row[index] & 0xff) << 16) | ((row[index + 1] & 0xff) << 8) | (row[index + 2] & 0xff);
+                }
+            } else {
+                for (int x = 0; x < width; x++, index += step) {
+                    pixels[target++] = 0xFFFFFF & format.toArgb(row, index);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.mgatelabs.piper.shared.image;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads a strip of a frame one row at a time as RGB.  Raw frames are read straight from their memory, heap frames in
+ * place and the others through a small row copy, any other image goes through getPixel.
+ */
+class FrameRows {
+
+    private final ImageWrapper imageWrapper;
+    private final int x;
+    private final int width;
+    private final ByteBuffer data;
+    private final int sourceWidth;
+    private final int dataOffset;
+    private final RawImageWrapper.ImageFormats format;
+    // RGB in the first 3 bytes can be read without decoding
+    private final boolean rgb;
+    private final byte[] row;
+
+    FrameRows(final ImageWrapper imageWrapper, final int x, final int width) {
+        this.imageWrapper = imageWrapper;
+        this.x = x;
+        this.width = width;
+        if (imageWrapper instanceof RawImageWrapper) {
+            final RawImageWrapper raw = (RawImageWrapper) imageWrapper;
+            data = ByteBuffer.wrap(raw.getRaw());
+            sourceWidth = raw.getWidth();
+            dataOffset = raw.getDataOffset();
+            format = raw.getFormat();
+        } else if (imageWrapper instanceof BufferImageWrapper) {
+            final BufferImageWrapper raw = (BufferImageWrapper) imageWrapper;
+            data = raw.getBuffer();
+            sourceWidth = raw.getWidth();
+            dataOffset = raw.getDataOffset();
+            format = raw.getFormat();
+        } else {
+            data = null;
+            sourceWidth = 0;
+            dataOffset = 0;
+            format = null;
+        }
+        rgb = format == RawImageWrapper.ImageFormats.RGBA || format == RawImageWrapper.ImageFormats.RGBX;
+        row = data == null ? null : data.hasArray() ? data.array() : new byte[width * format.getBpp()];
+    }
+
+    /**
+     * Fill target with the row at y
+     *
+     * @return false if the frame ends before the row does
+     */
+    boolean read(final int y, final int[] target) {
+        if (data == null) {
+            for (int c = 0; c < width; c++) {
+                target[c] = 0xFFFFFF & imageWrapper.getPixel(x + c, y);
+            }
+            return true;
+        }
+        final int bpp = format.getBpp();
+        final int span = width * bpp;
+        final int start = dataOffset + (y * sourceWidth + x) * bpp;
+        if (start + span > data.capacity()) {
+            return false;
+        }
+        int index;
+        if (data.hasArray()) {
+            index = data.arrayOffset() + start;
+        } else {
+            final ByteBuffer source = data.duplicate();
+            source.position(start);
+            source.get(row, 0, span);
+            index = 0;
+        }
+        if (rgb) {
+            for (int c = 0; c < width; c++, index += bpp) {
+                target[c] = ((row[index] & 0xff) << 16) | ((row[index + 1] & 0xff) << 8) | (row[index + 2] & 0xff);
+            }
+        } else {
+            for (int c = 0; c < width; c++, index += bpp) {
+                target[c] = 0xFFFFFF & format.toArgb(row, index);
+            }
+        }
+        return true;
+    }
+}
@@ -21,4 +21,9 @@ public interface ImageWrapper {
     byte [] outputPng();
 
     byte [] getRaw();
+
+    /**
+     * Give back any pooled frame behind this image, it must not be read afterwards
+     */
+    void release();
 }
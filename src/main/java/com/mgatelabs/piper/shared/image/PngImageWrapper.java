@@ -81,4 +81,9 @@ public class PngImageWrapper implements ImageWrapper {
     public byte [] getRaw() {
         return new byte [0];
     }
+
+    @Override
+    public void release() {
+
+    }
 }
@@ -1,10 +1,7 @@
 package com.mgatelabs.piper.shared.image;
 
-import javax.imageio.ImageIO;
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Created by @mgatelabs (Michael Fuller) on 8/31/2017 for Phone-Piper
@@ -14,12 +11,17 @@ public class RawImageWrapper implements ImageWrapper {
     public enum ImageFormats {
 
         // RRGGBBAA
-        // AARRGGBB
-
-        RGBA(4, 0xFF000000, 8, 24, 0xFF0000, 8, 16, 0xFF00, 8, 8, 0xFF, -24);
-
-        ImageFormats(int bpp, int redMask, int redShift, int redExtract, int greenMask, int greenShift, int greenExtract, int blueMask, int blueShift, int blueExtract, int alphaMask, int alphaShift) {
+        RGBA(4, 1, 0xFF000000, 8, 24, 0xFF0000, 8, 16, 0xFF00, 8, 8, 0xFF, -24),
+        // RRGGBBXX, the last byte is padding
+        RGBX(4, 2, 0xFF000000, 8, 24, 0xFF0000, 8, 16, 0xFF00, 8, 8, 0, 0),
+        // BBGGRRAA
+        BGRA(4, 5, 0xFF00, -8, 8, 0xFF0000, 8, 16, 0xFF000000, 24, 24, 0xFF, -24),
+        // 16 bit little endian RRRRRGGG GGGBBBBB
+        RGB_565(2, 4, 0xF800, -8, 0, 0x07E0, -5, 0, 0x001F, -3, 0, 0, 0);
+
+        ImageFormats(int bpp, int headerCode, int redMask, int redShift, int redExtract, int greenMask, int greenShift, int greenExtract, int blueMask, int blueShift, int blueExtract, int alphaMask, int alphaShift) {
             this.bpp = bpp;
+            this.headerCode = headerCode;
             this.redMask = redMask;
             this.redShift = redShift;
             this.redExtract = redExtract;
@@ -34,6 +36,7 @@ public class RawImageWrapper implements ImageWrapper {
         }
 
         private final int bpp;
+        private final int headerCode;
         private final int redMask;
         private final int redExtract;
         private final int redShift;
@@ -50,6 +53,25 @@ public class RawImageWrapper implements ImageWrapper {
             return bpp;
         }
 
+        /**
+         * Android's PixelFormat id, which screencap writes after the width and height
+         */
+        public int getHeaderCode() {
+            return headerCode;
+        }
+
+        /**
+         * @return null for formats Phone Piper cannot read
+         */
+        public static ImageFormats forHeaderCode(int headerCode) {
+            for (ImageFormats format : values()) {
+                if (format.headerCode == headerCode) {
+                    return format;
+                }
+            }
+            return null;
+        }
+
         public int getRedMask() {
             return redMask;
         }
@@ -93,6 +115,83 @@ public class RawImageWrapper implements ImageWrapper {
         public int getBlueExtract() {
             return blueExtract;
         }
+
+        /**
+         * The pixel starting at index as ARGB
+         */
+        public int toArgb(final byte[] data, final int index) {
+            if (bpp == 2) {
+                return fromMerged((0xff & data[index]) | ((0xff & data[index + 1]) << 8));
+            }
+            return fromMerged(((0xff & data[index]) << 24) | ((0xff & data[index + 1]) << 16) | ((0xff & data[index + 2]) << 8) | (0xff & data[index + 3]));
+        }
+
+        public int toArgb(final ByteBuffer data, final int index) {
+            if (bpp == 2) {
+                return fromMerged((0xff & data.get(index)) | ((0xff & data.get(index + 1)) << 8));
+            }
+            return fromMerged(((0xff & data.get(index)) << 24) | ((0xff & data.get(index + 1)) << 16) | ((0xff & data.get(index + 2)) << 8) | (0xff & data.get(index + 3)));
+        }
+
+        private int fromMerged(int mergedBytes) {
+            // Extract the colors
+            int r = shiftMe((mergedBytes & redMask), redShift);
+            int g = shiftMe((mergedBytes & greenMask), greenShift);
+            int b = shiftMe((mergedBytes & blueMask), blueShift);
+            final int a = alphaMask != 0 ? shiftMe((mergedBytes & alphaMask), alphaShift) : 0xFF000000;
+
+            if (bpp == 2) {
+                // Repeat the top bits into the empty low bits, so full intensity is 255 and not 248
+                r |= (r >>> 5) & 0x070000;
+                g |= (g >>> 6) & 0x0300;
+                b |= b >>> 5;
+            }
+
+            // Return the color in the format ARGB
+            return a | r | g | b;
+        }
+
+        /**
+         * What the state checkers compare for a pixel, packed like RGB.  For the 32 bit formats these are the first 3
+         * bytes as they are, so the color channels in memory order, and for 565 the decoded color.
+         */
+        public int sample(final byte[] data, final int index) {
+            if (bpp == 2) {
+                return 0xFFFFFF & toArgb(data, index);
+            }
+            return ((0xff & data[index]) << 16) | ((0xff & data[index + 1]) << 8) | (0xff & data[index + 2]);
+        }
+
+        public int sample(final ByteBuffer data, final int index) {
+            if (bpp == 2) {
+                return 0xFFFFFF & toArgb(data, index);
+            }
+            return ((0xff & data.get(index)) << 16) | ((0xff & data.get(index + 1)) << 8) | (0xff & data.get(index + 2));
+        }
+
+        /**
+         * The sample a pixel of exactly this color gives
+         */
+        public int toSample(int r, int g, int b) {
+            if (bpp == 2) {
+                return ((r & 0xff) << 16) | ((g & 0xff) << 8) | (b & 0xff);
+            }
+            return ((r & 0xff) << (redExtract - 8)) | ((g & 0xff) << (greenExtract - 8)) | ((b & 0xff) << (blueExtract - 8));
+        }
+
+        /**
+         * How many bytes from its offset a sample reads
+         */
+        public int getSampleBytes() {
+            return Math.min(bpp, 3);
+        }
+
+        /**
+         * Samples are the raw bytes, so checkers can compare them without decoding
+         */
+        public boolean isRawSample() {
+            return bpp == 4;
+        }
     }
 
     private final int dataOffset;
@@ -129,6 +228,10 @@ public class RawImageWrapper implements ImageWrapper {
         return format;
     }
 
+    public int getDataOffset() {
+        return dataOffset;
+    }
+
     @Override
     public int getPixel(int x, int y) {
         int startIndex = dataOffset + ((y * width) * format.getBpp()) + (x * format.getBpp());
@@ -137,29 +240,18 @@ public class RawImageWrapper implements ImageWrapper {
             return 0xFF000000;
         }
 
-        int mergedBytes = ((0xff & data[startIndex]) << 24) | ((0xff & data[startIndex + 1]) << 16) | ((0xff & data[startIndex + 2]) << 8) | (0xff & data[startIndex + 3]);
-
-        // Extract the colors
-        final int r = shiftMe((mergedBytes & format.getRedMask()), format.getRedShift());
-        final int g = shiftMe((mergedBytes & format.getGreenMask()), format.getGreenShift());
-        final int b = shiftMe((mergedBytes & format.getBlueMask()), format.getBlueShift());
-        final int a = shiftMe((mergedBytes & format.getAlphaMask()), format.getAlphaShift());
-
-        // Return the color in the format ARGB
-        return a | r | g | b;
+        return format.toArgb(data, startIndex);
     }
 
     @Override
     public void getPixel(int x, int y, Sampler sample) {
         int startIndex = dataOffset + ((y * width) * format.getBpp()) + (x * format.getBpp());
-        sample.setR(0xff & data[startIndex]);
-        sample.setG(0xff & data[startIndex + 1]);
-        sample.setB(0xff & data[startIndex + 2]);
+        sample.parse(format.toArgb(data, startIndex));
     }
 
-    private int shiftMe(int value, int shift) {
+    private static int shiftMe(int value, int shift) {
         if (shift > 0) {
-            value >>= shift;
+            value >>>= shift;
         } else {
             value <<= (shift * -1);
         }
@@ -168,39 +260,12 @@ public class RawImageWrapper implements ImageWrapper {
 
     @Override
     public boolean savePng(File file) {
-        BufferedImage bufferedImage = new BufferedImage(getWidth(), getHeight(), BufferedImage.TYPE_INT_RGB);
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                int color = getPixel(x,y);
-                bufferedImage.setRGB(x,y, 0xFFFFFF & color);
-            }
-        }
-        try {
-            ImageIO.write(bufferedImage, "PNG", file);
-            return true;
-        } catch (IOException e) {
-            e.printStackTrace();
-            return false;
-        }
+        return FrameEncoder.png().save(this, file);
     }
 
     @Override
     public byte [] outputPng() {
-        BufferedImage bufferedImage = new BufferedImage(getWidth(), getHeight(), BufferedImage.TYPE_INT_RGB);
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                int color = getPixel(x,y);
-                bufferedImage.setRGB(x,y, 0xFFFFFF & color);
-            }
-        }
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        try {
-            ImageIO.write(bufferedImage, "PNG", byteArrayOutputStream);
-            return byteArrayOutputStream.toByteArray();
-        } catch (IOException e) {
-            e.printStackTrace();
-            return null;
-        }
+        return FrameEncoder.png().encode(this);
     }
 
     public static int getOffsetFor(final int width, final int dataOffset, final int x, final int y, final ImageFormats format) {
@@ -210,4 +275,9 @@ public class RawImageWrapper implements ImageWrapper {
     public byte [] getRaw() {
         return data;
     }
+
+    @Override
+    public void release() {
+        // Nothing pooled behind a plain array
+    }
 }
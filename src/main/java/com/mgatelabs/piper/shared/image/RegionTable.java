@@ -0,0 +1,189 @@
+package com.mgatelabs.piper.shared.image;
+
+import java.util.Arrays;
+
+/**
+ * Summed-area tables over one rectangle of a frame, the color channels plus a count per coarse color.  Built with a
+ * single pass over the rectangle, after which the mean color or color share of any part of it is a handful of reads.
+ */
+public class RegionTable {
+
+    /**
+     * Coarse colors, dark and washed out pixels first and then the six hues
+     */
+    public enum Bin {
+        BLACK,
+        GRAY,
+        WHITE,
+        RED,
+        YELLOW,
+        GREEN,
+        CYAN,
+        BLUE,
+        MAGENTA;
+
+        private static final Bin[] HUES = {RED, YELLOW, GREEN, CYAN, BLUE, MAGENTA};
+
+        public static Bin of(final int rgb) {
+            final int r = (rgb >> 16) & 0xff;
+            final int g = (rgb >> 8) & 0xff;
+            final int b = rgb & 0xff;
+            final int max = Math.max(r, Math.max(g, b));
+            final int min = Math.min(r, Math.min(g, b));
+            if (max < 48) {
+                return BLACK;
+            }
+            final int chroma = max - min;
+            if (chroma * 4 < max) {
+                return max >= 192 ? WHITE : GRAY;
+            }
+            int hue;
+            if (max == r) {
+                hue = 60 * (g - b) / chroma;
+            } else if (max == g) {
+                hue = 120 + 60 * (b - r) / chroma;
+            } else {
+                hue = 240 + 60 * (r - g) / chroma;
+            }
+            if (hue < 0) {
+                hue += 360;
+            }
+            return HUES[((hue + 30) / 60) % 6];
+        }
+    }
+
+    private static final int BINS = Bin.values().length;
+
+    private final int x;
+    private final int y;
+    private final int width;
+    private final int height;
+    // (width + 1) x (height + 1), the first row and column stay zero
+    private final int stride;
+    private final int[] red;
+    private final int[] green;
+    private final int[] blue;
+    // BINS counts per entry
+    private final int[] bins;
+
+    private RegionTable(int x, int y, int width, int height) {
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+        this.stride = width + 1;
+        final int size = stride * (height + 1);
+        this.red = new int[size];
+        this.green = new int[size];
+        this.blue = new int[size];
+        this.bins = new int[size * BINS];
+    }
+
+    /**
+     * The rectangle is clipped to the frame, rows past the end of a short frame count as black
+     */
+    public static RegionTable build(final ImageWrapper frame, int x, int y, int w, int h) {
+        x = Math.max(0, x);
+        y = Math.max(0, y);
+        w = Math.max(0, Math.min(w, frame.getWidth() - x));
+        h = Math.max(0, Math.min(h, frame.getHeight() - y));
+        final RegionTable table = new RegionTable(x, y, w, h);
+        table.fill(frame);
+        return table;
+    }
+
+    private void fill(final ImageWrapper frame) {
+        final FrameRows rows = new FrameRows(frame, x, width);
+        final int[] line = new int[width];
+        final int[] lineBins = new int[BINS];
+        boolean available = true;
+        for (int row = 0; row < height; row++) {
+            if (available && !rows.read(y + row, line)) {
+                available = false;
+                Arrays.fill(line, 0);
+            }
+            int lineRed = 0, lineGreen = 0, lineBlue = 0;
+            Arrays.fill(lineBins, 0);
+            int index = (row + 1) * stride + 1;
+            for (int column = 0; column < width; column++, index++) {
+                final int rgb = line[column];
+                lineRed += (rgb >> 16) & 0xff;
+                lineGreen += (rgb >> 8) & 0xff;
+                lineBlue += rgb & 0xff;
+                lineBins[Bin.of(rgb).ordinal()]++;
+                final int above = index - stride;
+                red[index] = red[above] + lineRed;
+                green[index] = green[above] + lineGreen;
+                blue[index] = blue[above] + lineBlue;
+                final int binIndex = index * BINS;
+                final int binAbove = above * BINS;
+                for (int k = 0; k < BINS; k++) {
+                    bins[binIndex + k] = bins[binAbove + k] + lineBins[k];
+                }
+            }
+        }
+    }
+
+    public int getX() {
+        return x;
+    }
+
+    public int getY() {
+        return y;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Mean color of the whole rectangle
+     */
+    public Sampler mean() {
+        return mean(0, 0, width, height);
+    }
+
+    /**
+     * Mean color of part of the rectangle, in coordinates relative to it.  An empty part is black.
+     */
+    public Sampler mean(int left, int top, int w, int h) {
+        final int area = clippedArea(left, top, w, h);
+        if (area == 0) {
+            return new Sampler();
+        }
+        final int l = clamp(left, width), t = clamp(top, height), r = clamp(left + w, width), b = clamp(top + h, height);
+        return new Sampler(sum(red, 1, 0, l, t, r, b) / area, sum(green, 1, 0, l, t, r, b) / area, sum(blue, 1, 0, l, t, r, b) / area);
+    }
+
+    /**
+     * Share of the whole rectangle's pixels in the given color, from 0 to 100
+     */
+    public int percent(final Bin bin) {
+        return percent(bin, 0, 0, width, height);
+    }
+
+    public int percent(final Bin bin, int left, int top, int w, int h) {
+        final int area = clippedArea(left, top, w, h);
+        if (area == 0) {
+            return 0;
+        }
+        final int count = sum(bins, BINS, bin.ordinal(), clamp(left, width), clamp(top, height), clamp(left + w, width), clamp(top + h, height));
+        return (int) ((count * 100L + area / 2) / area);
+    }
+
+    private int clippedArea(int left, int top, int w, int h) {
+        return Math.max(0, clamp(left + w, width) - clamp(left, width)) * Math.max(0, clamp(top + h, height) - clamp(top, height));
+    }
+
+    private static int clamp(int value, int max) {
+        return Math.max(0, Math.min(max, value));
+    }
+
+    private int sum(final int[] table, final int step, final int offset, final int left, final int top, final int right, final int bottom) {
+        return table[(bottom * stride + right) * step + offset] - table[(top * stride + right) * step + offset] - table[(bottom * stride + left) * step + offset] + table[(top * stride + left) * step + offset];
+    }
+}
@@ -0,0 +1,150 @@
+package com.mgatelabs.piper.shared.image;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * A screen's sample points turned into flat byte offsets and packed colors for one frame layout, so matching a raw
+ * frame is a tight loop over the backing memory instead of a getPixel call per point.
+ */
+public class ScreenMatcher {
+
+    // Allowed difference per color channel, the same fuzz SamplePoint.validate uses
+    public static final int TOLERANCE = 6;
+
+    private final int width;
+    private final int dataOffset;
+    private final RawImageWrapper.ImageFormats format;
+    private final int[] xs;
+    private final int[] ys;
+    private final int[] offsets;
+    private final int[] colors;
+    // The colors as the raw frame holds them, see ImageFormats.sample
+    private final int[] samples;
+
+    private ScreenMatcher(int width, int dataOffset, RawImageWrapper.ImageFormats format, int[] xs, int[] ys, int[] offsets, int[] colors, int[] samples) {
+        this.width = width;
+        this.dataOffset = dataOffset;
+        this.format = format;
+        this.xs = xs;
+        this.ys = ys;
+        this.offsets = offsets;
+        this.colors = colors;
+        this.samples = samples;
+    }
+
+    public static ScreenMatcher compile(final List<SamplePoint> points, final int width, final int dataOffset, final RawImageWrapper.ImageFormats format) {
+        final int size = points.size();
+        final int[] xs = new int[size];
+        final int[] ys = new int[size];
+        final int[] offsets = new int[size];
+        final int[] colors = new int[size];
+        final int[] samples = new int[size];
+        for (int i = 0; i < size; i++) {
+            final SamplePoint point = points.get(i);
+            xs[i] = point.getX();
+            ys[i] = point.getY();
+            offsets[i] = RawImageWrapper.getOffsetFor(width, dataOffset, point.getX(), point.getY(), format);
+            colors[i] = ((point.getR() & 0xff) << 16) | ((point.getG() & 0xff) << 8) | (point.getB() & 0xff);
+            samples[i] = format.toSample(point.getR(), point.getG(), point.getB());
+        }
+        return new ScreenMatcher(width, dataOffset, format, xs, ys, offsets, colors, samples);
+    }
+
+    /**
+     * Compile for the layout of the given image, PNG images get the default raw layout and are matched by pixel
+     */
+    public static ScreenMatcher compile(final List<SamplePoint> points, final ImageWrapper imageWrapper) {
+        if (imageWrapper instanceof RawImageWrapper) {
+            final RawImageWrapper raw = (RawImageWrapper) imageWrapper;
+            return compile(points, raw.getWidth(), raw.getDataOffset(), raw.getFormat());
+        } else if (imageWrapper instanceof BufferImageWrapper) {
+            final BufferImageWrapper raw = (BufferImageWrapper) imageWrapper;
+            return compile(points, raw.getWidth(), raw.getDataOffset(), raw.getFormat());
+        }
+        return compile(points, imageWrapper.getWidth(), 12, RawImageWrapper.ImageFormats.RGBA);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int size() {
+        return offsets.length;
+    }
+
+    public boolean matches(final ImageWrapper imageWrapper) {
+        if (imageWrapper instanceof RawImageWrapper) {
+            final RawImageWrapper raw = (RawImageWrapper) imageWrapper;
+            if (raw.getWidth() == width && raw.getDataOffset() == dataOffset && raw.getFormat() == format) {
+                return matches(raw.getRaw());
+            }
+        } else if (imageWrapper instanceof BufferImageWrapper) {
+            final BufferImageWrapper raw = (BufferImageWrapper) imageWrapper;
+            if (raw.getWidth() == width && raw.getDataOffset() == dataOffset && raw.getFormat() == format) {
+                return matches(raw.getBuffer());
+            }
+        }
+        // Some other layout, go through the wrapper
+        for (int i = 0; i < xs.length; i++) {
+            if (!close(imageWrapper.getPixel(xs[i], ys[i]), colors[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Match a frame with the layout this was compiled for
+     */
+    public boolean matches(final byte[] data) {
+        final int bpp = format.getBpp();
+        final int limit = data.length - bpp;
+        if (!format.isRawSample()) {
+            for (int i = 0; i < offsets.length; i++) {
+                if (!close(offsets[i] > limit ? 0 : format.sample(data, offsets[i]), samples[i])) return false;
+            }
+            return true;
+        }
+        for (int i = 0; i < offsets.length; i++) {
+            final int offset = offsets[i];
+            final int expected = samples[i];
+            if (offset > limit) {
+                // Past the end reads as black, like RawImageWrapper.getPixel
+                if (!close(0, expected)) return false;
+                continue;
+            }
+            int diff = (data[offset] & 0xff) - ((expected >> 16) & 0xff);
+            if (diff > TOLERANCE || diff < -TOLERANCE) return false;
+            diff = (data[offset + 1] & 0xff) - ((expected >> 8) & 0xff);
+            if (diff > TOLERANCE || diff < -TOLERANCE) return false;
+            diff = (data[offset + 2] & 0xff) - (expected & 0xff);
+            if (diff > TOLERANCE || diff < -TOLERANCE) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Match a frame with the layout this was compiled for, heap buffers are matched through their array and others with
+     * absolute reads, so the buffer may be shared
+     */
+    public boolean matches(final ByteBuffer data) {
+        if (data.hasArray() && data.arrayOffset() == 0 && data.array().length == data.capacity()) {
+            return matches(data.array());
+        }
+        final int limit = data.capacity() - format.getBpp();
+        for (int i = 0; i < offsets.length; i++) {
+            if (!close(offsets[i] > limit ? 0 : format.sample(data, offsets[i]), samples[i])) return false;
+        }
+        return true;
+    }
+
+    private static boolean close(final int color, final int expected) {
+        int diff = ((color >> 16) & 0xff) - ((expected >> 16) & 0xff);
+        if (diff > TOLERANCE || diff < -TOLERANCE) return false;
+        diff = ((color >> 8) & 0xff) - ((expected >> 8) & 0xff);
+        if (diff > TOLERANCE || diff < -TOLERANCE) return false;
+        diff = (color & 0xff) - (expected & 0xff);
+        return diff <= TOLERANCE && diff >= -TOLERANCE;
+    }
+}
@@ -1,6 +1,9 @@
 package com.mgatelabs.piper.shared.image;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.mgatelabs.piper.shared.helper.PointTransfer;
+import com.mgatelabs.piper.shared.helper.ScreenTreeNode;
 
 import java.util.List;
 
@@ -11,6 +14,12 @@ public class StateTransfer {
     public String stateId;
     public List<String> screenIds;
     public List<PointTransfer> points;
+    // Absolute frame offsets of the points, before the delta encoding, only used on the host
+    @JsonIgnore
+    private int[] offsets;
+    // Decision tree over the points, only sent to a helper that asked for it
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public ScreenTreeNode tree;
 
     public StateTransfer() {
 
@@ -39,4 +48,34 @@ public class StateTransfer {
     public void setPoints(List<PointTransfer> points) {
         this.points = points;
     }
+
+    @JsonIgnore
+    public int[] getOffsets() {
+        return offsets;
+    }
+
+    @JsonIgnore
+    public void setOffsets(int[] offsets) {
+        this.offsets = offsets;
+    }
+
+    public ScreenTreeNode getTree() {
+        return tree;
+    }
+
+    public void setTree(ScreenTreeNode tree) {
+        this.tree = tree;
+    }
+
+    /**
+     * The same state without the decision tree, for helpers that do not understand it
+     */
+    public StateTransfer withoutTree() {
+        StateTransfer copy = new StateTransfer();
+        copy.setStateId(stateId);
+        copy.setScreenIds(screenIds);
+        copy.setPoints(points);
+        copy.setOffsets(offsets);
+        return copy;
+    }
 }
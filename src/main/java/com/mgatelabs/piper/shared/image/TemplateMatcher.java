@@ -0,0 +1,273 @@
+package com.mgatelabs.piper.shared.image;
+
+/**
+ * Finds a template, usually a component cut out of its preview image, somewhere inside a region of a frame.
+ * <p>
+ * Template and region are turned into luminance and halved a few times into pyramids.  Only the smallest level is
+ * searched everywhere, the best few spots are then followed down level by level, looking a couple of pixels around
+ * each.  Spots are scored by the sum of absolute differences, and a sum is abandoned as soon as it can no longer beat
+ * the spots already kept.
+ */
+public class TemplateMatcher {
+
+    // Average luminance difference per pixel that still counts as found
+    public static final int DEFAULT_TOLERANCE = 12;
+
+    // Stop halving before the smaller side of the template drops below this
+    private static final int MIN_SIZE = 8;
+    private static final int MAX_LEVELS = 5;
+    // Spots from the smallest level followed down to full size
+    private static final int CANDIDATES = 4;
+    // How far around a spot the next level is searched
+    private static final int REFINE = 2;
+
+    private final Level[] levels;
+
+    private TemplateMatcher(Level[] levels) {
+        this.levels = levels;
+    }
+
+    /**
+     * Cut the template out of an image, the area must lie inside it
+     */
+    public static TemplateMatcher compile(final ImageWrapper imageWrapper, int x, int y, int w, int h) {
+        if (w <= 0 || h <= 0 || x < 0 || y < 0 || x + w > imageWrapper.getWidth() || y + h > imageWrapper.getHeight()) {
+            throw new IllegalArgumentException("Template area " + x + "," + y + " " + w + "x" + h + " is outside the image");
+        }
+        int count = 1;
+        while (count < MAX_LEVELS && (Math.min(w, h) >> count) >= MIN_SIZE) {
+            count++;
+        }
+        return new TemplateMatcher(pyramid(luminance(imageWrapper, x, y, w, h), count));
+    }
+
+    public int getWidth() {
+        return levels[0].width;
+    }
+
+    public int getHeight() {
+        return levels[0].height;
+    }
+
+    /**
+     * Search a region of the frame, it is clipped to the frame first
+     *
+     * @return the closest spot whatever its score, or null if the template does not fit in the region
+     */
+    public Match find(final ImageWrapper frame, int x, int y, int w, int h) {
+        x = Math.max(0, x);
+        y = Math.max(0, y);
+        w = Math.min(w, frame.getWidth() - x);
+        h = Math.min(h, frame.getHeight() - y);
+        if (w < getWidth() || h < getHeight()) {
+            return null;
+        }
+
+        final Level[] regions = pyramid(luminance(frame, x, y, w, h), levels.length);
+        final int top = levels.length - 1;
+
+        final int[][] spots = coarse(regions[top], levels[top]);
+        for (int level = top - 1; level >= 0; level--) {
+            for (int[] spot : spots) {
+                if (spot != null) {
+                    refine(regions[level], levels[level], spot);
+                }
+            }
+        }
+
+        int[] best = null;
+        for (int[] spot : spots) {
+            if (spot != null && (best == null || spot[2] < best[2])) {
+                best = spot;
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+        final int area = getWidth() * getHeight();
+        return new Match(x + best[0], y + best[1], (best[2] + area / 2) / area);
+    }
+
+    /**
+     * Every position on the smallest level, keeping the best few that are not right next to each other
+     *
+     * @return spots as {x, y, sum}, best first, unused entries are null
+     */
+    private static int[][] coarse(final Level region, final Level template) {
+        final int[][] spots = new int[CANDIDATES][];
+        int kept = 0;
+        final int maxX = region.width - template.width;
+        final int maxY = region.height - template.height;
+        for (int y = 0; y <= maxY; y++) {
+            for (int x = 0; x <= maxX; x++) {
+                final int limit = kept < CANDIDATES ? Integer.MAX_VALUE : spots[CANDIDATES - 1][2];
+                final int sum = sad(region, template, x, y, limit);
+                if (sum >= limit) continue;
+                kept = keep(spots, kept, x, y, sum);
+            }
+        }
+        return spots;
+    }
+
+    private static int keep(final int[][] spots, int kept, final int x, final int y, final int sum) {
+        // A neighbour of a kept spot replaces it when better, so the spots stay spread out
+        for (int i = 0; i < kept; i++) {
+            final int[] spot = spots[i];
+            if (Math.abs(spot[0] - x) <= REFINE && Math.abs(spot[1] - y) <= REFINE) {
+                if (sum >= spot[2]) {
+                    return kept;
+                }
+                System.arraycopy(spots, i + 1, spots, i, kept - i - 1);
+                spots[--kept] = null;
+                break;
+            }
+        }
+        int index = Math.min(kept, CANDIDATES - 1);
+        while (index > 0 && spots[index - 1][2] > sum) {
+            spots[index] = spots[index - 1];
+            index--;
+        }
+        spots[index] = new int[]{x, y, sum};
+        return Math.min(kept + 1, CANDIDATES);
+    }
+
+    /**
+     * Move a spot to the next finer level, looking around where it lands
+     */
+    private static void refine(final Level region, final Level template, final int[] spot) {
+        final int maxX = region.width - template.width;
+        final int maxY = region.height - template.height;
+        final int centerX = Math.min(spot[0] * 2, maxX);
+        final int centerY = Math.min(spot[1] * 2, maxY);
+        int bestX = centerX;
+        int bestY = centerY;
+        int best = Integer.MAX_VALUE;
+        for (int y = Math.max(0, centerY - REFINE); y <= Math.min(maxY, centerY + REFINE); y++) {
+            for (int x = Math.max(0, centerX - REFINE); x <= Math.min(maxX, centerX + REFINE); x++) {
+                final int sum = sad(region, template, x, y, best);
+                if (sum < best) {
+                    best = sum;
+                    bestX = x;
+                    bestY = y;
+                }
+            }
+        }
+        spot[0] = bestX;
+        spot[1] = bestY;
+        spot[2] = best;
+    }
+
+    /**
+     * Sum of absolute differences with the template placed at x, y, given up once it reaches the limit
+     */
+    static int sad(final Level region, final Level template, final int x, final int y, final int limit) {
+        final int[] source = region.pixels;
+        final int[] target = template.pixels;
+        final int width = template.width;
+        int sum = 0;
+        int t = 0;
+        for (int row = 0; row < template.height; row++) {
+            int s = (y + row) * region.width + x;
+            for (int col = 0; col < width; col++) {
+                sum += Math.abs(source[s++] - target[t++]);
+            }
+            if (sum >= limit) {
+                return sum;
+            }
+        }
+        return sum;
+    }
+
+    private static Level[] pyramid(final Level base, final int count) {
+        final Level[] pyramid = new Level[count];
+        pyramid[0] = base;
+        for (int i = 1; i < count; i++) {
+            pyramid[i] = pyramid[i - 1].half();
+        }
+        return pyramid;
+    }
+
+    /**
+     * The luminance of an area, rows past the end of a short frame stay black
+     */
+    static Level luminance(final ImageWrapper imageWrapper, final int x, final int y, final int w, final int h) {
+        final int[] pixels = new int[w * h];
+        final int[] row = new int[w];
+        final FrameRows rows = new FrameRows(imageWrapper, x, w);
+        int index = 0;
+        for (int r = 0; r < h && rows.read(y + r, row); r++) {
+            for (int c = 0; c < w; c++) {
+                pixels[index++] = gray(row[c]);
+            }
+        }
+        return new Level(w, h, pixels);
+    }
+
+    private static int gray(final int color) {
+        return (((color >> 16) & 0xff) * 77 + ((color >> 8) & 0xff) * 150 + (color & 0xff) * 29) >> 8;
+    }
+
+    static class Level {
+        final int width;
+        final int height;
+        final int[] pixels;
+
+        Level(int width, int height, int[] pixels) {
+            this.width = width;
+            this.height = height;
+            this.pixels = pixels;
+        }
+
+        /**
+         * Average every 2x2 block, an odd last row or column is dropped
+         */
+        Level half() {
+            final int w = width / 2;
+            final int h = height / 2;
+            final int[] result = new int[w * h];
+            int index = 0;
+            for (int y = 0; y < h; y++) {
+                int top = (y * 2) * width;
+                int bottom = top + width;
+                for (int x = 0; x < w; x++, top += 2, bottom += 2) {
+                    result[index++] = (pixels[top] + pixels[top + 1] + pixels[bottom] + pixels[bottom + 1] + 2) >> 2;
+                }
+            }
+            return new Level(w, h, result);
+        }
+    }
+
+    /**
+     * Where the template was closest, as the top left corner in frame coordinates
+     */
+    public static class Match {
+        private final int x;
+        private final int y;
+        private final int score;
+
+        Match(int x, int y, int score) {
+            this.x = x;
+            this.y = y;
+            this.score = score;
+        }
+
+        public int getX() {
+            return x;
+        }
+
+        public int getY() {
+            return y;
+        }
+
+        /**
+         * Average luminance difference per pixel, 0 is a perfect match
+         */
+        public int getScore() {
+            return score;
+        }
+
+        public boolean within(int tolerance) {
+            return score <= tolerance;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package com.mgatelabs.piper.shared.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A single long lived shell on the device, opened through the ADB server like jadb does, but kept open so every
+ * command skips the connection setup.  Each command is followed by an echo of a unique marker and its exit code, which
+ * tells us where its output ends.
+ * <p>
+ * Before Android 7 adbd runs every shell: service on a pty, which echoes the commands back and turns LF into CRLF.  The
+ * marker never appears as written in the command, so the echo cannot end a command early, and {@link #isPty()} tells
+ * callers the output is not byte for byte.
+ */
+public class AdbSession implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(AdbSession.class);
+
+    private static final String ADB_HOST = "localhost";
+    private static final int ADB_PORT = 5037;
+    private static final int CONNECT_TIMEOUT = 5000;
+    // A command that takes longer than this is treated as a dead session
+    private static final int READ_TIMEOUT = 30000;
+
+    private final Socket socket;
+    private final InputStream input;
+    private final OutputStream output;
+
+    private long sequence;
+    private boolean pty;
+
+    private AdbSession(Socket socket) throws IOException {
+        this.socket = socket;
+        this.input = new BufferedInputStream(socket.getInputStream());
+        this.output = socket.getOutputStream();
+    }
+
+    /**
+     * Open a shell on the given device serial, "shell:sh" reads commands from the socket.  Newer devices give it a raw
+     * shell, older ones a pty.
+     */
+    public static AdbSession open(String serial) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(ADB_HOST, ADB_PORT), CONNECT_TIMEOUT);
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(READ_TIMEOUT);
+            AdbSession session = new AdbSession(socket);
+            session.request("host:transport:" + serial);
+            session.request("shell:sh");
+            // The command's stdout is the shell's own, so this asks whether the shell is on a pty
+            session.pty = session.exec("test -t 1", null) == 0;
+            return session;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Run one command on the "exec:" service and return its output.  It never gets a pty, so binary output such as a
+     * frame arrives untouched.  Devices before Android 5 refuse the service with an IOException.
+     * <p>
+     * Closing the stream closes the connection.
+     */
+    public static InputStream execStream(String serial, String command) throws IOException {
+        final Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(ADB_HOST, ADB_PORT), CONNECT_TIMEOUT);
+            socket.setSoTimeout(READ_TIMEOUT);
+            final AdbSession session = new AdbSession(socket);
+            session.request("host:transport:" + serial);
+            session.request("exec:" + command);
+            return new FilterInputStream(session.input) {
+                @Override
+                public void close() throws IOException {
+                    socket.close();
+                }
+            };
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private void request(String command) throws IOException {
+        final byte[] payload = command.getBytes(StandardCharsets.UTF_8);
+        output.write(String.format("%04x", payload.length).getBytes(StandardCharsets.US_ASCII));
+        output.write(payload);
+        output.flush();
+
+        final byte[] status = new byte[4];
+        DataInputStream dataInputStream = new DataInputStream(input);
+        dataInputStream.readFully(status);
+        final String response = new String(status, StandardCharsets.US_ASCII);
+        if (!"OKAY".equals(response)) {
+            String message = "";
+            if ("FAIL".equals(response)) {
+                final byte[] length = new byte[4];
+                dataInputStream.readFully(length);
+                final byte[] body = new byte[Integer.parseInt(new String(length, StandardCharsets.US_ASCII), 16)];
+                dataInputStream.readFully(body);
+                message = new String(body, StandardCharsets.UTF_8);
+            }
+            throw new IOException("ADB refused " + command + ": " + response + " " + message);
+        }
+    }
+
+    /**
+     * Run a command and wait for it to finish
+     *
+     * @param sink receives whatever the command printed, may be null
+     * @return the exit code of the command
+     */
+    public synchronized int exec(String command, OutputStream sink) throws IOException {
+        // The first character never repeats inside the marker, which keeps the matching below simple
+        final long id = ++sequence;
+        final String marker = "<piper:" + id + "> ";
+
+        // Commands must not eat the rest of our stdin, so they get /dev/null.  The empty quotes split the marker, so a
+        // pty echoing the line back never prints it.
+        final String line = "{ " + command + "\n} < /dev/null 2>&1; echo \"<piper:\"\"" + id + "> $?\"\n";
+        try {
+            output.write(line.getBytes(StandardCharsets.UTF_8));
+            output.flush();
+        } catch (IOException e) {
+            throw new NotSentException(e);
+        }
+
+        final byte[] markerBytes = marker.getBytes(StandardCharsets.US_ASCII);
+        ByteArrayOutputStream pending = new ByteArrayOutputStream();
+        int matched = 0;
+
+        // Everything up to the marker is output, after it comes the exit code and a newline
+        int value;
+        while (true) {
+            value = input.read();
+            if (value == -1) {
+                throw new IOException("Shell session closed");
+            }
+            if (matched == markerBytes.length) {
+                // Only the echo puts a digit right after the marker
+                if (value >= '0' && value <= '9') {
+                    break;
+                }
+                if (sink != null) sink.write(markerBytes, 0, matched);
+                matched = 0;
+            }
+            if (value == markerBytes[matched]) {
+                matched++;
+                continue;
+            }
+            if (matched > 0) {
+                if (sink != null) sink.write(markerBytes, 0, matched);
+                matched = value == markerBytes[0] ? 1 : 0;
+                if (matched == 1) continue;
+            }
+            if (sink != null) sink.write(value);
+        }
+
+        pending.write(value);
+        while ((value = input.read()) != '\n') {
+            if (value == -1) {
+                throw new IOException("Shell session closed");
+            }
+            pending.write(value);
+        }
+
+        try {
+            return Integer.parseInt(new String(pending.toByteArray(), StandardCharsets.US_ASCII).trim());
+        } catch (NumberFormatException e) {
+            logger.warn("Unexpected shell status: " + pending.toString());
+            return -1;
+        }
+    }
+
+    /**
+     * The command never reached the device, so it is safe to send it again on a new session
+     */
+    public static class NotSentException extends IOException {
+        NotSentException(IOException cause) {
+            super(cause.getMessage(), cause);
+        }
+    }
+
+    public boolean isOpen() {
+        return !socket.isClosed();
+    }
+
+    /**
+     * True when the shell runs on a pty, its output then has the commands echoed and CRLF line endings
+     */
+    public boolean isPty() {
+        return pty;
+    }
+
+    @Override
+    public void close() {
+        try {
+            output.write("exit\n".getBytes(StandardCharsets.US_ASCII));
+            output.flush();
+        } catch (IOException e) {
+            // Already gone
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            logger.error(e.getMessage());
+        }
+    }
+}
@@ -3,6 +3,7 @@ package com.mgatelabs.piper.shared.util;
 import com.mgatelabs.piper.shared.details.ActionType;
 import com.mgatelabs.piper.shared.details.ComponentDefinition;
 import com.mgatelabs.piper.shared.details.DeviceDefinition;
+import com.mgatelabs.piper.shared.details.InputMode;
 import com.mgatelabs.piper.shared.image.ImageWrapper;
 import com.mgatelabs.piper.shared.image.RawImageWrapper;
 import org.apache.commons.lang3.StringUtils;
@@ -16,6 +17,7 @@ import java.io.File;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 import java.security.SecureRandom;
 
 /**
@@ -29,58 +31,56 @@ public class AdbUtils {
     public static void component(DeviceDefinition deviceDefinition, ComponentDefinition componentDefinition, ActionType type, final AdbWrapper shell, boolean batch) {
         if (!componentDefinition.isEnabled()) return;
 
-        final String cmd;
+        final boolean tap;
+        final int x1, y1, x2, y2, time;
         switch (type) {
             case TAP: {
-                final int x = getStartX(componentDefinition, type);
-                final int y = getStartY(componentDefinition, type);
-                cmd = ("input tap " + x + " " + y);
+                tap = true;
+                x1 = x2 = getStartX(componentDefinition, type);
+                y1 = y2 = getStartY(componentDefinition, type);
+                time = 0;
             }
             break;
             case SWIPE_DOWN:
             case SWIPE_UP: {
-                final int x1 = getStartX(componentDefinition, type);
-                final int x2 = x1;
-
-                final int y1 = getStartY(componentDefinition, type);
-                final int y2 = getEndY(deviceDefinition, componentDefinition, type);
-                final int time = 200;
+                tap = false;
+                x1 = getStartX(componentDefinition, type);
+                x2 = x1;
 
-                cmd = ("input swipe " + x1 + " " + y1 + " " + x2 + " " + y2 + " " + time);
+                y1 = getStartY(componentDefinition, type);
+                y2 = getEndY(deviceDefinition, componentDefinition, type);
+                time = 200;
             } break;
             case SWIPE_RIGHT:
             case SWIPE_LEFT: {
-                final int x1 = getStartX(componentDefinition, type);
-                final int x2 = getEndX(deviceDefinition, componentDefinition, type);
-
-                final int y1 = getStartY(componentDefinition, type);
-                final int y2 = y1;
-                final int time = 100;
+                tap = false;
+                x1 = getStartX(componentDefinition, type);
+                x2 = getEndX(deviceDefinition, componentDefinition, type);
 
-                cmd = ("input swipe " + x1 + " " + y1 + " " + x2 + " " + y2 + " " + time);
+                y1 = getStartY(componentDefinition, type);
+                y2 = y1;
+                time = 100;
             }
             break;
             case SLOW_DOWN:
             case SLOW_UP: {
-                final int x1 = getStartX(componentDefinition, type);
-                final int x2 = x1;
+                tap = false;
+                x1 = getStartX(componentDefinition, type);
+                x2 = x1;
 
-                final int y1 = getStartY(componentDefinition, type);
-                final int y2 = getEndY(deviceDefinition, componentDefinition, type);
-                final int time = 2000;
-
-                cmd = ("input swipe " + x1 + " " + y1 + " " + x2 + " " + y2 + " " + time);
+                y1 = getStartY(componentDefinition, type);
+                y2 = getEndY(deviceDefinition, componentDefinition, type);
+                time = 2000;
             } break;
             case SLOW_LEFT:
             case SLOW_RIGHT: {
-                final int x1 = getStartX(componentDefinition, type);
-                final int x2 = getEndX(deviceDefinition, componentDefinition, type);
-
-                final int y1 = getStartY(componentDefinition, type);
-                final int y2 = y1;
-                final int time = 2000;
+                tap = false;
+                x1 = getStartX(componentDefinition, type);
+                x2 = getEndX(deviceDefinition, componentDefinition, type);
 
-                cmd = ("input swipe " + x1 + " " + y1 + " " + x2 + " " + y2 + " " + time);
+                y1 = getStartY(componentDefinition, type);
+                y2 = y1;
+                time = 2000;
             }
             break;
             default: {
@@ -88,11 +88,24 @@ public class AdbUtils {
             }
             return;
         }
-        if (batch) {
-            shell.batch(cmd);
+
+        final String cmd;
+        if (tap) {
+            cmd = ("input tap " + x1 + " " + y1);
         } else {
-            shell.exec(cmd);
+            cmd = ("input swipe " + x1 + " " + y1 + " " + x2 + " " + y2 + " " + time);
         }
+
+        if (deviceDefinition.getInputMode() == InputMode.SENDEVENT) {
+            final TouchInput touch = shell.touch(deviceDefinition);
+            if (touch != null) {
+                final String touchCmd = tap ? touch.tap(x1, y1) : touch.swipe(x1, y1, x2, y2, time);
+                shell.input(touchCmd, cmd, batch);
+                return;
+            }
+        }
+
+        shell.input(cmd, batch);
     }
 
     public static boolean event(final String eventId, boolean raw, final AdbWrapper shell, final boolean batch) {
@@ -139,11 +152,7 @@ public class AdbUtils {
             }
         }
         cmd = "input keyevent " + event;
-        if (batch) {
-            shell.batch(cmd);
-        } else {
-            shell.exec(cmd);
-        }
+        shell.input(cmd, batch);
         return true;
     }
 
@@ -151,11 +160,7 @@ public class AdbUtils {
         final String cmd;
         final int event = Integer.parseInt(inputId);
         cmd = "input keyevent " + event;
-        if (batch) {
-            shell.batch(cmd);
-        } else {
-            shell.exec(cmd);
-        }
+        shell.input(cmd, batch);
         return true;
     }
 
@@ -273,6 +278,27 @@ public class AdbUtils {
         return device.exec("screencap /mnt/sdcard/framebuffer.raw");
     }
 
+    // Exit code of the hashed capture when screencap failed, a missing md5sum gives the shell's 127
+    private static final int SCREENCAP_FAILED = 255;
+    private static final int COMMAND_NOT_FOUND = 127;
+
+    /**
+     * @return the md5sum output for the persisted frame, an empty string if the device has no md5sum, null if the
+     * screen could not be persisted or hashed
+     */
+    public static String persistScreenWithHash(AdbWrapper device) {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final Integer status = device.query("if screencap /mnt/sdcard/framebuffer.raw; then md5sum /mnt/sdcard/framebuffer.raw; else (exit " + SCREENCAP_FAILED + "); fi", output);
+        if (status == null || status == SCREENCAP_FAILED) {
+            return null;
+        } else if (status == COMMAND_NOT_FOUND) {
+            return "";
+        } else if (status != 0) {
+            return null;
+        }
+        return new String(output.toByteArray(), StandardCharsets.UTF_8);
+    }
+
     public static ImageWrapper getScreen(AdbWrapper wr) {
         final String command;
         if (StringUtils.isNotBlank(AdbShell.ADB_DIRECT)) {
@@ -284,16 +310,18 @@ public class AdbUtils {
         byte[] bytes = execStream(command);
         try {
             int w, h;
+            RawImageWrapper.ImageFormats format = null;
             if (bytes.length > 12) { // Sanity
                 ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
                 byteBuffer.order(ByteOrder.LITTLE_ENDIAN);
                 w = byteBuffer.getInt();
                 h = byteBuffer.getInt();
+                format = RawImageWrapper.ImageFormats.forHeaderCode(byteBuffer.getInt());
             } else {
                 w = 0;
                 h = 0;
             }
-            return new RawImageWrapper(w, h, RawImageWrapper.ImageFormats.RGBA, 12, bytes);
+            return new RawImageWrapper(w, h, format != null ? format : RawImageWrapper.ImageFormats.RGBA, 12, bytes);
         } catch (Exception e) {
             LOGGER.error(e.getMessage(), e);
         }
@@ -303,16 +331,18 @@ public class AdbUtils {
     public static ImageWrapper getScreenFrom(byte[] bytes) {
         try {
             int w, h;
+            RawImageWrapper.ImageFormats format = null;
             if (bytes.length > 12) { // Sanity
                 ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
                 byteBuffer.order(ByteOrder.LITTLE_ENDIAN);
                 w = byteBuffer.getInt();
                 h = byteBuffer.getInt();
+                format = RawImageWrapper.ImageFormats.forHeaderCode(byteBuffer.getInt());
             } else {
                 w = 0;
                 h = 0;
             }
-            return new RawImageWrapper(w, h, RawImageWrapper.ImageFormats.RGBA, 12, bytes);
+            return new RawImageWrapper(w, h, format != null ? format : RawImageWrapper.ImageFormats.RGBA, 12, bytes);
         } catch (Exception e) {
             LOGGER.error(e.getMessage(), e);
         }
@@ -2,6 +2,9 @@ package com.mgatelabs.piper.shared.util;
 
 import com.google.common.base.Joiner;
 import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.Futures;
+import com.mgatelabs.piper.shared.details.DeviceDefinition;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import se.vidstige.jadb.ConnectionToRemoteDeviceException;
@@ -10,10 +13,19 @@ import se.vidstige.jadb.JadbDevice;
 import se.vidstige.jadb.JadbException;
 
 import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by @mgatelabs (Michael Fuller) on 9/2/2019 for Phone-Piper.
@@ -28,28 +40,101 @@ public class AdbWrapper {
         FAILED
     }
 
+    private static final long HEALTH_CHECK_SECONDS = 10;
+    private static final long MIN_BACKOFF = TimeUnit.MILLISECONDS.toNanos(500);
+    private static final long MAX_BACKOFF = TimeUnit.SECONDS.toNanos(30);
+
     private final JadbConnection connection;
     private final InetSocketAddress address;
     private AdbWrapperStatus connectionStatus;
 
+    // Resolved once and trusted until a command fails or the health check says otherwise
+    private volatile JadbDevice cachedDevice;
+    private long backoff;
+    private long nextReconnectTime;
+    private final ScheduledExecutorService healthCheck;
+
     public AdbWrapper(final String path, final int port) {
         batch = Lists.newArrayList();
         connectionStatus = AdbWrapperStatus.INIT;
         connection = new JadbConnection();
         address = InetSocketAddress.createUnresolved(path, port);
+        backoff = MIN_BACKOFF;
+        healthCheck = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "adb-health-check");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        healthCheck.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                checkHealth();
+            }
+        }, HEALTH_CHECK_SECONDS, HEALTH_CHECK_SECONDS, TimeUnit.SECONDS);
         connect();
     }
 
-    public void shutdown() {
-
+    public synchronized void shutdown() {
+        healthCheck.shutdownNow();
+        if (inputQueue != null) {
+            inputQueue.shutdown();
+            inputQueue = null;
+        }
+        closeSession();
+        cachedDevice = null;
     }
 
     public JadbDevice connect() {
+        JadbDevice device = cachedDevice;
+        if (device != null) {
+            return device;
+        }
+        return reconnect();
+    }
+
+    /**
+     * Forget the cached device, the next command resolves it again
+     */
+    public void invalidate() {
+        if (cachedDevice != null) {
+            logger.debug("AdbWrapper: Device handle invalidated");
+            cachedDevice = null;
+        }
+    }
+
+    private void checkHealth() {
+        final JadbDevice device = cachedDevice;
+        if (device == null) return;
+        try {
+            if (device.getState() != JadbDevice.State.Device) {
+                logger.warn("AdbWrapper: Device is no longer ready");
+                invalidate();
+            }
+        } catch (Exception ex) {
+            logger.warn("AdbWrapper: Health check failed: " + ex.getMessage());
+            invalidate();
+        }
+    }
+
+    private synchronized JadbDevice reconnect() {
+        if (cachedDevice != null) {
+            return cachedDevice;
+        }
+
+        final long now = System.nanoTime();
+        if (now < nextReconnectTime) {
+            logger.trace("AdbWrapper: Waiting to reconnect");
+            return null;
+        }
+
         JadbDevice device = getDevice();
         try {
             if (device != null && device.getState() == JadbDevice.State.Device) {
                 logger.trace("AdbWrapper: Re-using connection");
-                return device;
+                return cache(device);
             }
         } catch (Exception ex) {
             ex.printStackTrace();
@@ -58,7 +143,11 @@ public class AdbWrapper {
         try {
             connection.connectToTcpDevice(address);
             connectionStatus = AdbWrapperStatus.READY;
-            return getDevice();
+            device = getDevice();
+            if (device != null && device.getState() == JadbDevice.State.Device) {
+                return cache(device);
+            }
+            return device;
         } catch (IOException e) {
             e.printStackTrace();
             connectionStatus = AdbWrapperStatus.FAILED;
@@ -69,9 +158,21 @@ public class AdbWrapper {
             e.printStackTrace();
             connectionStatus = AdbWrapperStatus.FAILED;
         }
+
+        // Back off so a missing device does not turn every action into a connection attempt
+        nextReconnectTime = now + backoff;
+        logger.warn("AdbWrapper: Connection failed, retrying in " + TimeUnit.NANOSECONDS.toMillis(backoff) + "ms");
+        backoff = Math.min(backoff * 2, MAX_BACKOFF);
         return null;
     }
 
+    private JadbDevice cache(JadbDevice device) {
+        cachedDevice = device;
+        backoff = MIN_BACKOFF;
+        nextReconnectTime = 0;
+        return device;
+    }
+
     public String status() {
 
         StringBuilder sb = new StringBuilder();
@@ -141,6 +242,9 @@ public class AdbWrapper {
 
     private List<String> batch;
 
+    // System.nanoTime() of when the last input command finished
+    private volatile long lastInputTime;
+
     public void batch(String adbCommand) {
         batch.add(adbCommand);
     }
@@ -149,26 +253,215 @@ public class AdbWrapper {
         if (batch.size() > 0) {
             String cmd = Joiner.on(" && ").join(batch);
             batch.clear();
-            exec(cmd);
+            input(cmd, false);
+        }
+    }
+
+    /**
+     * Send a command that changes what is on screen, either now or with the next batch
+     */
+    public Future<Boolean> input(String adbCommand, boolean batch) {
+        return input(adbCommand, null, batch);
+    }
+
+    /**
+     * Send a command that changes what is on screen, either now or with the next batch.  With async input the command
+     * is queued behind earlier input and the future completes once it has run.
+     *
+     * @param inputFallback the input command to run if a raw touch command fails
+     * @return the result of the command, batched commands always report true
+     */
+    public Future<Boolean> input(final String adbCommand, @Nullable final String inputFallback, boolean batch) {
+        if (batch) {
+            batch(adbCommand);
+            return Futures.immediateFuture(true);
         }
+        final InputQueue queue = inputQueue;
+        if (queue == null) {
+            return Futures.immediateFuture(runInput(adbCommand, inputFallback));
+        }
+        return queue.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return runInput(adbCommand, inputFallback);
+            }
+        });
+    }
+
+    private boolean runInput(String adbCommand, @Nullable String inputFallback) {
+        boolean result = exec(adbCommand);
+        if (!result && inputFallback != null) {
+            logger.warn("AdbWrapper: Raw touch input failed, falling back to the input command");
+            disableTouch();
+            result = exec(inputFallback);
+        }
+        lastInputTime = System.nanoTime();
+        return result;
+    }
+
+    private volatile InputQueue inputQueue;
+
+    /**
+     * Queue input on a background thread instead of waiting for each command
+     */
+    public synchronized void setAsyncInput(boolean async) {
+        if (async && inputQueue == null) {
+            inputQueue = new InputQueue();
+        } else if (!async && inputQueue != null) {
+            final InputQueue queue = inputQueue;
+            inputQueue = null;
+            queue.shutdown();
+        }
+    }
+
+    /**
+     * Wait for queued input to reach the device, returns right away without async input
+     *
+     * @return false if the last queued command failed
+     */
+    public boolean awaitInput() {
+        final InputQueue queue = inputQueue;
+        return queue == null || queue.await();
+    }
+
+    private TouchInput touchInput;
+    private boolean touchProbed;
+
+    /**
+     * The touchscreen for raw events, found on first use
+     *
+     * @return null when raw events cannot be used and the input command has to do
+     */
+    @Nullable
+    public synchronized TouchInput touch(DeviceDefinition deviceDefinition) {
+        if (!touchProbed) {
+            touchProbed = true;
+            touchInput = TouchInput.probe(this, deviceDefinition);
+            if (touchInput == null) {
+                logger.warn("AdbWrapper: Raw touch input unavailable, using the input command");
+            }
+        }
+        return touchInput;
+    }
+
+    /**
+     * Stop using raw touch events after they failed
+     */
+    public synchronized void disableTouch() {
+        touchInput = null;
+        touchProbed = true;
+    }
+
+    public long getLastInputTime() {
+        return lastInputTime;
     }
 
     private byte[] tempBytes = new byte[1024];
 
+    private static final long SESSION_RETRY = TimeUnit.SECONDS.toNanos(5);
+
+    private AdbSession session;
+    private long sessionRetryTime;
+    // Older devices only give a pty shell, which mangles output, so every command gets its own shell there
+    private boolean ptyOnly;
+
+    /**
+     * Run a command and return what it printed, null on failure
+     */
+    @Nullable
+    public synchronized String query(String adbCommand) {
+        JadbDevice device = connect();
+
+        if (device == null) return null;
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        if (execInSession(device, adbCommand, outputStream) != null) {
+            return new String(outputStream.toByteArray(), StandardCharsets.UTF_8);
+        }
+
+        try {
+            InputStream inputStream = device.executeShell(adbCommand);
+            try {
+                final String output = new String(ByteStreams.toByteArray(inputStream), StandardCharsets.UTF_8);
+                logger.trace("AdbQuery: " + adbCommand + " [" + output.length() + "]");
+                return output;
+            } finally {
+                inputStream.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            invalidate();
+        } catch (JadbException e) {
+            e.printStackTrace();
+            invalidate();
+        }
+        return null;
+    }
+
+    /**
+     * Run a command, writing what it printed to the output
+     *
+     * @return the exit code, null on failure
+     */
+    @Nullable
+    public synchronized Integer query(String adbCommand, OutputStream output) {
+        JadbDevice device = connect();
+
+        if (device == null) return null;
+
+        final Integer status = execInSession(device, adbCommand, output);
+        if (status != null) {
+            return status;
+        }
+
+        try {
+            // Without a session the exit code comes back as the last line
+            InputStream inputStream = device.executeShell(adbCommand + "; echo $?");
+            try {
+                final String text = new String(ByteStreams.toByteArray(inputStream), StandardCharsets.UTF_8).trim();
+                final int split = text.lastIndexOf('\n');
+                output.write(text.substring(0, split + 1).getBytes(StandardCharsets.UTF_8));
+                return Integer.parseInt(text.substring(split + 1).trim());
+            } finally {
+                inputStream.close();
+            }
+        } catch (NumberFormatException e) {
+            logger.warn("AdbWrapper: No exit code for " + adbCommand);
+        } catch (IOException e) {
+            e.printStackTrace();
+            invalidate();
+        } catch (JadbException e) {
+            e.printStackTrace();
+            invalidate();
+        }
+        return null;
+    }
+
     public synchronized boolean exec(String adbCommand) {
         JadbDevice device = connect();
 
         if (device == null) return false;
 
-        try {
-            InputStream inputStream = device.executeShell(adbCommand + " && " + AdbShell.ECHO);
+        final long startTime = System.nanoTime();
+
+        final Integer status = execInSession(device, adbCommand, null);
+        if (status != null) {
+            if (logger.isTraceEnabled()) {
+                long diff = System.nanoTime() - startTime;
+                logger.trace("AdbCommand: " + adbCommand + " [" + status + "]" + " (" + String.format("%2.2f", ((float) diff / 1000000000.0)) + "s)");
+            }
+            return status == 0;
+        }
 
-            final long startTime = System.nanoTime();
+        try {
+            // Without a session, the stream closing tells us the command is done
+            InputStream inputStream = device.executeShell(adbCommand);
 
             int len, read = 0;
             while ((len = inputStream.read(tempBytes, 0, tempBytes.length)) > 0) {
                 read += len;
             }
+            inputStream.close();
 
             long endTime = System.nanoTime();
             long diff = endTime - startTime;
@@ -176,9 +469,72 @@ public class AdbWrapper {
             return true;
         } catch (IOException e) {
             e.printStackTrace();
+            invalidate();
         } catch (JadbException e) {
             e.printStackTrace();
+            invalidate();
         }
         return false;
     }
+
+    @Nullable
+    private AdbSession session(JadbDevice device) {
+        if (session != null && session.isOpen()) {
+            return session;
+        }
+        if (ptyOnly || System.nanoTime() < sessionRetryTime) {
+            return null;
+        }
+        try {
+            session = AdbSession.open(device.getSerial());
+            if (session.isPty()) {
+                logger.info("AdbWrapper: Shell for " + device.getSerial() + " is a pty, not keeping a session");
+                closeSession();
+                ptyOnly = true;
+                return null;
+            }
+            logger.debug("AdbWrapper: Shell session opened for " + device.getSerial());
+        } catch (IOException e) {
+            logger.warn("AdbWrapper: Could not open a shell session: " + e.getMessage());
+            invalidate();
+            session = null;
+            sessionRetryTime = System.nanoTime() + SESSION_RETRY;
+        }
+        return session;
+    }
+
+    private void closeSession() {
+        if (session != null) {
+            session.close();
+            session = null;
+        }
+    }
+
+    /**
+     * Run a command on the persistent shell, opening a new one if the old session dropped before the command was sent.
+     *
+     * @return the exit code, or null if no session could run it
+     */
+    @Nullable
+    private Integer execInSession(JadbDevice device, String adbCommand, OutputStream sink) {
+        for (int attempt = 0; attempt < 2; attempt++) {
+            AdbSession current = session(device);
+            if (current == null) {
+                return null;
+            }
+            try {
+                return current.exec(adbCommand, sink);
+            } catch (AdbSession.NotSentException e) {
+                logger.warn("AdbWrapper: Shell session closed, reconnecting");
+                closeSession();
+            } catch (IOException e) {
+                // The command may have run, so it is not repeated, the next command gets a new session
+                logger.error("AdbWrapper: Shell session failed: " + e.getMessage());
+                closeSession();
+                invalidate();
+                return -1;
+            }
+        }
+        return null;
+    }
 }
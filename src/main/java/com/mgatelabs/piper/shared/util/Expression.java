@@ -0,0 +1,274 @@
+package com.mgatelabs.piper.shared.util;
+
+import com.mgatelabs.piper.shared.details.VarType;
+
+/**
+ * A MATH expression parsed once into a tree, so running it again is a walk over the nodes instead of splitting and
+ * rebuilding the text.
+ * <p>
+ * Supports + - * / % with the usual precedence, left to right, parentheses and a leading - or +.  Anything between the
+ * operators is a value cast to the expected type, ${name} is read from the variables when it runs, and a missing
+ * operand counts as zero the way Mather always treated it.
+ */
+public class Expression {
+
+    private final String text;
+    private final Node root;
+
+    private Expression(String text, Node root) {
+        this.text = text;
+        this.root = root;
+    }
+
+    public static Expression compile(final String text) {
+        final Parser parser = new Parser(text);
+        final Node root = parser.expression(1);
+        if (parser.peek() == ')') {
+            throw new RuntimeException("Too many )'s in expression: " + text);
+        } else if (parser.peek() != Parser.END) {
+            throw new RuntimeException("Unexpected " + parser.peek() + " in expression: " + text);
+        }
+        return new Expression(text, root);
+    }
+
+    /**
+     * @param vars where ${name} values come from, may be null when there are none
+     */
+    public Var evaluate(final VarType expectedType, final VarManager vars) {
+        return root.evaluate(expectedType, vars);
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+
+    private static class Parser {
+        static final char END = 0;
+        static final char VALUE = 1;
+
+        private final String text;
+        private int position;
+
+        Parser(String text) {
+            this.text = text;
+        }
+
+        /**
+         * The next operator or parenthesis, VALUE when a value starts here or END
+         */
+        char peek() {
+            while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+                position++;
+            }
+            if (position >= text.length()) {
+                return END;
+            }
+            final char c = text.charAt(position);
+            return isOperator(c) || c == '(' || c == ')' ? c : VALUE;
+        }
+
+        /**
+         * Precedence climbing, operators binding at least as tight as the given level are taken here
+         */
+        Node expression(final int minPrecedence) {
+            Node left = unary();
+            while (true) {
+                final char operator = peek();
+                final int precedence = precedence(operator);
+                if (precedence < minPrecedence) {
+                    return left;
+                }
+                position++;
+                left = new Binary(operator, left, expression(precedence + 1));
+            }
+        }
+
+        private Node unary() {
+            final char next = peek();
+            if (next == '-') {
+                position++;
+                return new Negate(unary());
+            } else if (next == '+') {
+                position++;
+                return unary();
+            }
+            return primary();
+        }
+
+        private Node primary() {
+            final char next = peek();
+            if (next == '(') {
+                position++;
+                final Node inner = expression(1);
+                if (peek() != ')') {
+                    throw new RuntimeException("Missing ) in expression: " + text);
+                }
+                position++;
+                return inner;
+            } else if (next == VALUE) {
+                return value();
+            }
+            // Nothing where an operand belongs
+            return Literal.ZERO;
+        }
+
+        private Node value() {
+            final int start = position;
+            while (position < text.length()) {
+                final char c = text.charAt(position);
+                if (c == '$' && position + 1 < text.length() && text.charAt(position + 1) == '{') {
+                    // Names may hold a -, skip the whole token
+                    final int end = text.indexOf('}', position);
+                    position = end < 0 ? text.length() : end + 1;
+                } else if (isOperator(c) || c == '(' || c == ')') {
+                    break;
+                } else {
+                    position++;
+                }
+            }
+            final String value = text.substring(start, position).trim();
+            if (value.indexOf("${") < 0) {
+                return new Literal(value);
+            }
+            final TokenTemplate template = TokenTemplate.parse(value);
+            if (template.isStatic()) {
+                return new Literal(value);
+            } else if (value.startsWith("${") && template.getVariable() != null) {
+                return new Variable(template.getVariable(), value);
+            }
+            return new Template(template);
+        }
+
+        private static boolean isOperator(final char c) {
+            return c == '+' || c == '-' || c == '*' || c == '/' || c == '%';
+        }
+
+        private static int precedence(final char operator) {
+            switch (operator) {
+                case '+':
+                case '-':
+                    return 1;
+                case '*':
+                case '/':
+                case '%':
+                    return 2;
+                default:
+                    return 0;
+            }
+        }
+    }
+
+    private interface Node {
+        Var evaluate(VarType type, VarManager vars);
+    }
+
+    private static class Literal implements Node {
+        static final Literal ZERO = new Literal(null);
+
+        private final String value;
+        // The value cast to each type, Vars never change so they can be handed out again
+        private final Var[] casts = new Var[VarType.values().length];
+
+        Literal(String value) {
+            this.value = value;
+        }
+
+        @Override
+        public Var evaluate(final VarType type, final VarManager vars) {
+            if (value == null) {
+                return IntVar.ZERO;
+            }
+            Var cast = casts[type.ordinal()];
+            if (cast == null) {
+                cast = type.cast(new StringVar(value));
+                casts[type.ordinal()] = cast;
+            }
+            return cast;
+        }
+    }
+
+    private static class Variable implements Node {
+        private final String name;
+        private final String text;
+        // The name's slot in the manager last evaluated with
+        private int slot;
+        private VarManager bound;
+
+        Variable(String name, String text) {
+            this.name = name;
+            this.text = text;
+        }
+
+        @Override
+        public Var evaluate(final VarType type, final VarManager vars) {
+            if (vars != null && (bound != vars || slot == VarManager.MISSING)) {
+                slot = vars.slot(name);
+                bound = vars;
+            }
+            final Var value = vars != null ? vars.get(slot) : null;
+            // Unknown tokens stay as written, like the replace leaves them
+            return type.cast(value != null ? value : new StringVar(text));
+        }
+    }
+
+    /**
+     * Text mixed with tokens, such as a${name}
+     */
+    private static class Template implements Node {
+        private final TokenTemplate template;
+
+        Template(TokenTemplate template) {
+            this.template = template;
+        }
+
+        @Override
+        public Var evaluate(final VarType type, final VarManager vars) {
+            final String value = vars != null ? template.render(vars, new StringBuilder()) : template.getText();
+            return type.cast(new StringVar(value));
+        }
+    }
+
+    private static class Negate implements Node {
+        private final Node operand;
+
+        Negate(Node operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        public Var evaluate(final VarType type, final VarManager vars) {
+            return type.cast(IntVar.ZERO).substract(operand.evaluate(type, vars));
+        }
+    }
+
+    private static class Binary implements Node {
+        private final char operator;
+        private final Node left;
+        private final Node right;
+
+        Binary(char operator, Node left, Node right) {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public Var evaluate(final VarType type, final VarManager vars) {
+            final Var l = left.evaluate(type, vars);
+            final Var r = right.evaluate(type, vars);
+            switch (operator) {
+                case '+':
+                    return l.add(r);
+                case '-':
+                    return l.substract(r);
+                case '*':
+                    return l.multiply(r);
+                case '/':
+                    return l.divide(r);
+                default:
+                    return l.mod(r);
+            }
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.mgatelabs.piper.shared.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs input commands one at a time on a background thread, in the order they were sent, so the script can keep going
+ * while the device works.  Waiting on the newest future is enough to know everything before it has finished.
+ */
+public class InputQueue {
+
+    private static final Logger logger = LoggerFactory.getLogger(InputQueue.class);
+
+    private final ExecutorService executor;
+    private volatile Future<Boolean> last;
+
+    public InputQueue() {
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "adb-input");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public synchronized Future<Boolean> submit(Callable<Boolean> command) {
+        final Future<Boolean> future = executor.submit(command);
+        last = future;
+        return future;
+    }
+
+    /**
+     * Block until every queued command has run
+     *
+     * @return false if the last command failed
+     */
+    public boolean await() {
+        final Future<Boolean> future = last;
+        if (future == null) {
+            return true;
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            logger.error("InputQueue: Command failed: " + e.getCause().getMessage());
+            return false;
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -17,6 +17,16 @@ public class IntVar implements Var {
     public static final IntVar TEN = new IntVar(10);
     public static final IntVar THOUSAND = new IntVar(1000);
 
+    // Small values handed out again instead of made for every count
+    private static final int CACHE_LOW = -128;
+    private static final IntVar[] CACHE = new IntVar[1024 - CACHE_LOW + 1];
+
+    static {
+        for (int i = 0; i < CACHE.length; i++) {
+            CACHE[i] = new IntVar(i + CACHE_LOW);
+        }
+    }
+
     private final int data;
 
     public IntVar(String data) {
@@ -27,6 +37,13 @@ public class IntVar implements Var {
         this.data = data;
     }
 
+    public static IntVar valueOf(int data) {
+        if (data >= CACHE_LOW && data - CACHE_LOW < CACHE.length) {
+            return CACHE[data - CACHE_LOW];
+        }
+        return new IntVar(data);
+    }
+
     @Override
     public VarType getType() {
         return VarType.INT;
@@ -3,12 +3,36 @@ package com.mgatelabs.piper.shared.util;
 import com.mgatelabs.piper.shared.details.VarType;
 import org.apache.commons.lang3.StringUtils;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
  * Created by @mgatelabs (Michael Fuller) on 9/28/2018.
  */
 public class Mather {
 
+    private static final int MAX_CACHED = 1024;
+    private static final Map<String, Expression> CACHE = new ConcurrentHashMap<>();
+
+    /**
+     * Run an expression with no variables, compiled once per text.  Scripts keep the compiled {@link Expression} with
+     * their actions instead.
+     */
     public static Var evaluate(String input, VarType expectedType) {
+        Expression expression = CACHE.get(input);
+        if (expression == null) {
+            expression = Expression.compile(input);
+            if (CACHE.size() < MAX_CACHED) {
+                CACHE.put(input, expression);
+            }
+        }
+        return expression.evaluate(expectedType, null);
+    }
+
+    /**
+     * The original evaluator, splitting the text at the first operator it finds.  Kept to compare against.
+     */
+    static Var interpret(String input, VarType expectedType) {
 
         // Handle Parentheses
         while (input.contains("(")) {
@@ -25,7 +49,7 @@ public class Mather {
                       throw new RuntimeException("Too many )'s in expression");
                     } else {
                         String inner = input.substring(startingIndex+1, i);
-                        Var innerValue = evaluate(inner, expectedType);
+                        Var innerValue = interpret(inner, expectedType);
                         input = input.substring(0, startingIndex) + innerValue.toString() + input.substring(i+1);
                         break;
                     }
@@ -37,8 +61,8 @@ public class Mather {
             int multiplyIndex = input.indexOf('*');
             String left = input.substring(0, multiplyIndex);
             String right = input.substring(multiplyIndex + 1);
-            Var l = evaluate(left, expectedType);
-            Var r = evaluate(right, expectedType);
+            Var l = interpret(left, expectedType);
+            Var r = interpret(right, expectedType);
             return l.multiply(r);
         }
 
@@ -46,8 +70,8 @@ public class Mather {
             int divideIndex = input.indexOf('/');
             String left = input.substring(0, divideIndex);
             String right = input.substring(divideIndex + 1);
-            Var l = evaluate(left, expectedType);
-            Var r = evaluate(right, expectedType);
+            Var l = interpret(left, expectedType);
+            Var r = interpret(right, expectedType);
             return l.divide(r);
         }
 
@@ -55,8 +79,8 @@ public class Mather {
             int multiplyIndex = input.indexOf('%');
             String left = input.substring(0, multiplyIndex);
             String right = input.substring(multiplyIndex + 1);
-            Var l = evaluate(left, expectedType);
-            Var r = evaluate(right, expectedType);
+            Var l = interpret(left, expectedType);
+            Var r = interpret(right, expectedType);
             return l.mod(r);
         }
 
@@ -64,8 +88,8 @@ public class Mather {
             int plusIndex = input.indexOf('+');
             String left = input.substring(0, plusIndex);
             String right = input.substring(plusIndex + 1);
-            Var l = evaluate(left, expectedType);
-            Var r = evaluate(right, expectedType);
+            Var l = interpret(left, expectedType);
+            Var r = interpret(right, expectedType);
             return l.add(r);
         }
 
@@ -73,11 +97,11 @@ public class Mather {
             int subtractIndex = input.indexOf('-');
             String left = input.substring(0, subtractIndex);
             String right = input.substring(subtractIndex + 1);
-            Var l = evaluate(left, expectedType);
+            Var l = interpret(left, expectedType);
             int otherIndexPlus = right.indexOf('+');
             int otherIndexMinus = right.indexOf('-');
             if (otherIndexMinus == -1 && otherIndexPlus == -1) {
-                Var r = evaluate(right, expectedType);
+                Var r = interpret(right, expectedType);
                 return l.substract(r);
             } else {
                 int min = Integer.min(otherIndexMinus, otherIndexPlus);
@@ -91,8 +115,8 @@ public class Mather {
                     right1 = right.substring(min);
                     right2 = right.substring(min);
                 }
-                Var m = evaluate(right1, expectedType);
-                Var e = evaluate(right2, expectedType);
+                Var m = interpret(right1, expectedType);
+                Var e = interpret(right2, expectedType);
                 return l.substract(m).add(e);
             }
         }
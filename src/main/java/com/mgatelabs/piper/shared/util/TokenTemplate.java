@@ -0,0 +1,154 @@
+package com.mgatelabs.piper.shared.util;
+
+import java.util.regex.Pattern;
+
+/**
+ * A script value split once into literal text and ${name} tokens, so filling it in is a single pass instead of a
+ * search and rebuild of the string per token.
+ * <p>
+ * Filling follows the rules the runner always used: tokens are replaced in order, the first unknown variable stops
+ * the replacing and leaves the rest of the text as it is.  A value that could form a new token is handed to
+ * {@link #expand(String, VarManager)}, which scans the text again after every replacement like before.
+ */
+public class TokenTemplate {
+
+    private static final Pattern SINGLE_VARIABLE = Pattern.compile("^\\$\\{[a-zA-Z0-9_-]+\\}$");
+
+    private final String text;
+    // literals[i] comes before names[i], the last literal ends the text
+    private final String[] literals;
+    private final String[] names;
+    // Where each token starts in the text, for when it stops the replacing
+    private final int[] starts;
+    // A value that is nothing but one variable, ${name} or the old $name
+    private final String variable;
+    // Slots of the names in the manager last rendered with
+    private final int[] slots;
+    private VarManager bound;
+
+    private TokenTemplate(String text, String[] literals, String[] names, int[] starts, String variable) {
+        this.text = text;
+        this.literals = literals;
+        this.names = names;
+        this.starts = starts;
+        this.variable = variable;
+        this.slots = new int[names.length];
+    }
+
+    public static TokenTemplate parse(final String text) {
+        String variable = null;
+        if (SINGLE_VARIABLE.matcher(text).matches()) {
+            variable = text.substring(2, text.length() - 1);
+        } else if (text.startsWith("$") && text.indexOf('{') == -1) {
+            // Old Style Value's
+            variable = text.substring(1);
+        }
+
+        int count = 0;
+        int position = 0;
+        final int[] bounds = new int[text.length()];
+        while (true) {
+            final int startIndex = text.indexOf("${", position);
+            if (startIndex < 0) break;
+            final int endIndex = text.indexOf('}', startIndex);
+            // Nothing after an empty or unclosed token is replaced
+            if (endIndex <= startIndex + 2 || text.substring(startIndex + 2, endIndex).trim().isEmpty()) break;
+            bounds[count++] = startIndex;
+            position = endIndex + 1;
+        }
+
+        final String[] literals = new String[count + 1];
+        final String[] names = new String[count];
+        final int[] starts = new int[count];
+        position = 0;
+        for (int i = 0; i < count; i++) {
+            final int startIndex = bounds[i];
+            final int endIndex = text.indexOf('}', startIndex);
+            literals[i] = text.substring(position, startIndex);
+            names[i] = text.substring(startIndex + 2, endIndex).trim();
+            starts[i] = startIndex;
+            position = endIndex + 1;
+        }
+        literals[count] = text.substring(position);
+        return new TokenTemplate(text, literals, names, starts, variable);
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * True when there is nothing to replace, the text is its own value
+     */
+    public boolean isStatic() {
+        return names.length == 0;
+    }
+
+    /**
+     * @return the variable name when the value is a single variable, otherwise null
+     */
+    public String getVariable() {
+        return variable;
+    }
+
+    /**
+     * Fill in the tokens
+     *
+     * @param builder scratch space, cleared before use
+     */
+    public String render(final VarManager vars, final StringBuilder builder) {
+        if (names.length == 0) {
+            return text;
+        }
+        if (bound != vars) {
+            for (int i = 0; i < names.length; i++) {
+                slots[i] = vars.slot(names[i]);
+            }
+            bound = vars;
+        }
+        builder.setLength(0);
+        for (int i = 0; i < names.length; i++) {
+            builder.append(literals[i]);
+            if (slots[i] == VarManager.MISSING) {
+                // Not declared when this was bound, it may be by now
+                slots[i] = vars.slot(names[i]);
+            }
+            final Var var = vars.get(slots[i]);
+            if (var == null) {
+                // Unknown, the rest stays as written
+                return builder.append(text, starts[i], text.length()).toString();
+            }
+            final String value = var.toString();
+            if (value.indexOf('$') >= 0 || (value.startsWith("{") && builder.length() > 0 && builder.charAt(builder.length() - 1) == '$')) {
+                // The value could make a token of its own
+                return expand(text, vars);
+            }
+            builder.append(value);
+        }
+        return builder.append(literals[names.length]).toString();
+    }
+
+    /**
+     * The original replace, rescanning the text after every token
+     */
+    public static String expand(String text, final VarManager vars) {
+        if (text != null) {
+            int startIndex;
+            while ((startIndex = text.indexOf("${")) >= 0) {
+                int endIndex = text.indexOf('}', startIndex);
+                if (endIndex > startIndex + 2) {
+                    String varName = text.substring(startIndex + 2, endIndex).trim();
+                    final Var var = varName.length() > 0 ? vars.get(varName) : null;
+                    if (var != null) {
+                        text = text.substring(0, startIndex) + var + text.substring(endIndex + 1);
+                    } else {
+                        break;
+                    }
+                } else {
+                    break;
+                }
+            }
+        }
+        return text;
+    }
+}
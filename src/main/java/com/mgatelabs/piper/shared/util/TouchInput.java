@@ -0,0 +1,258 @@
+package com.mgatelabs.piper.shared.util;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import com.mgatelabs.piper.shared.details.DeviceDefinition;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Builds raw touchscreen events for sendevent, which skips the VM that the input command starts for every tap.  Screen
+ * coordinates are mapped onto the axis ranges the touchscreen reports through getevent.
+ */
+public class TouchInput {
+
+    private static final Logger logger = LoggerFactory.getLogger(TouchInput.class);
+
+    private static final int EV_SYN = 0;
+    private static final int EV_KEY = 1;
+    private static final int EV_ABS = 3;
+
+    private static final int SYN_REPORT = 0;
+    private static final int SYN_MT_REPORT = 2;
+    private static final int BTN_TOUCH = 0x14a;
+    private static final int ABS_MT_SLOT = 0x2f;
+    private static final int ABS_MT_POSITION_X = 0x35;
+    private static final int ABS_MT_POSITION_Y = 0x36;
+    private static final int ABS_MT_TRACKING_ID = 0x39;
+
+    // Swipes move the finger about once a frame
+    private static final int STEP_MILLIS = 16;
+
+    private static final Pattern DEVICE_LINE = Pattern.compile("add device \\d+:\\s*(\\S+)");
+    private static final Pattern AXIS_LINE = Pattern.compile("([0-9a-f]{4})\\s*:\\s*value\\s*-?\\d+,\\s*min\\s*(-?\\d+),\\s*max\\s*(-?\\d+)");
+
+    private final String device;
+    private final int minX;
+    private final int maxX;
+    private final int minY;
+    private final int maxY;
+    private final boolean slots;
+    private final boolean tracking;
+    private final boolean btnTouch;
+
+    private int screenWidth;
+    private int screenHeight;
+    private int rotation;
+    private int trackingId;
+
+    private TouchInput(String device, int minX, int maxX, int minY, int maxY, boolean slots, boolean tracking, boolean btnTouch) {
+        this.device = device;
+        this.minX = minX;
+        this.maxX = maxX;
+        this.minY = minY;
+        this.maxY = maxY;
+        this.slots = slots;
+        this.tracking = tracking;
+        this.btnTouch = btnTouch;
+    }
+
+    /**
+     * Find the touchscreen with getevent
+     *
+     * @return null if the device has no usable touchscreen
+     */
+    @Nullable
+    public static TouchInput probe(AdbWrapper shell, DeviceDefinition deviceDefinition) {
+        final String wanted = StringUtils.trimToNull(deviceDefinition.getTouchDevice());
+        final String output = shell.query(wanted == null ? "getevent -p" : "getevent -p " + wanted);
+        if (output == null) {
+            logger.warn("TouchInput: getevent failed");
+            return null;
+        }
+        final TouchInput touchInput = parse(output, wanted);
+        if (touchInput == null) {
+            logger.warn("TouchInput: No touchscreen found" + (wanted == null ? "" : " at " + wanted));
+            return null;
+        }
+        touchInput.setScreen(deviceDefinition.getWidth(), deviceDefinition.getHeight(), deviceDefinition.getTouchRotation());
+        logger.info("TouchInput: Using " + touchInput.device + " (" + touchInput.minX + "-" + touchInput.maxX + " x " + touchInput.minY + "-" + touchInput.maxY + ")");
+        return touchInput;
+    }
+
+    /**
+     * Read the output of getevent -p and pick the first device with multi touch position axes
+     */
+    @Nullable
+    static TouchInput parse(String output, @Nullable String wanted) {
+        String current = null;
+        int[] x = null, y = null;
+        boolean slots = false, tracking = false, btnTouch = false;
+
+        for (String line : (output + "\nadd device 0: end").split("\n")) {
+            final Matcher deviceMatcher = DEVICE_LINE.matcher(line);
+            if (deviceMatcher.find()) {
+                if (current != null && x != null && y != null && (wanted == null || wanted.equals(current))) {
+                    return new TouchInput(current, x[0], x[1], y[0], y[1], slots, tracking, btnTouch);
+                }
+                current = deviceMatcher.group(1);
+                x = null;
+                y = null;
+                slots = false;
+                tracking = false;
+                btnTouch = false;
+                continue;
+            }
+            if (line.contains("KEY (0001):") && line.contains("014a")) {
+                btnTouch = true;
+            }
+            final Matcher axisMatcher = AXIS_LINE.matcher(line);
+            if (axisMatcher.find()) {
+                final int code = Integer.parseInt(axisMatcher.group(1), 16);
+                final int[] range = new int[]{Integer.parseInt(axisMatcher.group(2)), Integer.parseInt(axisMatcher.group(3))};
+                switch (code) {
+                    case ABS_MT_POSITION_X:
+                        x = range;
+                        break;
+                    case ABS_MT_POSITION_Y:
+                        y = range;
+                        break;
+                    case ABS_MT_SLOT:
+                        slots = true;
+                        break;
+                    case ABS_MT_TRACKING_ID:
+                        tracking = true;
+                        break;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param rotation degrees the screen is turned from the touchscreen's natural orientation, 0, 90, 180 or 270
+     */
+    public void setScreen(int screenWidth, int screenHeight, int rotation) {
+        this.screenWidth = screenWidth;
+        this.screenHeight = screenHeight;
+        this.rotation = ((rotation % 360) + 360) % 360;
+    }
+
+    public String getDevice() {
+        return device;
+    }
+
+    public String tap(int x, int y) {
+        final List<String> events = Lists.newArrayList();
+        down(events, x, y);
+        up(events);
+        return Joiner.on(" && ").join(events);
+    }
+
+    public String swipe(int x1, int y1, int x2, int y2, int millis) {
+        final List<String> events = Lists.newArrayList();
+        down(events, x1, y1);
+        final int steps = Math.max(1, millis / STEP_MILLIS);
+        final String pause = "sleep " + String.format(Locale.US, "%.3f", (millis / (float) steps) / 1000f);
+        for (int i = 1; i <= steps; i++) {
+            events.add(pause);
+            move(events, x1 + (x2 - x1) * i / steps, y1 + (y2 - y1) * i / steps);
+        }
+        up(events);
+        // The finger has to come up even if a move fails part way
+        return "{ " + Joiner.on("; ").join(events) + "; }";
+    }
+
+    private void down(List<String> events, int x, int y) {
+        trackingId = (trackingId + 1) & 0xffff;
+        if (slots) {
+            events.add(event(EV_ABS, ABS_MT_SLOT, 0));
+        }
+        if (tracking) {
+            events.add(event(EV_ABS, ABS_MT_TRACKING_ID, trackingId));
+        }
+        if (btnTouch) {
+            events.add(event(EV_KEY, BTN_TOUCH, 1));
+        }
+        move(events, x, y);
+    }
+
+    private void move(List<String> events, int x, int y) {
+        events.add(event(EV_ABS, ABS_MT_POSITION_X, axisX(x, y)));
+        events.add(event(EV_ABS, ABS_MT_POSITION_Y, axisY(x, y)));
+        if (!tracking) {
+            events.add(event(EV_SYN, SYN_MT_REPORT, 0));
+        }
+        events.add(event(EV_SYN, SYN_REPORT, 0));
+    }
+
+    private void up(List<String> events) {
+        if (tracking) {
+            events.add(event(EV_ABS, ABS_MT_TRACKING_ID, -1));
+        }
+        if (btnTouch) {
+            events.add(event(EV_KEY, BTN_TOUCH, 0));
+        }
+        if (!tracking) {
+            events.add(event(EV_SYN, SYN_MT_REPORT, 0));
+        }
+        events.add(event(EV_SYN, SYN_REPORT, 0));
+    }
+
+    private String event(int type, int code, int value) {
+        return "sendevent " + device + " " + type + " " + code + " " + value;
+    }
+
+    int axisX(int x, int y) {
+        return scale(naturalX(fraction(x, screenWidth), fraction(y, screenHeight)), minX, maxX);
+    }
+
+    int axisY(int x, int y) {
+        return scale(naturalY(fraction(x, screenWidth), fraction(y, screenHeight)), minY, maxY);
+    }
+
+    private double naturalX(double fx, double fy) {
+        switch (rotation) {
+            case 90:
+                return 1 - fy;
+            case 180:
+                return 1 - fx;
+            case 270:
+                return fy;
+            default:
+                return fx;
+        }
+    }
+
+    private double naturalY(double fx, double fy) {
+        switch (rotation) {
+            case 90:
+                return fx;
+            case 180:
+                return 1 - fy;
+            case 270:
+                return 1 - fx;
+            default:
+                return fy;
+        }
+    }
+
+    private static double fraction(int value, int size) {
+        if (size <= 0) return 0;
+        return (value + 0.5) / size;
+    }
+
+    private static int scale(double fraction, int min, int max) {
+        final int value = min + (int) (fraction * (max - min + 1));
+        if (value < min) return min;
+        if (value > max) return max;
+        return value;
+    }
+}
@@ -1,27 +1,47 @@
 package com.mgatelabs.piper.shared.util;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.mgatelabs.piper.shared.details.ExecutableLink;
-import com.mgatelabs.piper.shared.details.StateDefinition;
 import com.mgatelabs.piper.shared.details.VarDefinition;
+import com.mgatelabs.piper.shared.details.VarType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Arrays;
+import java.util.EmptyStackException;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Stack;
 
 /**
- *
+ * Variables by slot.  Every declared name gets a slot number the first time it is declared, and the globals, the state
+ * and each call keep their values in arrays indexed by it.  Looking up a name never gives it a slot.  Numbers are kept
+ * as primitives, so counting does not create a new Var per step, and call frames are kept around and reused instead of
+ * building a map per call.
+ * <p>
+ * A name is looked up in the current call, then the state and then the globals, like before.
+ * <p>
  * Created by @mgatelabs (Michael Fuller) on 9/25/2018
  */
 public class VarManager {
 
     private final Logger logger = LoggerFactory.getLogger(this.getClass());
-    private final Map<String, VarInstance> globals;
-    private final Map<String, VarInstance> state;
-    private final Stack<Map<String, VarInstance>> calls;
+
+    // The slot of a name no scope has ever declared
+    public static final int MISSING = -1;
+
+    private final Map<String, Integer> slots;
+    private final List<String> names;
+    // Each executable's variables parsed once, by identity like the compiler
+    private final Map<ExecutableLink, Layout> layouts;
+
+    private final Frame globals;
+    private final Frame state;
+    // Frames stay in the list when popped, depth says how many are in use
+    private final List<Frame> calls;
+    private int depth;
 
     private String currentSceneId = null;
 
@@ -30,38 +50,64 @@ public class VarManager {
     }
 
     public VarManager() {
-        globals = Maps.newHashMap();
-        state = Maps.newHashMap();
-        calls = new Stack<>();
+        slots = Maps.newHashMap();
+        names = Lists.newArrayList();
+        layouts = new IdentityHashMap<>();
+        globals = new Frame();
+        state = new Frame();
+        calls = Lists.newArrayList();
+    }
+
+    /**
+     * The slot of a name, or {@link #MISSING} when it was never declared.  Slots never change for this manager.
+     */
+    public int slot(String name) {
+        final Integer slot = slots.get(name);
+        return slot != null ? slot : MISSING;
+    }
+
+    /**
+     * The slot of a name being declared, giving it one when it is new
+     */
+    private int declare(String name) {
+        Integer slot = slots.get(name);
+        if (slot == null) {
+            slot = names.size();
+            names.add(name);
+            slots.put(name, slot);
+        }
+        return slot;
     }
 
-    public Map<String, VarInstance> GetStateVariables() {
-        return ImmutableMap.copyOf(state);
+    public Map<String, Var> GetStateVariables() {
+        final ImmutableMap.Builder<String, Var> builder = ImmutableMap.builder();
+        for (int i = 0; i < state.used; i++) {
+            final int slot = state.usedSlots[i];
+            builder.put(names.get(slot), state.get(slot));
+        }
+        return builder.build();
     }
 
     public void global(List<VarDefinition> definitions) {
         globals.clear();
-        for (VarDefinition definition: definitions) {
-            globals.put(definition.getName(), new VarInstance(definition));
+        final Map<String, VarDefinition> named = Maps.newLinkedHashMap();
+        for (VarDefinition definition : definitions) {
+            named.put(definition.getName(), definition);
         }
+        new Layout(named).load(globals);
     }
 
     public void state(ExecutableLink executableState, Map<String, String> arguments) {
-        calls.clear();
+        depth = 0;
         if (!executableState.getId().equalsIgnoreCase(currentSceneId)) {
             // Only reset the state if the state is different
             currentSceneId = executableState.getId();
             state.clear();
             // Set with default arguments
-            for (Map.Entry<String, VarDefinition> entry : executableState.getVariables().entrySet()) {
-                state.put(entry.getKey(), new VarInstance(entry.getValue()));
-            }
+            layout(executableState).load(state);
             // Override with arguments
             for (Map.Entry<String, String> arg : arguments.entrySet()) {
-                VarInstance varInstance = state.get(arg.getKey());
-                if (varInstance != null) {
-                    varInstance.update(new StringVar(arg.getValue()));
-                } else {
+                if (!state.set(slot(arg.getKey()), new StringVar(arg.getValue()))) {
                     logger.error("Argument " + arg.getKey() + " does not related to a state variable");
                 }
             }
@@ -70,62 +116,232 @@ public class VarManager {
         }
     }
 
-    // Future use
     public void push(ExecutableLink executableState, Map<String, String> arguments) {
-        Map<String, VarInstance> callArgs = Maps.newHashMap();
-        // Set with default arguments
-        for (Map.Entry<String, VarDefinition> entry: executableState.getVariables().entrySet()) {
-            callArgs.put(entry.getKey(), new VarInstance(entry.getValue()));
+        if (depth == calls.size()) {
+            calls.add(new Frame());
         }
+        final Frame frame = calls.get(depth++);
+        frame.clear();
+        // Set with default arguments
+        layout(executableState).load(frame);
         // Override with arguments
-        for (Map.Entry<String, String> arg: arguments.entrySet()) {
-            VarInstance varInstance = callArgs.get(arg.getKey());
-            if (varInstance != null) {
-                varInstance.update(new StringVar(arg.getValue()));
-            } else {
+        for (Map.Entry<String, String> arg : arguments.entrySet()) {
+            if (!frame.set(slot(arg.getKey()), new StringVar(arg.getValue()))) {
                 logger.error("Argument " + arg.getKey() + " does not related to a Call variable");
             }
         }
-        calls.push(callArgs);
     }
 
     public void pop() {
-        if (calls.size() == 0) {
+        if (depth == 0) {
             logger.error("Out of Call Pops");
+            throw new EmptyStackException();
         }
-        calls.pop();
+        depth--;
     }
 
     public Var get(String name) {
-        VarInstance varInstance = getVarInstance(name);
-        if (varInstance != null) {
-            return varInstance.getVar();
+        return get(slot(name));
+    }
+
+    /**
+     * @return the value, or null when no scope has the variable
+     */
+    public Var get(int slot) {
+        if (slot == MISSING) {
+            return null;
         }
-        return null;
+        final Frame frame = find(slot);
+        return frame != null ? frame.get(slot) : null;
+    }
+
+    /**
+     * @return the type, or null when no scope has the variable
+     */
+    public VarType getType(String name) {
+        final int slot = slot(name);
+        final Frame frame = slot != MISSING ? find(slot) : null;
+        return frame != null ? frame.types[slot] : null;
     }
 
     public void update(String name, Var data) {
-        VarInstance varInstance = getVarInstance(name);
-        if (varInstance != null) {
-            varInstance.update(data);
+        final int slot = slot(name);
+        final Frame frame = slot != MISSING ? find(slot) : null;
+        if (frame != null) {
+            frame.set(slot, data);
+        }
+    }
+
+    /**
+     * Add to a variable in place, the same as updating it with its value plus the given one
+     *
+     * @return false when no scope has the variable
+     */
+    public boolean add(String name, Var data) {
+        final int slot = slot(name);
+        final Frame frame = slot != MISSING ? find(slot) : null;
+        if (frame == null) {
+            return false;
+        }
+        frame.add(slot, data);
+        return true;
+    }
+
+    private Frame find(int slot) {
+        if (depth > 0) {
+            final Frame call = calls.get(depth - 1);
+            if (call.has(slot)) {
+                return call;
+            }
+        }
+        if (state.has(slot)) {
+            return state;
+        }
+        if (globals.has(slot)) {
+            return globals;
+        }
+        return null;
+    }
+
+    private Layout layout(ExecutableLink executableLink) {
+        Layout layout = layouts.get(executableLink);
+        if (layout == null) {
+            layout = new Layout(executableLink.getVariables());
+            layouts.put(executableLink, layout);
         }
+        return layout;
     }
 
-    public VarInstance getVarInstance(String name) {
-        VarInstance v;
-        if (!calls.isEmpty()) {
-            v = calls.peek().get(name);
-            if (v != null) {
-                return v;
+    /**
+     * The slots, types and starting values of one scope's variables
+     */
+    private class Layout {
+        private final int[] slots;
+        private final VarType[] types;
+        private final Var[] values;
+
+        Layout(Map<String, VarDefinition> definitions) {
+            slots = new int[definitions.size()];
+            types = new VarType[definitions.size()];
+            values = new Var[definitions.size()];
+            int i = 0;
+            for (Map.Entry<String, VarDefinition> entry : definitions.entrySet()) {
+                final VarDefinition definition = entry.getValue();
+                slots[i] = declare(entry.getKey());
+                types[i] = definition.getType() != null ? definition.getType() : VarType.STRING;
+                switch (types[i]) {
+                    case INT:
+                        values[i] = new IntVar(definition.getValue());
+                        break;
+                    case FLOAT:
+                        values[i] = new FloatVar(definition.getValue());
+                        break;
+                    default:
+                        values[i] = new StringVar(definition.getValue());
+                        break;
+                }
+                i++;
             }
         }
-        if (!state.isEmpty()) {
-            v = state.get(name);
-            if (v != null) {
-                return v;
+
+        void load(Frame frame) {
+            for (int i = 0; i < slots.length; i++) {
+                frame.define(slots[i], types[i], values[i]);
             }
         }
-        return globals.get(name);
     }
 
+    /**
+     * One scope, arrays grow when slots are added after it was made
+     */
+    private static class Frame {
+        // Null where the scope has no such variable
+        private VarType[] types = new VarType[16];
+        private int[] ints = new int[16];
+        private float[] floats = new float[16];
+        // The value as a Var, numbers changed in place get theirs back on the next read
+        private Var[] values = new Var[16];
+        private int[] usedSlots = new int[16];
+        private int used;
+
+        boolean has(int slot) {
+            return slot >= 0 && slot < types.length && types[slot] != null;
+        }
+
+        void clear() {
+            for (int i = 0; i < used; i++) {
+                types[usedSlots[i]] = null;
+                values[usedSlots[i]] = null;
+            }
+            used = 0;
+        }
+
+        void define(int slot, VarType type, Var value) {
+            if (slot >= types.length) {
+                final int size = Math.max(slot + 1, types.length * 2);
+                types = Arrays.copyOf(types, size);
+                ints = Arrays.copyOf(ints, size);
+                floats = Arrays.copyOf(floats, size);
+                values = Arrays.copyOf(values, size);
+            }
+            if (types[slot] == null) {
+                if (used == usedSlots.length) {
+                    usedSlots = Arrays.copyOf(usedSlots, used * 2);
+                }
+                usedSlots[used++] = slot;
+            }
+            types[slot] = type;
+            set(slot, value);
+        }
+
+        Var get(int slot) {
+            Var value = values[slot];
+            if (value == null) {
+                value = types[slot] == VarType.INT ? IntVar.valueOf(ints[slot]) : new FloatVar(floats[slot]);
+                values[slot] = value;
+            }
+            return value;
+        }
+
+        /**
+         * Store the value as the variable's type
+         *
+         * @return false when the scope has no such variable
+         */
+        boolean set(int slot, Var value) {
+            if (!has(slot)) {
+                return false;
+            }
+            switch (types[slot]) {
+                case INT:
+                    values[slot] = value.asInt();
+                    ints[slot] = values[slot].toInt();
+                    break;
+                case FLOAT:
+                    values[slot] = value.asFloat();
+                    floats[slot] = values[slot].toFloat();
+                    break;
+                default:
+                    values[slot] = value.asString();
+                    break;
+            }
+            return true;
+        }
+
+        void add(int slot, Var value) {
+            switch (types[slot]) {
+                case INT:
+                    ints[slot] += value.toInt();
+                    values[slot] = null;
+                    break;
+                case FLOAT:
+                    floats[slot] += value.toFloat();
+                    values[slot] = null;
+                    break;
+                default:
+                    values[slot] = values[slot].add(value);
+                    break;
+            }
+        }
+    }
 }
@@ -28,6 +28,8 @@ $(function(){
     var unloadButton = $('#controlUnload');
     var killButton = $('#controlKill');
     var dumpStateButton = $('#controlDumpState');
+    var traceButton = $('#controlTrace');
+    var dumpTraceButton = $('#controlDumpTrace');
     var unloadEdit = $('#unloadEdit');
 
     var controlDeviceSave = $('#controlDeviceSave');
@@ -90,7 +92,19 @@ $(function(){
     }
 
     $('#controlUpdatePreview').click(function(){
-        $('#previewImage').attr('src', '/piper/screen?time=' + (new Date().getTime()));
+        livePreview.removeClass('active');
+        $('#previewImage').attr('src', '/piper/screen?format=jpeg&quality=85&time=' + (new Date().getTime()));
+    });
+
+    var livePreview = $('#controlLivePreview');
+    livePreview.click(function(){
+        if (livePreview.hasClass('active')) {
+            livePreview.removeClass('active');
+            $('#previewImage').attr('src', '');
+        } else {
+            livePreview.addClass('active');
+            $('#previewImage').attr('src', '/piper/screen/stream?fps=4&scale=2&time=' + (new Date().getTime()));
+        }
     });
 
     function statusCheck(firstTime) {
@@ -295,6 +309,29 @@ $(function(){
         });
     });
 
+    traceButton.click(function(){
+        var enabled = traceButton.attr('trace');
+        $.ajax({
+            type: "POST",
+            url: '/piper/process/trace/' + enabled,
+            success: function(result){
+                traceButton.attr('trace', enabled == 'true' ? 'false' : 'true');
+                traceButton.text(enabled == 'true' ? 'Trace Off' : 'Trace On');
+            }
+        });
+    });
+
+    dumpTraceButton.click(function(){
+        $.ajax({
+            type: "GET",
+            url: '/piper/process/trace',
+            dataType: 'json',
+            success: function(result){
+                console.log(result);
+            }
+        });
+    });
+
     unloadEdit.click(function(){
         if (!unloadEdit.hasClass('disabled')) {
             $.ajax({
@@ -0,0 +1,44 @@
+package com.mgatelabs.piper.runners;
+
+import com.google.common.collect.ImmutableSet;
+import com.mgatelabs.piper.shared.details.StateDefinition;
+import com.mgatelabs.piper.shared.details.StateLink;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+
+public class ExecutionTraceTest {
+
+    private static StateLink link() {
+        StateDefinition state = new StateDefinition();
+        state.setId("main");
+        state.fix();
+        return new StateLink("test", state, ImmutableSet.<String>of());
+    }
+
+    @Test
+    public void disabled() {
+        ExecutionTrace trace = new ExecutionTrace(16);
+        trace.record(link(), 0, -1, ExecutionTrace.Event.CHECK, true);
+        Assert.assertTrue(trace.snapshot().isEmpty());
+    }
+
+    @Test
+    public void wraps() {
+        ExecutionTrace trace = new ExecutionTrace(20);
+        Assert.assertEquals(32, trace.getCapacity());
+        trace.setEnabled(true);
+        StateLink link = link();
+        for (int i = 0; i < 100; i++) {
+            trace.record(link, i, -1, ExecutionTrace.Event.CHECK, i % 2 == 0);
+        }
+        List<ExecutionTrace.Entry> entries = trace.snapshot();
+        // The slot being written next is left out
+        Assert.assertEquals(31, entries.size());
+        Assert.assertEquals(69, entries.get(0).getSequence());
+        Assert.assertEquals(99, entries.get(30).getStatement());
+        Assert.assertEquals("main", entries.get(30).getState());
+        Assert.assertFalse(entries.get(30).isResult());
+    }
+}
@@ -0,0 +1,67 @@
+package com.mgatelabs.piper.shared.helper;
+
+import com.google.common.collect.Lists;
+import com.mgatelabs.piper.shared.image.StateTransfer;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Times StateChecker, with and without a screen tree, against the stream based check it replaced.  Not part of the
+ * test suite, run the main method by hand.
+ */
+public class StateCheckerBenchmark {
+
+    public static void main(String[] args) {
+        final Random random = new Random(1);
+        final byte[] frame = StateCheckerTest.frame(random);
+        final List<StateTransfer> states = Lists.newArrayList();
+        final List<StateChecker> checkers = Lists.newArrayList();
+        final List<StateChecker> trees = Lists.newArrayList();
+        for (int i = 0; i < 50; i++) {
+            StateTransfer stateTransfer = StateCheckerTest.sharedState(random, frame, 30, 8);
+            states.add(stateTransfer);
+            checkers.add(StateChecker.compile(stateTransfer));
+            stateTransfer.setTree(ScreenTree.build(stateTransfer));
+            trees.add(StateChecker.compile(stateTransfer));
+            stateTransfer.setTree(null);
+        }
+
+        int found = 0;
+        for (int warm = 0; warm < 200; warm++) {
+            for (int i = 0; i < states.size(); i++) {
+                found += StateCheckerTest.streamCheck(states.get(i), frame).size();
+                found += checkers.get(i).check(frame).size();
+                found += trees.get(i).check(frame).size();
+            }
+        }
+
+        final int rounds = 2000;
+        long start = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            for (StateTransfer stateTransfer : states) {
+                found += StateCheckerTest.streamCheck(stateTransfer, frame).size();
+            }
+        }
+        final long stream = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            for (StateChecker checker : checkers) {
+                found += checker.check(frame).size();
+            }
+        }
+        final long direct = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            for (StateChecker checker : trees) {
+                found += checker.check(frame).size();
+            }
+        }
+        final long tree = System.nanoTime() - start;
+
+        final double count = rounds * states.size();
+        System.out.println(String.format("Stream check: %.2fus, StateChecker: %.2fus, with tree: %.2fus per state (%d)", stream / 1000.0 / count, direct / 1000.0 / count, tree / 1000.0 / count, found));
+    }
+}
@@ -0,0 +1,287 @@
+package com.mgatelabs.piper.shared.helper;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.mgatelabs.piper.shared.image.RawImageWrapper;
+import com.mgatelabs.piper.shared.image.StateTransfer;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Compares StateChecker, with and without a screen tree, to the stream based check it replaced.
+ */
+public class StateCheckerTest {
+
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 1920;
+    private static final int HEADER = 12;
+
+    @Test
+    public void matchesStreamCheck() {
+        final Random random = new Random(42);
+        final byte[] frame = frame(random);
+        for (int run = 0; run < 200; run++) {
+            final StateTransfer stateTransfer = state(random, frame, 1 + random.nextInt(12), 1 + random.nextInt(10));
+            final Set<String> expected = streamCheck(stateTransfer, frame);
+            final Set<String> actual = StateChecker.compile(stateTransfer).check(frame);
+            Assert.assertEquals(expected, actual);
+        }
+    }
+
+    @Test
+    public void pointsOutsideTheFrameFail() {
+        final Random random = new Random(7);
+        final byte[] frame = frame(random);
+        final StateTransfer stateTransfer = state(random, frame, 3, 4);
+        Assert.assertTrue(StateChecker.compile(stateTransfer).check(new byte[0]).isEmpty());
+    }
+
+    @Test
+    public void samplesTwoBytePixels() {
+        // The last pixel of a 565 frame, a 3 byte sample would run past the end
+        final byte[] frame = new byte[HEADER + 4 * 2];
+        frame[frame.length - 2] = 0x1f;
+        frame[frame.length - 1] = (byte) 0xf8;
+        final List<PointTransfer> points = Lists.newArrayList(new PointTransfer(frame.length - 2, (byte) 0, (byte) 0xff, (byte) 0, (byte) 0xff));
+        final StateChecker checker = StateChecker.compile(encode(Lists.newArrayList("screen"), points), RawImageWrapper.ImageFormats.RGB_565);
+        Assert.assertArrayEquals(new byte[]{0x1f, (byte) 0xf8}, checker.sample(frame));
+        Assert.assertArrayEquals(checker.sample(frame), checker.sample(ByteBuffer.allocateDirect(frame.length).put(frame)));
+    }
+
+    @Test
+    public void directBufferMatchesArray() {
+        final Random random = new Random(11);
+        final byte[] frame = frame(random);
+        final ByteBuffer direct = ByteBuffer.allocateDirect(frame.length);
+        direct.put(frame);
+        for (int run = 0; run < 50; run++) {
+            final StateTransfer stateTransfer = state(random, frame, 1 + random.nextInt(12), 1 + random.nextInt(10));
+            final StateChecker checker = StateChecker.compile(stateTransfer);
+            Assert.assertEquals(checker.check(frame), checker.check(direct));
+            Assert.assertArrayEquals(checker.sample(frame), checker.sample(direct));
+        }
+    }
+
+    @Test
+    public void bgraMatchesRgba() {
+        final Random random = new Random(5);
+        final byte[] frame = frame(random);
+        final byte[] swapped = frame.clone();
+        for (int i = HEADER; i + 3 < swapped.length; i += 4) {
+            swapped[i] = frame[i + 2];
+            swapped[i + 2] = frame[i];
+        }
+        for (int run = 0; run < 50; run++) {
+            final StateTransfer stateTransfer = state(random, frame, 1 + random.nextInt(12), 1 + random.nextInt(10));
+            final Set<String> expected = StateChecker.compile(stateTransfer).check(frame);
+            for (PointTransfer point : stateTransfer.getPoints()) {
+                final int sample = RawImageWrapper.ImageFormats.BGRA.toSample(point.getA() & 0xff, point.getB() & 0xff, point.getC() & 0xff);
+                point.setA((byte) (sample >> 16));
+                point.setB((byte) (sample >> 8));
+                point.setC((byte) sample);
+            }
+            Assert.assertEquals(expected, StateChecker.compile(stateTransfer, RawImageWrapper.ImageFormats.BGRA).check(swapped));
+        }
+    }
+
+    @Test
+    public void rgb565Check() {
+        final Random random = new Random(9);
+        final byte[] frame = new byte[HEADER + WIDTH * HEIGHT * 2];
+        random.nextBytes(frame);
+        final ByteBuffer direct = ByteBuffer.allocateDirect(frame.length);
+        direct.put(frame);
+        final RawImageWrapper.ImageFormats format = RawImageWrapper.ImageFormats.RGB_565;
+        for (int run = 0; run < 50; run++) {
+            final List<String> screenIds = Lists.newArrayList();
+            final List<PointTransfer> points = Lists.newArrayList();
+            final Set<String> expected = Sets.newHashSet();
+            final Set<Integer> used = Sets.newHashSet();
+            final int screens = 1 + random.nextInt(8);
+            for (int i = 0; i < screens; i++) {
+                screenIds.add("screen-" + i);
+                final boolean match = random.nextBoolean();
+                if (match) expected.add("screen-" + i);
+                for (int j = 0; j < 4; j++) {
+                    int offset;
+                    do {
+                        offset = HEADER + (random.nextInt(HEIGHT) * WIDTH + random.nextInt(WIDTH / 4) * 4) * 2;
+                    } while (!used.add(offset));
+                    // Red flipped by half its range on the last point of a failing screen
+                    final int sample = format.sample(frame, offset) ^ (match || j < 3 ? 0 : 0x800000);
+                    points.add(new PointTransfer(offset, (byte) i, (byte) (sample >> 16), (byte) (sample >> 8), (byte) sample));
+                }
+            }
+            final StateChecker checker = StateChecker.compile(encode(screenIds, points), format);
+            Assert.assertEquals(expected, checker.check(frame));
+            Assert.assertEquals(expected, checker.check(direct));
+        }
+    }
+
+    @Test
+    public void treeMatchesFullCheck() {
+        final Random random = new Random(3);
+        final byte[] frame = frame(random);
+        final byte[] other = frame(random);
+        for (int run = 0; run < 100; run++) {
+            final StateTransfer stateTransfer = sharedState(random, frame, ScreenTree.MIN_SCREENS + random.nextInt(30), 2 + random.nextInt(8));
+            final StateChecker full = StateChecker.compile(stateTransfer);
+            stateTransfer.setTree(ScreenTree.build(stateTransfer));
+            Assert.assertNotNull(stateTransfer.getTree());
+            final StateChecker tree = StateChecker.compile(stateTransfer);
+            Assert.assertEquals(full.check(frame), tree.check(frame));
+            Assert.assertEquals(full.check(other), tree.check(other));
+        }
+    }
+
+    static byte[] frame(Random random) {
+        final byte[] frame = new byte[HEADER + WIDTH * HEIGHT * 4];
+        random.nextBytes(frame);
+        return frame;
+    }
+
+    /**
+     * Build a state the way ScriptRunner does, about half of the screens match the frame
+     */
+    private static StateTransfer state(Random random, byte[] frame, int screens, int pointsPerScreen) {
+        final List<String> screenIds = Lists.newArrayList();
+        final List<PointTransfer> points = Lists.newArrayList();
+        final Set<Integer> used = Sets.newHashSet();
+        for (int i = 0; i < screens; i++) {
+            screenIds.add("screen-" + i);
+            final boolean match = random.nextBoolean();
+            for (int j = 0; j < pointsPerScreen; j++) {
+                int offset;
+                do {
+                    // Every 4th pixel, so no two points sit next to each other
+                    offset = HEADER + (random.nextInt(HEIGHT) * WIDTH + random.nextInt(WIDTH / 4) * 4) * 4;
+                } while (!used.add(offset));
+                final int shift = match || j + 1 < pointsPerScreen ? random.nextInt(13) - 6 : 40;
+                points.add(new PointTransfer(offset, (byte) i, (byte) (frame[offset] + shift), frame[offset + 1], frame[offset + 2]));
+            }
+        }
+        return encode(screenIds, points);
+    }
+
+    private static StateTransfer encode(List<String> screenIds, List<PointTransfer> points) {
+        Collections.sort(points, new Comparator<PointTransfer>() {
+            @Override
+            public int compare(PointTransfer o1, PointTransfer o2) {
+                final int c = Integer.compare(o1.getOffset(), o2.getOffset());
+                return c == 0 ? Integer.compare(o1.getIndex(), o2.getIndex()) : c;
+            }
+        });
+
+        final StateTransfer stateTransfer = new StateTransfer();
+        stateTransfer.setScreenIds(screenIds);
+        stateTransfer.setPoints(points);
+        final int[] offsets = new int[points.size()];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = points.get(i).getOffset();
+        }
+        stateTransfer.setOffsets(offsets);
+
+        int jumpOffset = 0;
+        int readOffset = 0;
+        for (PointTransfer transfer : points) {
+            int requestedOffset = transfer.getOffset();
+            if (requestedOffset == jumpOffset) {
+                transfer.setOffset(0);
+            } else {
+                jumpOffset = requestedOffset;
+                transfer.setOffset(jumpOffset - readOffset);
+                readOffset = jumpOffset + 3;
+            }
+        }
+        return stateTransfer;
+    }
+
+    /**
+     * Screens that look alike, most of them sample the same few pixels with a handful of distinct colors
+     */
+    static StateTransfer sharedState(Random random, byte[] frame, int screens, int pointsPerScreen) {
+        final int[] pool = new int[pointsPerScreen * 2];
+        for (int i = 0; i < pool.length; i++) {
+            pool[i] = HEADER + (random.nextInt(HEIGHT) * WIDTH + random.nextInt(WIDTH / 4) * 4) * 4;
+        }
+        final List<String> screenIds = Lists.newArrayList();
+        final List<PointTransfer> points = Lists.newArrayList();
+        for (int i = 0; i < screens; i++) {
+            screenIds.add("screen-" + i);
+            final Set<Integer> used = Sets.newHashSet();
+            for (int j = 0; j < pointsPerScreen; j++) {
+                int offset = pool[random.nextInt(pool.length)];
+                if (!used.add(offset)) continue;
+                // Mostly the real color, otherwise one of a few nearby or distant colors
+                final int choice = random.nextInt(4);
+                final int shift = choice == 0 ? 0 : choice == 1 ? random.nextInt(13) - 6 : choice == 2 ? 9 : 60;
+                points.add(new PointTransfer(offset, (byte) i, (byte) (frame[offset] + shift), frame[offset + 1], frame[offset + 2]));
+            }
+        }
+        return encode(screenIds, points);
+    }
+
+    /**
+     * The check LocalDeviceHelper used before StateChecker
+     */
+    static Set<String> streamCheck(StateTransfer stateTransfer, byte[] frame) {
+        final boolean[] success = new boolean[stateTransfer.getScreenIds().size()];
+        for (int i = 0; i < success.length; i++) {
+            success[i] = true;
+        }
+
+        final ByteArrayInputStream inputStream = new ByteArrayInputStream(frame);
+        final byte[] temp = new byte[3];
+        int remainingStates = success.length;
+        boolean sampleRead = false;
+        int extraRead = 0;
+
+        for (PointTransfer pointTransfer : stateTransfer.getPoints()) {
+            if (pointTransfer.getOffset() > 0) {
+                inputStream.skip(pointTransfer.getOffset() + extraRead);
+                sampleRead = false;
+                extraRead = 3;
+            }
+
+            if (!success[pointTransfer.getIndex()]) continue;
+
+            if (!sampleRead) {
+                if (inputStream.read(temp, 0, 3) != 3) {
+                    break;
+                }
+                sampleRead = true;
+                extraRead = 0;
+            }
+
+            success[pointTransfer.getIndex()] &= within(0xff & temp[0], 0xff & pointTransfer.getA()) && within(0xff & temp[1], 0xff & pointTransfer.getB()) && within(0xff & temp[2], 0xff & pointTransfer.getC());
+
+            if (!success[pointTransfer.getIndex()]) {
+                remainingStates--;
+            }
+
+            if (remainingStates <= 0) {
+                break;
+            }
+        }
+
+        final Set<String> results = Sets.newHashSet();
+        for (int j = 0; j < success.length; j++) {
+            if (success[j]) {
+                results.add(stateTransfer.getScreenIds().get(j));
+            }
+        }
+        return results;
+    }
+
+    private static boolean within(int source, int test) {
+        return Math.abs(source - test) <= 6;
+    }
+}
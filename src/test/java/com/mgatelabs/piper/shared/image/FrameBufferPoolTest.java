@@ -0,0 +1,31 @@
+package com.mgatelabs.piper.shared.image;
+
+import com.mgatelabs.piper.shared.details.FrameStorage;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+
+/**
+ * Mapped regions must be handed out again instead of growing the file.
+ */
+public class FrameBufferPoolTest {
+
+    private static final int COUNT = 8;
+
+    @Test
+    public void reusesRegions() {
+        final FrameBufferPool pool = new FrameBufferPool(FrameStorage.MAPPED, new File(System.getProperty("java.io.tmpdir")));
+        final FrameBuffer[] buffers = new FrameBuffer[COUNT];
+        for (int run = 0; run < 3; run++) {
+            for (int i = 0; i < COUNT; i++) {
+                buffers[i] = pool.acquire(16, 16, 4, 12);
+            }
+            for (int i = 0; i < COUNT; i++) {
+                buffers[i].release();
+            }
+        }
+        Assert.assertEquals(COUNT * (12 + 16 * 16 * 4), pool.getMappedSize());
+        pool.close();
+    }
+}
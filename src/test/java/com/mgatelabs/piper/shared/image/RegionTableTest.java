@@ -0,0 +1,73 @@
+package com.mgatelabs.piper.shared.image;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Compares the summed-area lookups to plain loops over the same pixels.
+ */
+public class RegionTableTest {
+
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    private static final int HEADER = 12;
+
+    @Test
+    public void matchesLoops() {
+        final Random random = new Random(31);
+        final byte[] frame = new byte[HEADER + WIDTH * HEIGHT * 4];
+        random.nextBytes(frame);
+        final ImageWrapper image = new RawImageWrapper(WIDTH, HEIGHT, RawImageWrapper.ImageFormats.RGBA, HEADER, frame);
+        final RegionTable table = RegionTable.build(image, 40, 30, 200, 100);
+
+        for (int run = 0; run < 100; run++) {
+            final int left = random.nextInt(200);
+            final int top = random.nextInt(100);
+            final int w = 1 + random.nextInt(200 - left);
+            final int h = 1 + random.nextInt(100 - top);
+
+            long r = 0, g = 0, b = 0;
+            final int[] counts = new int[RegionTable.Bin.values().length];
+            for (int y = top; y < top + h; y++) {
+                for (int x = left; x < left + w; x++) {
+                    final int color = image.getPixel(40 + x, 30 + y);
+                    r += (color >> 16) & 0xff;
+                    g += (color >> 8) & 0xff;
+                    b += color & 0xff;
+                    counts[RegionTable.Bin.of(color).ordinal()]++;
+                }
+            }
+            final int area = w * h;
+            final Sampler mean = table.mean(left, top, w, h);
+            Assert.assertEquals(r / area, mean.getR());
+            Assert.assertEquals(g / area, mean.getG());
+            Assert.assertEquals(b / area, mean.getB());
+            for (RegionTable.Bin bin : RegionTable.Bin.values()) {
+                Assert.assertEquals((counts[bin.ordinal()] * 100 + area / 2) / area, table.percent(bin, left, top, w, h));
+            }
+        }
+    }
+
+    @Test
+    public void bins() {
+        Assert.assertEquals(RegionTable.Bin.RED, RegionTable.Bin.of(0xC82828));
+        Assert.assertEquals(RegionTable.Bin.GREEN, RegionTable.Bin.of(0x20B040));
+        Assert.assertEquals(RegionTable.Bin.BLUE, RegionTable.Bin.of(0x3050E0));
+        Assert.assertEquals(RegionTable.Bin.YELLOW, RegionTable.Bin.of(0xF0D020));
+        Assert.assertEquals(RegionTable.Bin.WHITE, RegionTable.Bin.of(0xF0F0F0));
+        Assert.assertEquals(RegionTable.Bin.GRAY, RegionTable.Bin.of(0x808080));
+        Assert.assertEquals(RegionTable.Bin.BLACK, RegionTable.Bin.of(0x101010));
+    }
+
+    @Test
+    public void clipsToFrame() {
+        final byte[] frame = new byte[HEADER + WIDTH * HEIGHT * 4];
+        final ImageWrapper image = new RawImageWrapper(WIDTH, HEIGHT, RawImageWrapper.ImageFormats.RGBA, HEADER, frame);
+        final RegionTable table = RegionTable.build(image, WIDTH - 10, HEIGHT - 20, 50, 50);
+        Assert.assertEquals(10, table.getWidth());
+        Assert.assertEquals(20, table.getHeight());
+        Assert.assertEquals(100, table.percent(RegionTable.Bin.BLACK));
+    }
+}
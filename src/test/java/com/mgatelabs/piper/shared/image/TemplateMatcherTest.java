@@ -0,0 +1,86 @@
+package com.mgatelabs.piper.shared.image;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Finds templates cut from one frame in another where they moved.
+ */
+public class TemplateMatcherTest {
+
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 1920;
+    private static final int HEADER = 12;
+
+    @Test
+    public void findsMovedTemplate() {
+        final Random random = new Random(17);
+        for (int run = 0; run < 20; run++) {
+            final byte[] screen = screen(random);
+            final int w = 24 + random.nextInt(200);
+            final int h = 24 + random.nextInt(120);
+            final int fromX = random.nextInt(WIDTH - w);
+            final int fromY = random.nextInt(HEIGHT - h);
+            final TemplateMatcher matcher = TemplateMatcher.compile(wrap(screen), fromX, fromY, w, h);
+
+            // Paint the same patch somewhere else, over a different screen
+            final byte[] moved = screen(random);
+            final int toX = random.nextInt(WIDTH - w);
+            final int toY = random.nextInt(HEIGHT - h);
+            for (int row = 0; row < h; row++) {
+                System.arraycopy(screen, offset(fromX, fromY + row), moved, offset(toX, toY + row), w * 4);
+            }
+
+            final TemplateMatcher.Match match = matcher.find(wrap(moved), 0, 0, WIDTH, HEIGHT);
+            Assert.assertNotNull(match);
+            Assert.assertEquals(toX, match.getX());
+            Assert.assertEquals(toY, match.getY());
+            Assert.assertTrue(match.within(0));
+        }
+    }
+
+    @Test
+    public void regionIsRespected() {
+        final Random random = new Random(23);
+        final byte[] screen = screen(random);
+        final TemplateMatcher matcher = TemplateMatcher.compile(wrap(screen), 500, 900, 64, 48);
+        final TemplateMatcher.Match inside = matcher.find(wrap(screen), 400, 800, 300, 300);
+        Assert.assertEquals(500, inside.getX());
+        Assert.assertEquals(900, inside.getY());
+        final TemplateMatcher.Match outside = matcher.find(wrap(screen), 0, 0, 400, 800);
+        Assert.assertFalse(outside.within(TemplateMatcher.DEFAULT_TOLERANCE));
+        Assert.assertNull(matcher.find(wrap(screen), 0, 0, 60, 60));
+    }
+
+    /**
+     * Blocky noise, so there is structure left on the small levels like on a real screen
+     */
+    private static byte[] screen(Random random) {
+        final byte[] frame = new byte[HEADER + WIDTH * HEIGHT * 4];
+        for (int by = 0; by < HEIGHT; by += 8) {
+            for (int bx = 0; bx < WIDTH; bx += 8) {
+                final int color = random.nextInt();
+                for (int y = by; y < by + 8; y++) {
+                    for (int x = bx; x < bx + 8; x++) {
+                        final int index = offset(x, y);
+                        frame[index] = (byte) (color >> 16);
+                        frame[index + 1] = (byte) (color >> 8);
+                        frame[index + 2] = (byte) color;
+                        frame[index + 3] = (byte) 0xff;
+                    }
+                }
+            }
+        }
+        return frame;
+    }
+
+    private static int offset(int x, int y) {
+        return HEADER + (y * WIDTH + x) * 4;
+    }
+
+    private static ImageWrapper wrap(byte[] frame) {
+        return new RawImageWrapper(WIDTH, HEIGHT, RawImageWrapper.ImageFormats.RGBA, HEADER, frame);
+    }
+}
@@ -0,0 +1,39 @@
+package com.mgatelabs.piper.shared.util;
+
+import com.mgatelabs.piper.shared.details.VarType;
+
+/**
+ * Times the original Mather evaluator against compiled expressions over the MatherTest cases.  Not part of the test
+ * suite, run the main method by hand.
+ */
+public class MatherBenchmark {
+
+    public static void main(String[] args) {
+        final String[] cases = MatherTest.CASES;
+        final Expression[] compiled = new Expression[cases.length];
+        for (int i = 0; i < cases.length; i++) {
+            compiled[i] = Expression.compile(cases[i]);
+        }
+        final int rounds = 200000;
+        final long[] times = new long[3];
+        for (int pass = 0; pass < 2; pass++) {
+            // The first pass warms up
+            long start = System.nanoTime();
+            for (int round = 0; round < rounds; round++) {
+                Mather.interpret(cases[round % cases.length], VarType.INT);
+            }
+            times[0] = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int round = 0; round < rounds; round++) {
+                Mather.evaluate(cases[round % cases.length], VarType.INT);
+            }
+            times[1] = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int round = 0; round < rounds; round++) {
+                compiled[round % cases.length].evaluate(VarType.INT, null);
+            }
+            times[2] = System.nanoTime() - start;
+        }
+        System.out.println(String.format("Expressions, interpreted: %.3fus, through Mather: %.3fus, compiled once: %.3fus", times[0] / 1000.0 / rounds, times[1] / 1000.0 / rounds, times[2] / 1000.0 / rounds));
+    }
+}
@@ -1,5 +1,7 @@
 package com.mgatelabs.piper.shared.util;
 
+import com.google.common.collect.Lists;
+import com.mgatelabs.piper.shared.details.VarDefinition;
 import com.mgatelabs.piper.shared.details.VarType;
 import org.junit.Assert;
 import org.junit.Test;
@@ -10,6 +12,9 @@ import org.junit.Test;
  */
 public class MatherTest {
 
+    // Also timed by MatherBenchmark
+    static final String[] CASES = {"(1+1)*(2+2)", "1%2", "0%2", "1+2", "1*2", "10/2", "(100/10)*(100/10)", "-1", "(-1) + 1"};
+
     @Test
     public void evaluate() {
 
@@ -53,4 +58,46 @@ public class MatherTest {
         result = Mather.evaluate("Hello+World", VarType.STRING);
         Assert.assertTrue(result.toString().equals("HelloWorld"));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void precedence() {
+        Assert.assertEquals(7, Mather.evaluate("1+2*3", VarType.INT).toInt());
+        Assert.assertEquals(2, Mather.evaluate("8-4-2", VarType.INT).toInt());
+        Assert.assertEquals(8, Mather.evaluate("16/4*2", VarType.INT).toInt());
+        Assert.assertEquals(2, Mather.evaluate("1--1", VarType.INT).toInt());
+        Assert.assertEquals(-6, Mather.evaluate("-(2*3)", VarType.INT).toInt());
+        Assert.assertEquals(1, Mather.evaluate("1+", VarType.INT).toInt());
+    }
+
+    @Test
+    public void variables() {
+        VarDefinition definition = new VarDefinition();
+        definition.setName("step-size");
+        definition.setType(VarType.INT);
+        definition.setValue("-4");
+        VarManager vars = new VarManager();
+        vars.global(Lists.newArrayList(definition));
+
+        Expression expression = Expression.compile("10 - ${step-size} * 2");
+        Assert.assertEquals(18, expression.evaluate(VarType.INT, vars).toInt());
+        vars.update("step-size", new IntVar(1));
+        Assert.assertEquals(8, expression.evaluate(VarType.INT, vars).toInt());
+    }
+
+    @Test
+    public void unclosed() {
+        try {
+            Expression.compile("(1+2");
+            Assert.fail("Missing ) was accepted");
+        } catch (RuntimeException e) {
+            Assert.assertTrue(e.getMessage().contains("Missing )"));
+        }
+    }
+
+    @Test
+    public void matchesInterpreter() {
+        for (String text : CASES) {
+            Assert.assertEquals(Mather.interpret(text, VarType.INT).toInt(), Expression.compile(text).evaluate(VarType.INT, null).toInt());
+        }
+    }
+}
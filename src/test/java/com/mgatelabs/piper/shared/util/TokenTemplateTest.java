@@ -0,0 +1,71 @@
+package com.mgatelabs.piper.shared.util;
+
+import com.google.common.collect.Lists;
+import com.mgatelabs.piper.shared.details.VarDefinition;
+import com.mgatelabs.piper.shared.details.VarType;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TokenTemplateTest {
+
+    private VarManager vars;
+    private StringBuilder builder;
+
+    @Before
+    public void setup() {
+        vars = new VarManager();
+        vars.global(Lists.newArrayList(define("count", VarType.INT, "3"), define("name", VarType.STRING, "box"), define("inner", VarType.STRING, "${name}")));
+        builder = new StringBuilder();
+    }
+
+    private static VarDefinition define(String name, VarType type, String value) {
+        VarDefinition definition = new VarDefinition();
+        definition.setName(name);
+        definition.setType(type);
+        definition.setValue(value);
+        return definition;
+    }
+
+    private void same(String text) {
+        Assert.assertEquals(TokenTemplate.expand(text, vars), TokenTemplate.parse(text).render(vars, builder));
+    }
+
+    @Test
+    public void render() {
+        Assert.assertEquals("3 of box", TokenTemplate.parse("${count} of ${ name }").render(vars, builder));
+        Assert.assertTrue(TokenTemplate.parse("plain").isStatic());
+        same("a${count}b${name}c");
+        same("${count}${count}");
+    }
+
+    @Test
+    public void unknownStops() {
+        Assert.assertEquals("3 ${missing} ${name}", TokenTemplate.parse("${count} ${missing} ${name}").render(vars, builder));
+        same("${count} ${} ${name}");
+        same("${count} ${ } ${name}");
+        same("${count} ${name");
+    }
+
+    @Test
+    public void declaredLater() {
+        final TokenTemplate template = TokenTemplate.parse("${late}!");
+        Assert.assertEquals("${late}!", template.render(vars, builder));
+        vars.global(Lists.newArrayList(define("late", VarType.STRING, "here")));
+        Assert.assertEquals("here!", template.render(vars, builder));
+    }
+
+    @Test
+    public void nestedValues() {
+        Assert.assertEquals("box!", TokenTemplate.parse("${inner}!").render(vars, builder));
+        same("x${inner}${count}");
+    }
+
+    @Test
+    public void variable() {
+        Assert.assertEquals("count", TokenTemplate.parse("${count}").getVariable());
+        Assert.assertEquals("count", TokenTemplate.parse("$count").getVariable());
+        Assert.assertNull(TokenTemplate.parse("${count} ").getVariable());
+        Assert.assertNull(TokenTemplate.parse("text").getVariable());
+    }
+}
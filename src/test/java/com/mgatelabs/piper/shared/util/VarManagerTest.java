@@ -0,0 +1,90 @@
+package com.mgatelabs.piper.shared.util;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.mgatelabs.piper.shared.details.ExecutableLink;
+import com.mgatelabs.piper.shared.details.StateDefinition;
+import com.mgatelabs.piper.shared.details.StateLink;
+import com.mgatelabs.piper.shared.details.VarDefinition;
+import com.mgatelabs.piper.shared.details.VarType;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Map;
+
+public class VarManagerTest {
+
+    private static VarDefinition define(String name, VarType type, String value) {
+        VarDefinition definition = new VarDefinition();
+        definition.setName(name);
+        definition.setType(type);
+        definition.setValue(value);
+        return definition;
+    }
+
+    private static ExecutableLink executable(String id, VarDefinition... definitions) {
+        Map<String, VarDefinition> variables = Maps.newHashMap();
+        for (VarDefinition definition : definitions) {
+            variables.put(definition.getName(), definition);
+        }
+        StateDefinition state = new StateDefinition();
+        state.setId(id);
+        state.setVariables(variables);
+        return new ExecutableLink(new StateLink("test", state, ImmutableSet.<String>of()));
+    }
+
+    @Test
+    public void scopes() {
+        VarManager vars = new VarManager();
+        vars.global(Lists.newArrayList(define("count", VarType.INT, "1"), define("name", VarType.STRING, "global")));
+        ExecutableLink main = executable("main", define("name", VarType.STRING, "state"));
+        ExecutableLink function = executable("@function", define("count", VarType.INT, "5"));
+
+        vars.state(main, ImmutableMap.of("name", "argument"));
+        Assert.assertEquals("argument", vars.get("name").toString());
+        Assert.assertEquals(1, vars.get("count").toInt());
+
+        vars.push(function, ImmutableMap.<String, String>of());
+        Assert.assertEquals(5, vars.get("count").toInt());
+        vars.update("count", new IntVar(7));
+        vars.push(function, ImmutableMap.of("count", "9"));
+        Assert.assertEquals(9, vars.get("count").toInt());
+        vars.pop();
+        Assert.assertEquals(7, vars.get("count").toInt());
+        vars.pop();
+        Assert.assertEquals(1, vars.get("count").toInt());
+
+        // A reused frame must not keep the last call's values
+        vars.push(function, ImmutableMap.<String, String>of());
+        Assert.assertEquals(5, vars.get("count").toInt());
+        vars.pop();
+
+        Assert.assertNull(vars.get("missing"));
+        Assert.assertNull(vars.getType("missing"));
+        // Reading an unknown name does not give it a slot
+        Assert.assertEquals(VarManager.MISSING, vars.slot("missing"));
+        Assert.assertNull(vars.get(VarManager.MISSING));
+        Assert.assertEquals(VarType.STRING, vars.getType("name"));
+        Assert.assertEquals("argument", vars.GetStateVariables().get("name").toString());
+    }
+
+    @Test
+    public void addInPlace() {
+        VarManager vars = new VarManager();
+        vars.global(Lists.newArrayList(define("count", VarType.INT, "0"), define("rate", VarType.FLOAT, "0.5"), define("text", VarType.STRING, "a")));
+        final int slot = vars.slot("count");
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertTrue(vars.add("count", IntVar.TWO));
+        }
+        Assert.assertEquals(2000, vars.get(slot).toInt());
+        Assert.assertSame(vars.get(slot), vars.get("count"));
+
+        vars.add("rate", new FloatVar(1.25f));
+        Assert.assertEquals(1.75f, vars.get("rate").toFloat(), 0.0001f);
+        vars.add("text", new StringVar("b"));
+        Assert.assertEquals("ab", vars.get("text").toString());
+        Assert.assertFalse(vars.add("missing", IntVar.ONE));
+    }
+}